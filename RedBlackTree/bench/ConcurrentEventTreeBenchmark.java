@@ -0,0 +1,227 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Multi threaded benchmark of the thread safe event counters.
+ * Runs a mixed workload on 1 to 32 threads against ConcurrentEventTree,
+ * ShardedEventTree and a RedBlackEventTree behind one global lock, and reports the
+ * total throughput for each thread count.
+ *
+ * Usage: ConcurrentEventTreeBenchmark [-engines stamped,sharded,global] [-size 1000000]
+ *        [-threads 1,2,4,8,16,32] [-writes percent] [-dist zipf] [-time ms]
+ *
+ * @author dhanusha
+ *
+ */
+public class ConcurrentEventTreeBenchmark {
+
+	/**
+	 * Operations of a thread safe engine under test
+	 */
+	interface Target {
+
+		void buildTreeFromFile(String filename);
+
+		int increase(int evId, int count);
+
+		int reduce(int evId, int count);
+
+		int count(int evId);
+
+		int inRange(int id1, int id2);
+
+		long nextPacked(int evId);
+
+		long prevPacked(int evId);
+	}
+
+	static Target newTarget(String engine) {
+
+		if (engine.equals("stamped")) {
+			final ConcurrentEventTree tree = new ConcurrentEventTree();
+			return new Target() {
+				public void buildTreeFromFile(String filename) { tree.buildTreeFromFile(filename); }
+				public int increase(int evId, int count) { return tree.increase(evId, count); }
+				public int reduce(int evId, int count) { return tree.reduce(evId, count); }
+				public int count(int evId) { return tree.count(evId); }
+				public int inRange(int id1, int id2) { return tree.inRange(id1, id2); }
+				public long nextPacked(int evId) { return tree.nextPacked(evId); }
+				public long prevPacked(int evId) { return tree.prevPacked(evId); }
+			};
+		} else if (engine.equals("sharded")) {
+			final ShardedEventTree tree = new ShardedEventTree();
+			return new Target() {
+				public void buildTreeFromFile(String filename) {
+					try {
+						tree.buildTreeFromFile(filename);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+				public int increase(int evId, int count) { return tree.increase(evId, count); }
+				public int reduce(int evId, int count) { return tree.reduce(evId, count); }
+				public int count(int evId) { return tree.count(evId); }
+				public int inRange(int id1, int id2) { return tree.inRange(id1, id2); }
+				public long nextPacked(int evId) { return tree.nextPacked(evId); }
+				public long prevPacked(int evId) { return tree.prevPacked(evId); }
+			};
+		} else if (engine.equals("global")) {
+			// Baseline: every operation under one lock
+			final RedBlackEventTree tree = new RedBlackEventTree();
+			return new Target() {
+				public synchronized void buildTreeFromFile(String filename) { tree.buildTreeFromFile(filename); }
+				public synchronized int increase(int evId, int count) { return tree.increase(evId, count); }
+				public synchronized int reduce(int evId, int count) { return tree.reduce(evId, count); }
+				public synchronized int count(int evId) { return tree.count(evId); }
+				public synchronized int inRange(int id1, int id2) { return tree.inRange(id1, id2); }
+				public synchronized long nextPacked(int evId) { return tree.nextPacked(evId); }
+				public synchronized long prevPacked(int evId) { return tree.prevPacked(evId); }
+			};
+		}
+		throw new IllegalArgumentException("Unknown engine " + engine);
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		List<String> engines = Arrays.asList("stamped", "sharded", "global");
+		int size = 1000000;
+		int[] threadCounts = { 1, 2, 4, 8, 16, 32 };
+		int writePercent = 10;
+		String dist = "zipf";
+		long millis = 2000;
+
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "-engines":
+				engines = Arrays.asList(value.split(","));
+				break;
+			case "-size":
+				size = Integer.parseInt(value);
+				break;
+			case "-threads":
+				String[] parts = value.split(",");
+				threadCounts = new int[parts.length];
+				for (int j = 0; j < parts.length; j++) {
+					threadCounts[j] = Integer.parseInt(parts[j]);
+				}
+				break;
+			case "-writes":
+				writePercent = Integer.parseInt(value);
+				break;
+			case "-dist":
+				dist = value;
+				break;
+			case "-time":
+				millis = Long.parseLong(value);
+				break;
+			default:
+				System.err.println("Unknown option " + args[i]);
+				System.exit(1);
+			}
+		}
+
+		File input = EventTreeBenchmark.writeInputFile(size);
+		int[] keys = EventTreeBenchmark.queryKeys(dist, size, EventTreeBenchmark.maxId(size));
+		System.out.printf("%-8s %-10s %-11s %7s %7s %14s%n", "engine", "size", "dist", "writes", "threads", "ops/s");
+		try {
+			for (String engine : engines) {
+				Target target = newTarget(engine);
+				target.buildTreeFromFile(input.getPath());
+				// Warm up on the largest thread count
+				run(target, keys, threadCounts[threadCounts.length - 1], writePercent, millis);
+				for (int threads : threadCounts) {
+					double opsPerSecond = run(target, keys, threads, writePercent, millis);
+					System.out.printf("%-8s %-10d %-11s %6d%% %7d %14.0f%n", engine, size, dist, writePercent,
+							threads, opsPerSecond);
+				}
+			}
+		} finally {
+			input.delete();
+		}
+		System.out.println("sink " + EventTreeBenchmark.sink);
+	}
+
+	/**
+	 * Runs the mixed workload on 'threads' threads for 'millis'
+	 * @return total operations per second
+	 * @throws InterruptedException
+	 */
+	static double run(final Target target, final int[] keys, int threads, final int writePercent, long millis)
+			throws InterruptedException {
+
+		final AtomicBoolean stop = new AtomicBoolean();
+		final LongAdder ops = new LongAdder();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> workers = new ArrayList<Thread>();
+
+		for (int t = 0; t < threads; t++) {
+			final int offset = t * (keys.length / threads);
+			Thread worker = new Thread(() -> {
+				int i = offset;
+				int mask = keys.length - 1;
+				long sum = 0;
+				long done = 0;
+				// xorshift for the operation mix, cheaper than Random
+				int seed = offset | 1;
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				while (!stop.get()) {
+					for (int j = 0; j < 256; j++) {
+						seed ^= seed << 13;
+						seed ^= seed >>> 17;
+						seed ^= seed << 5;
+						int choice = (seed & 0x7FFFFFFF) % 100;
+						int key = keys[i];
+						if (choice < writePercent) {
+							// Balanced count only updates on existing or missing ids
+							sum += ((choice & 1) == 0) ? target.increase(key, 1) : target.reduce(key, 1);
+						} else {
+							switch (choice & 3) {
+							case 0:
+								sum += target.count(key);
+								break;
+							case 1:
+								sum += target.nextPacked(key);
+								break;
+							case 2:
+								sum += target.prevPacked(key);
+								break;
+							default:
+								sum += target.inRange(key, key + 64);
+							}
+						}
+						i = (i + 1) & mask;
+					}
+					done += 256;
+				}
+				ops.add(done);
+				synchronized (ConcurrentEventTreeBenchmark.class) {
+					EventTreeBenchmark.sink += sum;
+				}
+			});
+			workers.add(worker);
+			worker.start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		Thread.sleep(millis);
+		stop.set(true);
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		long elapsed = System.nanoTime() - begin;
+		return ops.sum() * 1e9 / elapsed;
+	}
+}
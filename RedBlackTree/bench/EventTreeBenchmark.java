@@ -0,0 +1,594 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmark driver for the event counter operations.
+ * For every engine, tree size and key distribution it measures
+ * buildTreeFromFile, increase, reduce, count, inRange, next and prev and
+ * reports throughput, latency percentiles and allocated bytes per operation.
+ *
+ * Usage: EventTreeBenchmark [-engines rbt,rbthot,array,bplus,eytzinger] [-sizes 1000,100000]
+ *        [-dists uniform,zipf,sequential] [-ops count,next] [-time ms]
+ *
+ * rbthot is rbt with a hot key cache, see RedBlackEventTree.enableHotKeyCache.
+ * The *Packed operations use the allocation free query paths and should
+ * report 0 B/op. batch1k counts one applyBatch call of 1024 events as one
+ * operation, engines without applyBatch loop over increase and reduce.
+ * scan100 sums the counts of 100 consecutive events, through a cursor where
+ * the engine has one and through repeated nextPacked otherwise.
+ * countAll1k, nextAll1k and prevAll1k look up 1024 query keys in one call,
+ * interleaved where the engine has countAll, nextAll and prevAll and by
+ * looping over count, nextPacked and prevPacked otherwise, so ops/s times
+ * 1024 compares with the count, nextPacked and prevPacked rows.
+ *
+ * JMH refuses benchmark classes in the default package, which is where
+ * the event counter lives, so warmup, timing and allocation accounting
+ * are done here by hand.
+ *
+ * @author dhanusha
+ *
+ */
+public class EventTreeBenchmark {
+
+	// Number of pre generated query keys, cycled through by every run
+	private static final int KEY_BATCH = 1 << 20;
+
+	private static final int WARMUP_ROUNDS = 3;
+
+	private static final int MEASURE_ROUNDS = 5;
+
+	// Operations timed one by one for the latency percentiles
+	private static final int LATENCY_SAMPLES = 200000;
+
+	private static final double ZIPF_THETA = 0.99;
+
+	// Events per applyBatch call of the batch1k operation
+	private static final int BATCH_SIZE = 1024;
+
+	// Events visited by one call of the scan100 operation
+	private static final int SCAN_LENGTH = 100;
+
+	// Hot key cache entries of the rbthot engine
+	private static final int HOT_KEYS = 1 << 14;
+
+	// Keeps results alive so the JIT can not drop the measured calls
+	static long sink;
+
+	/**
+	 * Operations of an event counter engine under test
+	 */
+	interface Target {
+
+		void buildTreeFromFile(String filename);
+
+		int increase(int evId, int count);
+
+		int reduce(int evId, int count);
+
+		int count(int evId);
+
+		int inRange(int id1, int id2);
+
+		Event next(int evId);
+
+		Event prev(int evId);
+
+		// Allocation free variants, where the engine has them
+
+		default long nextPacked(int evId) {
+			Event e = next(evId);
+			return Event.pack(e.getEventId(), e.getCount());
+		}
+
+		default long prevPacked(int evId) {
+			Event e = prev(evId);
+			return Event.pack(e.getEventId(), e.getCount());
+		}
+
+		default void applyBatch(int[] ids, int[] deltas) {
+			for (int i = 0; i < ids.length; i++) {
+				if (deltas[i] > 0) {
+					increase(ids[i], deltas[i]);
+				} else if (deltas[i] < 0) {
+					reduce(ids[i], -deltas[i]);
+				}
+			}
+		}
+
+		default void countAll(int[] ids, int[] out) {
+			for (int i = 0; i < ids.length; i++) {
+				out[i] = count(ids[i]);
+			}
+		}
+
+		default void nextAll(int[] ids, long[] out) {
+			for (int i = 0; i < ids.length; i++) {
+				out[i] = nextPacked(ids[i]);
+			}
+		}
+
+		default void prevAll(int[] ids, long[] out) {
+			for (int i = 0; i < ids.length; i++) {
+				out[i] = prevPacked(ids[i]);
+			}
+		}
+
+		// Sum of counts of the first 'length' events from 'evId' on
+		default long scan(int evId, int length) {
+			long sum = 0;
+			long packed = nextPacked(evId - 1);
+			for (int i = 0; i < length && packed != 0L; i++) {
+				sum += Event.packedCount(packed);
+				packed = nextPacked(Event.packedEventId(packed));
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * Creates a fresh engine by name
+	 * @param engine
+	 * @return
+	 */
+	static Target newTarget(String engine) {
+
+		if (engine.equals("rbt") || engine.equals("rbthot")) {
+			final RedBlackEventTree tree = new RedBlackEventTree();
+			if (engine.equals("rbthot")) {
+				tree.enableHotKeyCache(HOT_KEYS);
+			}
+			return new Target() {
+				public void buildTreeFromFile(String filename) { tree.buildTreeFromFile(filename); }
+				public int increase(int evId, int count) { return tree.increase(evId, count); }
+				public int reduce(int evId, int count) { return tree.reduce(evId, count); }
+				public int count(int evId) { return tree.count(evId); }
+				public int inRange(int id1, int id2) { return tree.inRange(id1, id2); }
+				public Event next(int evId) { return tree.next(evId); }
+				public Event prev(int evId) { return tree.prev(evId); }
+				public long nextPacked(int evId) { return tree.nextPacked(evId); }
+				public long prevPacked(int evId) { return tree.prevPacked(evId); }
+				public void applyBatch(int[] ids, int[] deltas) { tree.applyBatch(ids, deltas); }
+				public void countAll(int[] ids, int[] out) { tree.countAll(ids, out); }
+				public void nextAll(int[] ids, long[] out) { tree.nextAll(ids, out); }
+				public void prevAll(int[] ids, long[] out) { tree.prevAll(ids, out); }
+				public long scan(int evId, int length) {
+					long sum = 0;
+					RedBlackEventTree.Cursor cursor = tree.cursor(evId, Integer.MAX_VALUE);
+					for (int i = 0; i < length && cursor.next(); i++) {
+						sum += cursor.count();
+					}
+					return sum;
+				}
+			};
+		} else if (engine.equals("array")) {
+			final RedBlackArrayEventTree tree = new RedBlackArrayEventTree();
+			return new Target() {
+				public void buildTreeFromFile(String filename) { tree.buildTreeFromFile(filename); }
+				public int increase(int evId, int count) { return tree.increase(evId, count); }
+				public int reduce(int evId, int count) { return tree.reduce(evId, count); }
+				public int count(int evId) { return tree.count(evId); }
+				public int inRange(int id1, int id2) { return tree.inRange(id1, id2); }
+				public Event next(int evId) { return tree.next(evId); }
+				public Event prev(int evId) { return tree.prev(evId); }
+			};
+		} else if (engine.equals("bplus")) {
+			final BPlusEventTree tree = new BPlusEventTree();
+			return new Target() {
+				public void buildTreeFromFile(String filename) { load(tree::loadFromFile, filename); }
+				public int increase(int evId, int count) { return tree.increase(evId, count); }
+				public int reduce(int evId, int count) { return tree.reduce(evId, count); }
+				public int count(int evId) { return tree.count(evId); }
+				public int inRange(int id1, int id2) { return tree.inRange(id1, id2); }
+				public Event next(int evId) { return tree.next(evId); }
+				public Event prev(int evId) { return tree.prev(evId); }
+				public long nextPacked(int evId) { return tree.nextPacked(evId); }
+				public long prevPacked(int evId) { return tree.prevPacked(evId); }
+			};
+		} else if (engine.equals("eytzinger")) {
+			// Read only, the benchmark skips increase, reduce and batch1k
+			final EytzingerEventIndex tree = new EytzingerEventIndex();
+			return new Target() {
+				public void buildTreeFromFile(String filename) { load(tree::loadFromFile, filename); }
+				public int increase(int evId, int count) { throw new UnsupportedOperationException(); }
+				public int reduce(int evId, int count) { throw new UnsupportedOperationException(); }
+				public int count(int evId) { return tree.count(evId); }
+				public int inRange(int id1, int id2) { return tree.inRange(id1, id2); }
+				public Event next(int evId) { return tree.next(evId); }
+				public Event prev(int evId) { return tree.prev(evId); }
+				public long nextPacked(int evId) { return tree.nextPacked(evId); }
+				public long prevPacked(int evId) { return tree.prevPacked(evId); }
+			};
+		}
+		throw new IllegalArgumentException("Unknown engine " + engine);
+	}
+
+	/**
+	 * Engine method loading a sorted input file
+	 */
+	interface Loader {
+		void load(Path path) throws IOException;
+	}
+
+	private static void load(Loader loader, String filename) {
+		try {
+			loader.load(Paths.get(filename));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * One measured operation, applied to the i-th query key
+	 */
+	interface Operation {
+		long run(Target target, int[] keys, int i);
+	}
+
+	static Operation operation(String name) {
+
+		if (name.equals("increase")) {
+			return (t, keys, i) -> t.increase(keys[i], 1);
+		} else if (name.equals("reduce")) {
+			return (t, keys, i) -> t.reduce(keys[i], 1);
+		} else if (name.equals("count")) {
+			return (t, keys, i) -> t.count(keys[i]);
+		} else if (name.equals("inRange")) {
+			// Ranges between consecutive query keys
+			return (t, keys, i) -> {
+				int a = keys[i];
+				int b = keys[(i + 1) & (KEY_BATCH - 1)];
+				return (a <= b) ? t.inRange(a, b) : t.inRange(b, a);
+			};
+		} else if (name.equals("next")) {
+			return (t, keys, i) -> t.next(keys[i]).getEventId();
+		} else if (name.equals("prev")) {
+			return (t, keys, i) -> t.prev(keys[i]).getEventId();
+		} else if (name.equals("batch1k")) {
+			// One operation is a batch of BATCH_SIZE alternating +1/-1 changes
+			final int[] ids = new int[BATCH_SIZE];
+			final int[] deltas = new int[BATCH_SIZE];
+			for (int j = 0; j < BATCH_SIZE; j++) {
+				deltas[j] = ((j & 1) == 0) ? 1 : -1;
+			}
+			return (t, keys, i) -> {
+				int from = (i * BATCH_SIZE) & (KEY_BATCH - BATCH_SIZE);
+				System.arraycopy(keys, from, ids, 0, BATCH_SIZE);
+				t.applyBatch(ids, deltas);
+				return ids[0];
+			};
+		} else if (name.equals("countAll1k")) {
+			final int[] ids = new int[BATCH_SIZE];
+			final int[] out = new int[BATCH_SIZE];
+			return (t, keys, i) -> {
+				System.arraycopy(keys, (i * BATCH_SIZE) & (KEY_BATCH - BATCH_SIZE), ids, 0, BATCH_SIZE);
+				t.countAll(ids, out);
+				return out[0];
+			};
+		} else if (name.equals("nextAll1k") || name.equals("prevAll1k")) {
+			final boolean next = name.equals("nextAll1k");
+			final int[] ids = new int[BATCH_SIZE];
+			final long[] out = new long[BATCH_SIZE];
+			return (t, keys, i) -> {
+				System.arraycopy(keys, (i * BATCH_SIZE) & (KEY_BATCH - BATCH_SIZE), ids, 0, BATCH_SIZE);
+				if (next) {
+					t.nextAll(ids, out);
+				} else {
+					t.prevAll(ids, out);
+				}
+				return out[0];
+			};
+		} else if (name.equals("scan100")) {
+			return (t, keys, i) -> t.scan(keys[i], SCAN_LENGTH);
+		} else if (name.equals("nextPacked")) {
+			return (t, keys, i) -> t.nextPacked(keys[i]);
+		} else if (name.equals("prevPacked")) {
+			return (t, keys, i) -> t.prevPacked(keys[i]);
+		}
+		throw new IllegalArgumentException("Unknown operation " + name);
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		List<String> engines = Arrays.asList("rbt", "rbthot", "array", "bplus", "eytzinger");
+		int[] sizes = { 1000, 100000, 1000000 };
+		List<String> dists = Arrays.asList("uniform", "zipf", "sequential");
+		List<String> ops = Arrays.asList("build", "increase", "reduce", "count", "inRange", "next", "prev",
+				"nextPacked", "prevPacked", "batch1k", "scan100", "countAll1k", "nextAll1k", "prevAll1k");
+		long roundMillis = 1000;
+
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "-engines":
+				engines = Arrays.asList(value.split(","));
+				break;
+			case "-sizes":
+				String[] parts = value.split(",");
+				sizes = new int[parts.length];
+				for (int j = 0; j < parts.length; j++) {
+					sizes[j] = Integer.parseInt(parts[j]);
+				}
+				break;
+			case "-dists":
+				dists = Arrays.asList(value.split(","));
+				break;
+			case "-ops":
+				ops = Arrays.asList(value.split(","));
+				break;
+			case "-time":
+				roundMillis = Long.parseLong(value);
+				break;
+			default:
+				System.err.println("Unknown option " + args[i]);
+				System.exit(1);
+			}
+		}
+
+		System.out.printf("%-8s %-10s %-11s %-11s %14s %9s %9s %9s %9s %10s %5s%n", "engine", "size", "dist", "op",
+				"ops/s", "p50 ns", "p90 ns", "p99 ns", "p99.9 ns", "B/op", "GCs");
+
+		for (int size : sizes) {
+			File input = writeInputFile(size);
+			try {
+				int maxId = maxId(size);
+				for (String engine : engines) {
+					if (ops.contains("build")) {
+						benchmarkBuild(engine, size, input);
+					}
+					for (String dist : dists) {
+						int[] keys = queryKeys(dist, size, maxId);
+						for (String op : ops) {
+							if (!op.equals("build") && supports(engine, op)) {
+								Target target = newTarget(engine);
+								target.buildTreeFromFile(input.getPath());
+								report(engine, size, dist, op, measure(target, operation(op), keys, roundMillis,
+										weight(op)));
+							}
+						}
+					}
+				}
+			} finally {
+				input.delete();
+			}
+		}
+		System.out.println("sink " + sink);
+	}
+
+	/**
+	 * Measures buildTreeFromFile, one build per round
+	 */
+	private static void benchmarkBuild(String engine, int size, File input) {
+
+		long[] times = new long[MEASURE_ROUNDS];
+		long allocated = 0;
+		for (int round = -WARMUP_ROUNDS; round < MEASURE_ROUNDS; round++) {
+			Target target = newTarget(engine);
+			long bytes = allocatedBytes();
+			long start = System.nanoTime();
+			target.buildTreeFromFile(input.getPath());
+			long time = System.nanoTime() - start;
+			if (round >= 0) {
+				times[round] = time;
+				allocated += allocatedBytes() - bytes;
+			}
+			sink += target.count(1);
+		}
+		Arrays.sort(times);
+		Result result = new Result();
+		result.opsPerSecond = size * 1e9 / times[MEASURE_ROUNDS / 2];
+		// Per build, not per event
+		result.latencies = times;
+		result.bytesPerOp = allocated / (double) MEASURE_ROUNDS;
+		report(engine, size, "-", "build", result);
+	}
+
+	/**
+	 * Whether 'engine' can run operation 'op', read only engines can not
+	 * change counts
+	 */
+	private static boolean supports(String engine, String op) {
+		return !engine.equals("eytzinger") || !(op.equals("increase") || op.equals("reduce") || op.equals("batch1k"));
+	}
+
+	/**
+	 * Number of events one call of operation 'op' touches
+	 */
+	static int weight(String op) {
+		if (op.equals("batch1k") || op.endsWith("All1k")) {
+			return BATCH_SIZE;
+		} else if (op.equals("scan100")) {
+			return SCAN_LENGTH;
+		}
+		return 1;
+	}
+
+	static class Result {
+		double opsPerSecond;
+		long[] latencies;
+		double bytesPerOp;
+		long gcCount;
+	}
+
+	/**
+	 * Runs 'op' over 'keys' for warmup and measurement rounds of
+	 * 'roundMillis', then times LATENCY_SAMPLES single calls. 'weight' is
+	 * the number of events one call touches, heavier operations check the
+	 * clock and take latency samples proportionally less often.
+	 */
+	static Result measure(Target target, Operation op, int[] keys, long roundMillis, int weight) {
+
+		int perCheck = Math.max(1, 1024 / weight);
+		int samples = Math.max(1000, LATENCY_SAMPLES / weight);
+
+		Result result = new Result();
+		int i = 0;
+		long totalOps = 0;
+		long totalNanos = 0;
+		long bytes = 0;
+		long gcBefore = 0;
+		long sum = 0;
+
+		for (int round = -WARMUP_ROUNDS; round < MEASURE_ROUNDS; round++) {
+			if (round == 0) {
+				bytes = allocatedBytes();
+				gcBefore = gcCount();
+			}
+			long start = System.nanoTime();
+			long deadline = start + roundMillis * 1000000L;
+			long done = 0;
+			long now;
+			do {
+				// Check the clock every 1024 events
+				for (int j = 0; j < perCheck; j++) {
+					sum += op.run(target, keys, i);
+					i = (i + 1) & (KEY_BATCH - 1);
+				}
+				done += perCheck;
+			} while ((now = System.nanoTime()) < deadline);
+			if (round >= 0) {
+				totalOps += done;
+				totalNanos += now - start;
+			}
+		}
+		result.bytesPerOp = (allocatedBytes() - bytes) / (double) totalOps;
+		result.gcCount = gcCount() - gcBefore;
+		result.opsPerSecond = totalOps * 1e9 / totalNanos;
+
+		long[] latencies = new long[samples];
+		for (int s = 0; s < samples; s++) {
+			long start = System.nanoTime();
+			sum += op.run(target, keys, i);
+			latencies[s] = System.nanoTime() - start;
+			i = (i + 1) & (KEY_BATCH - 1);
+		}
+		Arrays.sort(latencies);
+		result.latencies = latencies;
+		sink += sum;
+		return result;
+	}
+
+	static void report(String engine, int size, String dist, String op, Result result) {
+
+		long[] l = result.latencies;
+		System.out.printf("%-8s %-10d %-11s %-11s %14.0f %9d %9d %9d %9d %10.1f %5d%n", engine, size, dist, op,
+				result.opsPerSecond, percentile(l, 0.5), percentile(l, 0.9), percentile(l, 0.99),
+				percentile(l, 0.999), result.bytesPerOp, result.gcCount);
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+	}
+
+	/**
+	 * Bytes allocated so far by the current thread
+	 */
+	static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += gc.getCollectionCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Event ids of the input file are 0, 2, 4, ... so that half of the
+	 * query keys miss
+	 */
+	static int eventId(int index) {
+		return index * 2;
+	}
+
+	static int maxId(int size) {
+		return eventId(size - 1) + 1;
+	}
+
+	/**
+	 * Writes a sorted input file with 'size' events
+	 * @return
+	 * @throws IOException
+	 */
+	static File writeInputFile(int size) throws IOException {
+
+		Path path = Files.createTempFile("events", ".txt");
+		BufferedWriter out = Files.newBufferedWriter(path);
+		try {
+			Random random = new Random(size);
+			out.write(Integer.toString(size));
+			out.newLine();
+			for (int i = 0; i < size; i++) {
+				// Large counts so that reduce rarely deletes
+				out.write(eventId(i) + " " + (1000000 + random.nextInt(1000)));
+				out.newLine();
+			}
+		} finally {
+			out.close();
+		}
+		return path.toFile();
+	}
+
+	/**
+	 * Generates KEY_BATCH query keys in [0, maxId]
+	 */
+	static int[] queryKeys(String dist, int size, int maxId) {
+
+		Random random = new Random(42);
+		int[] keys = new int[KEY_BATCH];
+
+		if (dist.equals("uniform")) {
+			for (int i = 0; i < KEY_BATCH; i++) {
+				keys[i] = random.nextInt(maxId + 1);
+			}
+		} else if (dist.equals("sequential")) {
+			for (int i = 0; i < KEY_BATCH; i++) {
+				keys[i] = (int) ((long) i * 2 % (maxId + 1));
+			}
+		} else if (dist.equals("zipf")) {
+			// Zipfian ranks (Gray et al.), scattered over the key space
+			// so hot keys are not neighbours
+			double zetan = zeta(size, ZIPF_THETA);
+			double zeta2 = zeta(2, ZIPF_THETA);
+			double alpha = 1 / (1 - ZIPF_THETA);
+			double eta = (1 - Math.pow(2.0 / size, 1 - ZIPF_THETA)) / (1 - zeta2 / zetan);
+			for (int i = 0; i < KEY_BATCH; i++) {
+				double u = random.nextDouble();
+				double uz = u * zetan;
+				long rank;
+				if (uz < 1) {
+					rank = 0;
+				} else if (uz < 1 + Math.pow(0.5, ZIPF_THETA)) {
+					rank = 1;
+				} else {
+					rank = (long) (size * Math.pow(eta * u - eta + 1, alpha));
+				}
+				long index = (rank * 0x9E3779B1L) % size;
+				keys[i] = eventId((int) index);
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown distribution " + dist);
+		}
+		return keys;
+	}
+
+	private static double zeta(long n, double theta) {
+		double sum = 0;
+		for (long i = 1; i <= n; i++) {
+			sum += 1 / Math.pow(i, theta);
+		}
+		return sum;
+	}
+}
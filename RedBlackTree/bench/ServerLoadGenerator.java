@@ -0,0 +1,229 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Loopback load generator for EventCounterServer.
+ * Starts a server on a free local port with a tree of 'size' events, then
+ * for every client count and batch size runs clients that each keep
+ * 'depth' batches in flight, and reports operations per second and the
+ * round trip latency of a batch.
+ *
+ * Usage: ServerLoadGenerator [-size 1000000] [-clients 1,4,16] [-batch 1,16,256]
+ *        [-depth 8] [-writes percent] [-dist zipf] [-time ms]
+ *
+ * @author dhanusha
+ *
+ */
+public class ServerLoadGenerator {
+
+	public static void main(String[] args) throws Exception {
+
+		int size = 1000000;
+		int[] clientCounts = { 1, 4, 16 };
+		int[] batchSizes = { 1, 16, 256 };
+		int depth = 8;
+		int writePercent = 10;
+		String dist = "zipf";
+		long millis = 2000;
+
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "-size":
+				size = Integer.parseInt(value);
+				break;
+			case "-clients":
+				clientCounts = parseList(value);
+				break;
+			case "-batch":
+				batchSizes = parseList(value);
+				break;
+			case "-depth":
+				depth = Integer.parseInt(value);
+				break;
+			case "-writes":
+				writePercent = Integer.parseInt(value);
+				break;
+			case "-dist":
+				dist = value;
+				break;
+			case "-time":
+				millis = Long.parseLong(value);
+				break;
+			default:
+				System.err.println("Unknown option " + args[i]);
+				System.exit(1);
+			}
+		}
+
+		File input = EventTreeBenchmark.writeInputFile(size);
+		int[] keys = EventTreeBenchmark.queryKeys(dist, size, EventTreeBenchmark.maxId(size));
+		RedBlackEventTree tree = new RedBlackEventTree();
+		tree.buildTreeFromFile(input.getPath());
+		input.delete();
+
+		final EventCounterServer server = new EventCounterServer(tree, new InetSocketAddress("127.0.0.1", 0));
+		Thread serverThread = new Thread(() -> {
+			try {
+				server.run();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}, "server");
+		serverThread.start();
+		InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getPort());
+
+		System.out.printf("%-10s %7s %6s %6s %7s %14s %10s %10s%n", "size", "clients", "batch", "depth", "writes",
+				"ops/s", "p50 us", "p99 us");
+		try {
+			for (int batch : batchSizes) {
+				// Warm up server and clients
+				run(address, keys, clientCounts[clientCounts.length - 1], batch, depth, writePercent, millis / 2);
+				for (int clients : clientCounts) {
+					Result result = run(address, keys, clients, batch, depth, writePercent, millis);
+					System.out.printf("%-10d %7d %6d %6d %6d%% %14.0f %10.1f %10.1f%n", size, clients, batch, depth,
+							writePercent, result.opsPerSecond, result.p50Micros, result.p99Micros);
+				}
+			}
+		} finally {
+			server.close();
+			serverThread.join();
+		}
+		System.out.println("sink " + EventTreeBenchmark.sink);
+	}
+
+	private static int[] parseList(String value) {
+
+		String[] parts = value.split(",");
+		int[] list = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			list[i] = Integer.parseInt(parts[i]);
+		}
+		return list;
+	}
+
+	static class Result {
+		double opsPerSecond;
+		double p50Micros;
+		double p99Micros;
+	}
+
+	/**
+	 * Runs 'clients' connections for 'millis', each sending batches of
+	 * 'batch' operations and keeping 'depth' of them in flight
+	 */
+	static Result run(final InetSocketAddress address, final int[] keys, int clients, final int batch,
+			final int depth, final int writePercent, long millis) throws Exception {
+
+		final AtomicBoolean stop = new AtomicBoolean();
+		final LongAdder ops = new LongAdder();
+		final CountDownLatch start = new CountDownLatch(1);
+		// Round trip times of each client, filled in when it stops
+		final long[][] latencies = new long[clients][0];
+		List<Thread> workers = new ArrayList<Thread>();
+
+		for (int c = 0; c < clients; c++) {
+			final int index = c;
+			final int offset = c * (keys.length / clients);
+			Thread worker = new Thread(() -> {
+				try (EventCounterClient client = new EventCounterClient(address)) {
+					EventCounterClient.Batch[] inFlight = new EventCounterClient.Batch[depth];
+					long[] sentAt = new long[depth];
+					int[] results = new int[batch];
+					long[] samples = new long[1 << 16];
+					int mask = keys.length - 1;
+					int i = offset;
+					int seed = offset | 1;
+					long done = 0;
+					long sum = 0;
+					int sampleCount = 0;
+					start.await();
+
+					// Fill the pipeline, then replace each answered batch with a new one
+					for (int slot = 0; ; slot = (slot + 1) % depth) {
+						if (inFlight[slot] != null) {
+							client.receive(inFlight[slot], results);
+							sum += results[0];
+							done += batch;
+							samples[sampleCount++ & (samples.length - 1)] = System.nanoTime() - sentAt[slot];
+						} else {
+							inFlight[slot] = new EventCounterClient.Batch();
+						}
+						if (stop.get()) {
+							// Drain what is still in flight
+							for (int k = 1; k < depth; k++) {
+								int pending = (slot + k) % depth;
+								if (inFlight[pending] != null) {
+									client.receive(inFlight[pending], results);
+								}
+							}
+							break;
+						}
+						EventCounterClient.Batch next = inFlight[slot].clear();
+						for (int j = 0; j < batch; j++) {
+							seed ^= seed << 13;
+							seed ^= seed >>> 17;
+							seed ^= seed << 5;
+							int choice = (seed & 0x7FFFFFFF) % 100;
+							int key = keys[i];
+							i = (i + 1) & mask;
+							if (choice < writePercent) {
+								if ((choice & 1) == 0) {
+									next.increase(key, 1);
+								} else {
+									next.reduce(key, 1);
+								}
+							} else if ((choice & 1) == 0) {
+								next.count(key);
+							} else {
+								next.inRange(key, key + 64);
+							}
+						}
+						sentAt[slot] = System.nanoTime();
+						client.send(next);
+						client.flush();
+					}
+					ops.add(done);
+					synchronized (ServerLoadGenerator.class) {
+						EventTreeBenchmark.sink += sum;
+					}
+					latencies[index] = Arrays.copyOf(samples, Math.min(sampleCount, samples.length));
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			});
+			workers.add(worker);
+			worker.start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		Thread.sleep(millis);
+		stop.set(true);
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		long elapsed = System.nanoTime() - begin;
+
+		long[] all = new long[0];
+		for (long[] samples : latencies) {
+			int from = all.length;
+			all = Arrays.copyOf(all, from + samples.length);
+			System.arraycopy(samples, 0, all, from, samples.length);
+		}
+		Arrays.sort(all);
+
+		Result result = new Result();
+		result.opsPerSecond = ops.sum() * 1e9 / elapsed;
+		result.p50Micros = (all.length == 0) ? 0 : all[(int) (all.length * 0.5)] / 1000.0;
+		result.p99Micros = (all.length == 0) ? 0 : all[(int) (all.length * 0.99)] / 1000.0;
+		return result;
+	}
+}
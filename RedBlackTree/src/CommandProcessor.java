@@ -0,0 +1,387 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Batch executor for console commands, with the same output as the
+ * interactive loop of bbst.
+ *
+ * Lines are split the way that loop splits them with readLine and
+ * split(" "): a line ends at \n, \r or \r\n, the command word is
+ * everything up to the first space and arguments are separated by single
+ * spaces, so lines with leading spaces or tabs are unknown commands and
+ * skipped. Only a line of just quit ends the input. A malformed argument,
+ * or a line of only spaces, stops the run after the commands before it,
+ * where the interactive loop fails with an exception. Unlike
+ * Integer.parseInt, numbers must be written with ASCII digits.
+ *
+ * The command stream is read as bytes in large blocks. Each chunk of up
+ * to CHUNK_COMMANDS commands is parsed straight into primitive arrays,
+ * without creating Strings, then executed and its results formatted into
+ * a byte buffer that is written out only when full. Output therefore
+ * lags input, which suits replaying command files but not interactive
+ * use.
+ *
+ * @author dhanusha
+ *
+ */
+public class CommandProcessor {
+
+	private static final int OP_INCREASE = 0;
+
+	private static final int OP_REDUCE = 1;
+
+	private static final int OP_COUNT = 2;
+
+	private static final int OP_IN_RANGE = 3;
+
+	private static final int OP_NEXT = 4;
+
+	private static final int OP_PREVIOUS = 5;
+
+	private static final int OP_QUIT = 6;
+
+	private static final int OP_METRICS = 7;
+
+	// Command words, indexed by opcode
+	private static final byte[][] WORDS = { bytes("increase"), bytes("reduce"), bytes("count"), bytes("inrange"),
+			bytes("next"), bytes("previous"), bytes("quit"), bytes("metrics") };
+
+	// Number of arguments, indexed by opcode
+	private static final int[] ARGUMENTS = { 2, 2, 1, 2, 1, 1, 0, 0 };
+
+	// Printed by the metrics command of a tree without metrics
+	static final String METRICS_DISABLED = "Metrics are disabled, start with -metrics";
+
+	private static final int CHUNK_COMMANDS = 4096;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	// Longest result line: two ints, a space and a line separator
+	private static final int MAX_RESULT_BYTES = 2 * 11 + 1 + 2;
+
+	private static final byte[] LINE_SEPARATOR = bytes(System.lineSeparator());
+
+	private final RedBlackEventTree tree;
+
+	private final InputStream in;
+
+	private final OutputStream out;
+
+	private final byte[] inBuffer = new byte[BUFFER_SIZE];
+
+	private int inPosition;
+
+	private int inLimit;
+
+	private final byte[] outBuffer = new byte[BUFFER_SIZE];
+
+	private int outPosition;
+
+	// Parsed commands of the current chunk
+	private final int[] ops = new int[CHUNK_COMMANDS];
+
+	private final int[] firstArguments = new int[CHUNK_COMMANDS];
+
+	private final int[] secondArguments = new int[CHUNK_COMMANDS];
+
+	// Command word of the line being parsed
+	private final byte[] word = new byte[16];
+
+	// Result of the last parseInt
+	private int parsedInt;
+
+	private long line;
+
+	// The last line ended with \r, so a \n right after it belongs to it
+	private boolean afterCarriageReturn;
+
+	private boolean finished;
+
+	// Malformed argument that ended the input, thrown after the commands
+	// before it have run
+	private IOException failure;
+
+	/**
+	 * Constructor
+	 * @param tree
+	 * @param in - commands, one per line, up to 'quit' or the end of stream
+	 * @param out - receives one result line per command
+	 */
+	public CommandProcessor(RedBlackEventTree tree, InputStream in, OutputStream out) {
+		this.tree = tree;
+		this.in = in;
+		this.out = out;
+	}
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Executes all commands and flushes the results. Unknown commands and
+	 * empty lines are skipped, like the interactive loop does.
+	 * @throws IOException if the streams fail or a command has a malformed
+	 * argument, with the line number in the message
+	 */
+	public void run() throws IOException {
+
+		while (!finished) {
+			int commands = parseChunk();
+			execute(commands);
+		}
+		flushOutput();
+		out.flush();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Parses up to CHUNK_COMMANDS commands
+	 * @return number of commands parsed
+	 * @throws IOException
+	 */
+	private int parseChunk() throws IOException {
+
+		int commands = 0;
+		while (commands < CHUNK_COMMANDS && !finished) {
+			line++;
+			int c = read();
+			if (afterCarriageReturn && c == '\n') {
+				c = read();
+			}
+			afterCarriageReturn = false;
+			if (c < 0) {
+				finished = true;
+				break;
+			}
+			int length = 0;
+			while (c != ' ' && !isLineEnd(c)) {
+				if (length < word.length) {
+					word[length] = (byte) c;
+				}
+				length++;
+				c = read();
+			}
+			if (length == 0 && c == ' ') {
+				// split(" ") leaves no words at all of a line of only spaces
+				while (c == ' ') {
+					c = read();
+				}
+				if (isLineEnd(c)) {
+					failure = new IOException("line " + line + ": expected command");
+					finished = true;
+					break;
+				}
+			}
+			int op = opcode(length);
+			if (op < 0 || (op == OP_QUIT && c == ' ')) {
+				skipLine(c);
+				continue;
+			}
+			if (op == OP_QUIT) {
+				finished = true;
+				break;
+			}
+			ops[commands] = op;
+			try {
+				if (ARGUMENTS[op] > 0) {
+					c = parseInt(c);
+					firstArguments[commands] = parsedInt;
+				}
+				if (ARGUMENTS[op] == 2) {
+					c = parseInt(c);
+					secondArguments[commands] = parsedInt;
+				}
+			} catch (IOException e) {
+				failure = e;
+				finished = true;
+				break;
+			}
+			commands++;
+			skipLine(c);
+		}
+		return commands;
+	}
+
+	/**
+	 * Finds the opcode of the command word in 'word'
+	 * @param length
+	 * @return opcode or -1 if unknown
+	 */
+	private int opcode(int length) {
+
+		for (int op = 0; op < WORDS.length; op++) {
+			byte[] candidate = WORDS[op];
+			if (candidate.length != length) {
+				continue;
+			}
+			int i = 0;
+			while (i < length && word[i] == candidate[i]) {
+				i++;
+			}
+			if (i == length) {
+				return op;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Parses the next argument, a decimal int with an optional sign like
+	 * Integer.parseInt, starting at the space before it
+	 * @param c - current byte
+	 * @return byte after the number
+	 * @throws IOException if there is no number, it overflows or it runs
+	 * into something other than a space or the line end
+	 */
+	private int parseInt(int c) throws IOException {
+
+		if (c != ' ') {
+			throw new IOException("line " + line + ": expected number");
+		}
+		c = read();
+		boolean negative = (c == '-');
+		if (negative || c == '+') {
+			c = read();
+		}
+		if (c < '0' || c > '9') {
+			throw new IOException("line " + line + ": expected number");
+		}
+		long value = 0;
+		while (c >= '0' && c <= '9') {
+			value = value * 10 + (c - '0');
+			if (value > 1L + Integer.MAX_VALUE) {
+				throw new IOException("line " + line + ": number out of range");
+			}
+			c = read();
+		}
+		if (c != ' ' && !isLineEnd(c)) {
+			throw new IOException("line " + line + ": expected number");
+		}
+		value = negative ? -value : value;
+		if (value > Integer.MAX_VALUE) {
+			throw new IOException("line " + line + ": number out of range");
+		}
+		parsedInt = (int) value;
+		return c;
+	}
+
+	/**
+	 * Checks for the end of a line or of the stream
+	 */
+	private static boolean isLineEnd(int c) {
+		return c == '\n' || c == '\r' || c < 0;
+	}
+
+	/**
+	 * Skips to the start of the next line, or finishes at the end of stream
+	 * @param c - current byte
+	 * @throws IOException
+	 */
+	private void skipLine(int c) throws IOException {
+		while (!isLineEnd(c)) {
+			c = read();
+		}
+		if (c < 0) {
+			finished = true;
+		}
+		afterCarriageReturn = (c == '\r');
+	}
+
+	private int read() throws IOException {
+
+		if (inPosition == inLimit) {
+			inLimit = in.read(inBuffer, 0, inBuffer.length);
+			inPosition = 0;
+			if (inLimit <= 0) {
+				inLimit = 0;
+				return -1;
+			}
+		}
+		// Unsigned, bytes from 0x80 up are not the end of stream
+		return inBuffer[inPosition++] & 0xFF;
+	}
+
+	/**
+	 * Runs the parsed commands of a chunk and formats their results
+	 * @param commands
+	 * @throws IOException
+	 */
+	private void execute(int commands) throws IOException {
+
+		for (int i = 0; i < commands; i++) {
+			if (outBuffer.length - outPosition < MAX_RESULT_BYTES) {
+				flushOutput();
+			}
+			int id = firstArguments[i];
+			long packed;
+			switch (ops[i]) {
+			case OP_INCREASE:
+				writeInt(tree.increase(id, secondArguments[i]));
+				break;
+			case OP_REDUCE:
+				writeInt(tree.reduce(id, secondArguments[i]));
+				break;
+			case OP_COUNT:
+				writeInt(tree.count(id));
+				break;
+			case OP_IN_RANGE:
+				writeInt(tree.inRange(id, secondArguments[i]));
+				break;
+			case OP_NEXT:
+				packed = tree.nextPacked(id);
+				writeInt(Event.packedEventId(packed));
+				outBuffer[outPosition++] = ' ';
+				writeInt(Event.packedCount(packed));
+				break;
+			case OP_PREVIOUS:
+				packed = tree.prevPacked(id);
+				writeInt(Event.packedEventId(packed));
+				outBuffer[outPosition++] = ' ';
+				writeInt(Event.packedCount(packed));
+				break;
+			case OP_METRICS:
+				// Multi line text, written out as is
+				EventTreeMetrics metrics = tree.getMetrics();
+				flushOutput();
+				out.write(bytes(metrics == null ? METRICS_DISABLED + System.lineSeparator() : metrics.dump()));
+				continue;
+			}
+			System.arraycopy(LINE_SEPARATOR, 0, outBuffer, outPosition, LINE_SEPARATOR.length);
+			outPosition += LINE_SEPARATOR.length;
+		}
+	}
+
+	/**
+	 * Formats 'value' in decimal into the output buffer
+	 * @param value
+	 */
+	private void writeInt(int value) {
+
+		long v = value;
+		if (v < 0) {
+			outBuffer[outPosition++] = '-';
+			v = -v;
+		}
+		int digits = 1;
+		for (long rest = v; rest >= 10; rest /= 10) {
+			digits++;
+		}
+		// Digits are produced backwards, then put in place
+		int end = outPosition + digits;
+		int position = end;
+		do {
+			outBuffer[--position] = (byte) ('0' + v % 10);
+			v /= 10;
+		} while (v != 0);
+		outPosition = end;
+	}
+
+	private void flushOutput() throws IOException {
+		out.write(outBuffer, 0, outPosition);
+		outPosition = 0;
+	}
+}
@@ -0,0 +1,417 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Thread safe event counter around a RedBlackEventTree.
+ *
+ * Structural changes (inserting or deleting a node, building the tree)
+ * take the write lock of a StampedLock. Queries first walk the tree under
+ * an optimistic read stamp and only fall back to the read lock if a
+ * structural change got in the way. Count only updates of existing events,
+ * the common case of increase and reduce, run under the shared read lock
+ * and change the count and the subtree counts of the ancestors atomically,
+ * so they run in parallel with each other and with queries.
+ *
+ * count, next and prev are linearizable. inRange sums each event exactly
+ * once in a single walk, so every concurrent count update is either fully
+ * included or not at all, but updates landing during the walk may be
+ * partially reflected, as with LongAdder.sum.
+ *
+ * The subtree max counts of the wrapped tree are not kept up to date by the
+ * lock free count updates, so topK is not offered here.
+ *
+ * @author dhanusha
+ *
+ */
+public class ConcurrentEventTree {
+
+	private static final VarHandle COUNT;
+
+	private static final VarHandle SUBTREE_COUNT;
+
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			COUNT = lookup.findVarHandle(RedBlackNode.class, "count", int.class);
+			SUBTREE_COUNT = lookup.findVarHandle(RedBlackNode.class, "subtreeCount", int.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	// Upper bound on the height of a red black tree with int keys,
+	// an optimistic walk taking more steps has seen a torn structure
+	private static final int MAX_STEPS = 2 * 32 + 2;
+
+	// Returned by optimistic walks that ran into an inconsistent structure
+	private static final RedBlackNode ABORTED = new RedBlackNode();
+
+	private final RedBlackEventTree tree = new RedBlackEventTree();
+
+	private final StampedLock lock = new StampedLock();
+
+	/**
+	 * Parses input file with sorted event data and builds the tree
+	 * @param filename
+	 */
+	public void buildTreeFromFile(String filename) {
+
+		long stamp = lock.writeLock();
+		try {
+			tree.buildTreeFromFile(filename);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Replaces contents with the first 'size' events of the given arrays,
+	 * see RedBlackEventTree.buildTreeFromSortedArrays
+	 * @param eventIds - in strictly increasing order
+	 * @param counts
+	 * @param size
+	 */
+	public void buildTreeFromSortedArrays(int[] eventIds, int[] counts, int size) {
+
+		long stamp = lock.writeLock();
+		try {
+			tree.buildTreeFromSortedArrays(eventIds, counts, size);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Increase count of event 'evId' by 'count', inserting it if not present
+	 * @param evId
+	 * @param count
+	 * @return - the new count of event
+	 */
+	public int increase(int evId, int count) {
+
+		long stamp = lock.readLock();
+		try {
+			RedBlackNode node = tree.findNode(evId);
+			if (node != null) {
+				// Count only update, structure is pinned by the read lock
+				int newCount = (int) COUNT.getAndAdd(node, count) + count;
+				addToAncestors(node, count);
+				return newCount;
+			}
+			stamp = toWriteLock(stamp);
+			return tree.increase(evId, count);
+		} finally {
+			lock.unlock(stamp);
+		}
+	}
+
+	/**
+	 * Reduce count of event 'evId' by 'count', deleting it if count drops to 0
+	 * @param evId
+	 * @param count
+	 * @return - the new count of event, or 0 if it doesn't exist/was removed
+	 */
+	public int reduce(int evId, int count) {
+
+		long stamp = lock.readLock();
+		try {
+			RedBlackNode node = tree.findNode(evId);
+			if (node == null) {
+				return 0;
+			}
+			int current = (int) COUNT.getVolatile(node);
+			while (current > count) {
+				if (COUNT.compareAndSet(node, current, current - count)) {
+					addToAncestors(node, -count);
+					return current - count;
+				}
+				current = (int) COUNT.getVolatile(node);
+			}
+			// Count drops to 0, the node has to go
+			stamp = toWriteLock(stamp);
+			return tree.reduce(evId, count);
+		} finally {
+			lock.unlock(stamp);
+		}
+	}
+
+	/**
+	 * Upgrades read lock 'stamp' to the write lock, releasing it first
+	 * if other readers hold it
+	 * @param stamp
+	 * @return write stamp
+	 */
+	private long toWriteLock(long stamp) {
+
+		long writeStamp = lock.tryConvertToWriteLock(stamp);
+		if (writeStamp != 0L) {
+			return writeStamp;
+		}
+		lock.unlockRead(stamp);
+		return lock.writeLock();
+	}
+
+	/**
+	 * Atomically adds 'delta' to the subtree counts of 'node' and its
+	 * ancestors, bottom up
+	 * @param node
+	 * @param delta
+	 */
+	private void addToAncestors(RedBlackNode node, int delta) {
+
+		while (!tree.isNil(node)) {
+			SUBTREE_COUNT.getAndAdd(node, delta);
+			node = node.parent;
+		}
+	}
+
+	/**
+	 * Find event 'evId' and return its count
+	 * @param evId
+	 */
+	public int count(int evId) {
+
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0L) {
+			RedBlackNode node = find(evId);
+			if (node != ABORTED) {
+				int count = (node == null) ? 0 : (int) COUNT.getVolatile(node);
+				if (lock.validate(stamp)) {
+					return count;
+				}
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			RedBlackNode node = find(evId);
+			return (node == null) ? 0 : (int) COUNT.getVolatile(node);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Gets event with next greater event Id after 'eventId'
+	 * @param eventId
+	 * @return next event or (0,0) if doesn't exist
+	 */
+	public Event next(int eventId) {
+		long packed = nextPacked(eventId);
+		return new Event(Event.packedEventId(packed), Event.packedCount(packed));
+	}
+
+	/**
+	 * Gets event with next greater event Id after 'eventId' packed into a
+	 * long, see Event.pack
+	 * @param eventId
+	 * @return packed next event or 0 if doesn't exist
+	 */
+	public long nextPacked(int eventId) {
+
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0L) {
+			long packed = neighbour(eventId, true);
+			if (packed != -1L && lock.validate(stamp)) {
+				return packed;
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			return neighbour(eventId, true);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Gets event with next smaller event id after 'eventId'
+	 * @param eventId
+	 * @return previous event or (0,0) if doesn't exist
+	 */
+	public Event prev(int eventId) {
+		long packed = prevPacked(eventId);
+		return new Event(Event.packedEventId(packed), Event.packedCount(packed));
+	}
+
+	/**
+	 * Gets event with next smaller event id after 'eventId' packed into a
+	 * long, see Event.pack
+	 * @param eventId
+	 * @return packed previous event or 0 if doesn't exist
+	 */
+	public long prevPacked(int eventId) {
+
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0L) {
+			long packed = neighbour(eventId, false);
+			if (packed != -1L && lock.validate(stamp)) {
+				return packed;
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			return neighbour(eventId, false);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Finds the total count of events whose event Id's are in the range
+	 * (id1,id2) both inclusive
+	 * @param id1
+	 * @param id2
+	 * @return
+	 */
+	public int inRange(int id1, int id2) {
+
+		if (id1 > id2) {
+			return 0;
+		}
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0L) {
+			long sum = rangeSum(id1, id2);
+			if (sum != -1L && lock.validate(stamp)) {
+				return (int) sum;
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			return (int) rangeSum(id1, id2);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Searches for node of event 'evId', tolerating a concurrently
+	 * changing structure
+	 * @param evId
+	 * @return node, null if not found, or ABORTED
+	 */
+	private RedBlackNode find(int evId) {
+
+		RedBlackNode ptr = tree.getRoot();
+		for (int steps = 0; steps < MAX_STEPS; steps++) {
+			if (ptr == null) {
+				// Node caught half way through being linked in
+				return ABORTED;
+			}
+			if (tree.isNil(ptr)) {
+				return null;
+			}
+			int id = ptr.eventId;
+			if (id == evId) {
+				return ptr;
+			}
+			ptr = (id < evId) ? ptr.rightChild : ptr.leftChild;
+		}
+		return ABORTED;
+	}
+
+	/**
+	 * Finds the next greater (or smaller) event than 'eventId',
+	 * tolerating a concurrently changing structure
+	 * @param eventId
+	 * @param greater
+	 * @return packed event, 0 if none, or -1 if aborted
+	 */
+	private long neighbour(int eventId, boolean greater) {
+
+		RedBlackNode ptr = tree.getRoot();
+		RedBlackNode found = null;
+		for (int steps = 0; steps < MAX_STEPS; steps++) {
+			if (ptr == null) {
+				return -1L;
+			}
+			if (tree.isNil(ptr)) {
+				return (found == null) ? 0L : Event.pack(found.eventId, (int) COUNT.getVolatile(found));
+			}
+			if (greater ? ptr.eventId > eventId : ptr.eventId < eventId) {
+				found = ptr;
+				ptr = greater ? ptr.leftChild : ptr.rightChild;
+			} else {
+				ptr = greater ? ptr.rightChild : ptr.leftChild;
+			}
+		}
+		return -1L;
+	}
+
+	/**
+	 * Sums counts in [lo, hi] in one walk: down to the node where the
+	 * paths to lo and hi split, then along both paths, adding each node and
+	 * subtree that lies inside the range exactly once
+	 * @param lo
+	 * @param hi
+	 * @return sum, or -1 if aborted
+	 */
+	private long rangeSum(int lo, int hi) {
+
+		// Three walks of at most the tree height each
+		int maxSteps = 3 * MAX_STEPS;
+
+		RedBlackNode split = tree.getRoot();
+		int steps = 0;
+		while (true) {
+			if (split == null || ++steps > maxSteps) {
+				return -1L;
+			}
+			if (tree.isNil(split)) {
+				return 0L;
+			}
+			if (split.eventId < lo) {
+				split = split.rightChild;
+			} else if (split.eventId > hi) {
+				split = split.leftChild;
+			} else {
+				break;
+			}
+		}
+
+		long sum = (int) COUNT.getVolatile(split);
+
+		// Left path: nodes >= lo, with their right subtrees
+		RedBlackNode ptr = split.leftChild;
+		while (true) {
+			if (ptr == null || ++steps > maxSteps) {
+				return -1L;
+			}
+			if (tree.isNil(ptr)) {
+				break;
+			}
+			if (ptr.eventId >= lo) {
+				RedBlackNode right = ptr.rightChild;
+				if (right == null) {
+					return -1L;
+				}
+				sum += (int) COUNT.getVolatile(ptr) + (int) SUBTREE_COUNT.getVolatile(right);
+				ptr = ptr.leftChild;
+			} else {
+				ptr = ptr.rightChild;
+			}
+		}
+
+		// Right path: nodes <= hi, with their left subtrees
+		ptr = split.rightChild;
+		while (true) {
+			if (ptr == null || ++steps > maxSteps) {
+				return -1L;
+			}
+			if (tree.isNil(ptr)) {
+				break;
+			}
+			if (ptr.eventId <= hi) {
+				RedBlackNode left = ptr.leftChild;
+				if (left == null) {
+					return -1L;
+				}
+				sum += (int) COUNT.getVolatile(ptr) + (int) SUBTREE_COUNT.getVolatile(left);
+				ptr = ptr.rightChild;
+			} else {
+				ptr = ptr.leftChild;
+			}
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,489 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * RedBlackEventTree whose increase and reduce survive a crash, through a
+ * write ahead log next to a binary snapshot in one directory.
+ *
+ * Every call of increase and reduce is appended to the log as an
+ * (operation, event id, count) record and replayed as the same call.
+ * Records are collected in memory and written as one group with a length
+ * and CRC32C header, and the log is fsynced at most every 'syncMillis'
+ * (group commit), so a crash loses at most the changes of the last
+ * interval, never a partial group. checkpoint() folds the log into a
+ * fresh snapshot and starts an empty log.
+ *
+ * A failed fsync, in the background or in sync(), is kept: every later
+ * increase, reduce, sync and checkpoint throws it, as the log can no
+ * longer be trusted to hold the changes.
+ *
+ * Files are 'snapshot-N' and 'wal-N' for generation N. open() loads the
+ * newest snapshot, replays its log up to the last complete group and
+ * removes older generations.
+ *
+ * All methods are synchronized.
+ *
+ * @author dhanusha
+ *
+ */
+public class DurableEventTree {
+
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+
+	private static final String WAL_PREFIX = "wal-";
+
+	// Log file header: magic "RBTL" and format version
+	private static final int LOG_MAGIC = 0x5242544C;
+
+	private static final int LOG_VERSION = 2;
+
+	private static final int LOG_HEADER_BYTES = 8;
+
+	// Bytes of a log record: operation, event id and count
+	private static final int RECORD_BYTES = 9;
+
+	// Operations of log records
+	private static final byte OP_INCREASE = 1;
+
+	private static final byte OP_REDUCE = 2;
+
+	// Bytes of a group header: payload length and CRC32C of payload
+	private static final int GROUP_HEADER_BYTES = 8;
+
+	private static final int DEFAULT_GROUP_BYTES = 1 << 16;
+
+	private static final long DEFAULT_SYNC_MILLIS = 10;
+
+	private final RedBlackEventTree tree = new RedBlackEventTree();
+
+	private final Path dir;
+
+	private final long syncNanos;
+
+	// Header space followed by the records of the open group
+	private final ByteBuffer group;
+
+	private final CRC32C crc = new CRC32C();
+
+	private final ScheduledExecutorService syncer;
+
+	private FileChannel wal;
+
+	private long generation;
+
+	private long lastSync = System.nanoTime();
+
+	// Groups written since the last fsync
+	private boolean unsynced;
+
+	// First failure to write or force the log in sync(), rethrown by all
+	// later changes
+	private IOException syncFailure;
+
+	/**
+	 * Opens the tree in 'dir' with a 10 ms sync interval, see
+	 * open(Path, long, int)
+	 * @param dir
+	 * @return
+	 * @throws IOException
+	 */
+	public static DurableEventTree open(Path dir) throws IOException {
+		return open(dir, DEFAULT_SYNC_MILLIS, DEFAULT_GROUP_BYTES);
+	}
+
+	/**
+	 * Opens the tree in 'dir', creating it empty if 'dir' has no files yet,
+	 * and recovers its contents from the newest snapshot and log
+	 * @param dir
+	 * @param syncMillis - longest time a change stays unsynced, 0 syncs every change
+	 * @param groupBytes - size of the in memory group, written when full
+	 * @return
+	 * @throws IOException if the directory can not be read or the snapshot is corrupt
+	 */
+	public static DurableEventTree open(Path dir, long syncMillis, int groupBytes) throws IOException {
+
+		DurableEventTree durable = new DurableEventTree(dir, syncMillis, groupBytes);
+		durable.recover();
+		if (syncMillis > 0) {
+			// Syncs the tail of the log when no more changes come in
+			durable.syncer.scheduleWithFixedDelay(() -> {
+				try {
+					durable.syncIfDue();
+				} catch (IOException e) {
+					// Kept in syncFailure, the next change throws it
+				}
+			}, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+		}
+		return durable;
+	}
+
+	private DurableEventTree(Path dir, long syncMillis, int groupBytes) throws IOException {
+
+		if (groupBytes < GROUP_HEADER_BYTES + RECORD_BYTES) {
+			throw new IllegalArgumentException("groupBytes too small");
+		}
+		Files.createDirectories(dir);
+		this.dir = dir;
+		this.syncNanos = TimeUnit.MILLISECONDS.toNanos(syncMillis);
+		this.group = ByteBuffer.allocateDirect(groupBytes);
+		group.position(GROUP_HEADER_BYTES);
+		syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "wal-sync " + dir);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Loads the newest snapshot, replays its log and drops older generations
+	 * @throws IOException
+	 */
+	private void recover() throws IOException {
+
+		generation = -1;
+		long newestLog = -1;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				long snapshotGeneration = generationOf(file, SNAPSHOT_PREFIX);
+				generation = Math.max(generation, snapshotGeneration);
+				newestLog = Math.max(newestLog, generationOf(file, WAL_PREFIX));
+			}
+		}
+		if (generation >= 0) {
+			tree.loadSnapshot(dir.resolve(SNAPSHOT_PREFIX + generation));
+		} else {
+			// No checkpoint yet, the log of generation 0 holds everything
+			generation = 0;
+		}
+		if (newestLog > generation) {
+			throw new IOException("Log " + WAL_PREFIX + newestLog + " in " + dir + " has no snapshot");
+		}
+
+		Path log = dir.resolve(WAL_PREFIX + generation);
+		wal = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long end = replay(wal);
+		// Drop a torn last group, the log continues after the last good one
+		wal.truncate(end);
+		wal.position(end);
+		wal.force(true);
+
+		deleteOlderGenerations();
+	}
+
+	/**
+	 * Applies all complete groups of 'channel' to the tree. A new log, or
+	 * one torn while its header was written, gets a fresh header.
+	 * @param channel
+	 * @return offset after the last complete group
+	 * @throws IOException if the log is of another format
+	 */
+	private long replay(FileChannel channel) throws IOException {
+
+		long size = channel.size();
+		ByteBuffer header = ByteBuffer.allocate(Math.max(LOG_HEADER_BYTES, GROUP_HEADER_BYTES));
+		if (size < LOG_HEADER_BYTES) {
+			writeLogHeader(channel);
+			return LOG_HEADER_BYTES;
+		}
+		header.limit(LOG_HEADER_BYTES);
+		channel.read(header, 0);
+		header.flip();
+		if (header.getInt() != LOG_MAGIC || header.getInt() != LOG_VERSION) {
+			throw new IOException(dir + ": log is not of version " + LOG_VERSION);
+		}
+
+		long position = LOG_HEADER_BYTES;
+		ByteBuffer payload = ByteBuffer.allocate(0);
+
+		while (position + GROUP_HEADER_BYTES <= size) {
+			header.clear().limit(GROUP_HEADER_BYTES);
+			channel.read(header, position);
+			header.flip();
+			int length = header.getInt();
+			int checksum = header.getInt();
+			if (length <= 0 || length % RECORD_BYTES != 0 || position + GROUP_HEADER_BYTES + length > size) {
+				break;
+			}
+			if (payload.capacity() < length) {
+				payload = ByteBuffer.allocate(length);
+			}
+			payload.clear().limit(length);
+			channel.read(payload, position + GROUP_HEADER_BYTES);
+			payload.flip();
+			crc.reset();
+			crc.update(payload.duplicate());
+			if ((int) crc.getValue() != checksum) {
+				break;
+			}
+			while (payload.hasRemaining()) {
+				byte op = payload.get();
+				int evId = payload.getInt();
+				int count = payload.getInt();
+				if (op == OP_INCREASE) {
+					tree.increase(evId, count);
+				} else if (op == OP_REDUCE) {
+					tree.reduce(evId, count);
+				} else {
+					throw new IOException(dir + ": unknown log operation " + op);
+				}
+			}
+			position += GROUP_HEADER_BYTES + length;
+		}
+		return position;
+	}
+
+	/**
+	 * Starts 'channel' over as an empty log
+	 * @throws IOException
+	 */
+	private static void writeLogHeader(FileChannel channel) throws IOException {
+
+		ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_BYTES);
+		header.putInt(LOG_MAGIC).putInt(LOG_VERSION).flip();
+		channel.truncate(0);
+		while (header.hasRemaining()) {
+			channel.write(header, header.position());
+		}
+	}
+
+	/**
+	 * Parses generation number of 'file' if its name starts with 'prefix'
+	 * @return generation, or -1 if the name does not match
+	 */
+	private static long generationOf(Path file, String prefix) {
+
+		String name = file.getFileName().toString();
+		if (!name.startsWith(prefix)) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(name.substring(prefix.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Replaces contents with the sorted events of input file 'path' and
+	 * checkpoints them
+	 * @param path
+	 * @throws IOException
+	 */
+	public synchronized void loadFromFile(Path path) throws IOException {
+
+		tree.loadFromFile(path);
+		// Changes logged so far are superseded by the new contents
+		group.clear().position(GROUP_HEADER_BYTES);
+		checkpoint();
+	}
+
+	/**
+	 * Increase count of event 'evId' by 'count', inserting it if not present
+	 * @param evId
+	 * @param count
+	 * @return - the new count of event
+	 * @throws IOException if the log can not be written
+	 */
+	public synchronized int increase(int evId, int count) throws IOException {
+
+		append(OP_INCREASE, evId, count);
+		return tree.increase(evId, count);
+	}
+
+	/**
+	 * Reduce count of event 'evId' by 'count', deleting it if count drops to 0
+	 * @param evId
+	 * @param count
+	 * @return - the new count of event, or 0 if it doesn't exist/was removed
+	 * @throws IOException if the log can not be written
+	 */
+	public synchronized int reduce(int evId, int count) throws IOException {
+
+		append(OP_REDUCE, evId, count);
+		return tree.reduce(evId, count);
+	}
+
+	public synchronized int count(int evId) {
+		return tree.count(evId);
+	}
+
+	public synchronized int inRange(int id1, int id2) {
+		return tree.inRange(id1, id2);
+	}
+
+	public synchronized Event next(int eventId) {
+		return tree.next(eventId);
+	}
+
+	public synchronized Event prev(int eventId) {
+		return tree.prev(eventId);
+	}
+
+	/**
+	 * Adds a record to the open group, writing the group out when full
+	 * and syncing when the interval is over
+	 * @param op - OP_INCREASE or OP_REDUCE
+	 * @param evId
+	 * @param count - argument of the call, as given
+	 * @throws IOException if the record can not be written or an earlier
+	 * sync failed
+	 */
+	private void append(byte op, int evId, int count) throws IOException {
+
+		checkSyncFailure();
+		if (group.remaining() < RECORD_BYTES) {
+			writeGroup();
+		}
+		group.put(op).putInt(evId).putInt(count);
+		if (System.nanoTime() - lastSync >= syncNanos) {
+			sync();
+		}
+	}
+
+	/**
+	 * Writes the open group to the log, without syncing
+	 * @throws IOException
+	 */
+	private void writeGroup() throws IOException {
+
+		int length = group.position() - GROUP_HEADER_BYTES;
+		if (length == 0) {
+			return;
+		}
+		group.flip();
+		group.position(GROUP_HEADER_BYTES);
+		crc.reset();
+		crc.update(group);
+		group.putInt(0, length);
+		group.putInt(4, (int) crc.getValue());
+		group.position(0);
+		while (group.hasRemaining()) {
+			wal.write(group);
+		}
+		group.clear().position(GROUP_HEADER_BYTES);
+		unsynced = true;
+	}
+
+	/**
+	 * Writes the open group and forces the log to disk, making every
+	 * change so far durable
+	 * @throws IOException
+	 */
+	public synchronized void sync() throws IOException {
+
+		checkSyncFailure();
+		try {
+			writeGroup();
+			if (unsynced) {
+				wal.force(false);
+				unsynced = false;
+			}
+		} catch (IOException e) {
+			syncFailure = e;
+			throw e;
+		}
+		lastSync = System.nanoTime();
+	}
+
+	/**
+	 * @throws IOException if an earlier sync failed
+	 */
+	private void checkSyncFailure() throws IOException {
+		if (syncFailure != null) {
+			throw new IOException("An earlier sync of the log failed, changes may not be durable", syncFailure);
+		}
+	}
+
+	private synchronized void syncIfDue() throws IOException {
+
+		if (wal.isOpen() && System.nanoTime() - lastSync >= syncNanos) {
+			sync();
+		}
+	}
+
+	/**
+	 * Folds the log into a new snapshot: writes the current contents as
+	 * generation N+1, starts its empty log and deletes generation N
+	 * @throws IOException
+	 */
+	public synchronized void checkpoint() throws IOException {
+
+		sync();
+		long next = generation + 1;
+
+		// Written under a temporary name so a crash never leaves a partial snapshot
+		Path snapshot = dir.resolve(SNAPSHOT_PREFIX + next);
+		Path temp = dir.resolve(SNAPSHOT_PREFIX + next + ".tmp");
+		tree.saveSnapshot(temp);
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+		Files.move(temp, snapshot, StandardCopyOption.ATOMIC_MOVE);
+
+		FileChannel nextWal = FileChannel.open(dir.resolve(WAL_PREFIX + next), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		writeLogHeader(nextWal);
+		nextWal.position(LOG_HEADER_BYTES);
+		nextWal.force(true);
+		syncDirectory();
+
+		wal.close();
+		wal = nextWal;
+		generation = next;
+		deleteOlderGenerations();
+	}
+
+	/**
+	 * Deletes snapshots, logs and temporary files of older generations
+	 * @throws IOException
+	 */
+	private void deleteOlderGenerations() throws IOException {
+
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				long fileGeneration = Math.max(generationOf(file, SNAPSHOT_PREFIX), generationOf(file, WAL_PREFIX));
+				if (name.endsWith(".tmp") || (fileGeneration >= 0 && fileGeneration < generation)) {
+					Files.delete(file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Makes renames and new files in the directory durable
+	 * @throws IOException
+	 */
+	private void syncDirectory() throws IOException {
+
+		try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// Not every platform can open a directory, the rename is atomic anyway
+		}
+	}
+
+	/**
+	 * Syncs the log and releases the files, the directory can be opened again
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+
+		syncer.shutdown();
+		try {
+			sync();
+		} finally {
+			wal.close();
+		}
+	}
+}
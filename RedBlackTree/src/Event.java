@@ -38,6 +38,33 @@ public class Event {
 		this.count = count;
 	}
 
+	/**
+	 * Packs an event into a long, id in the high and count in the low 32 bits,
+	 * so results can be returned without allocating an Event
+	 * @param evtId
+	 * @param cnt
+	 * @return
+	 */
+	public static long pack(int evtId, int cnt) {
+		return ((long) evtId << 32) | (cnt & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @param packed - event packed by pack
+	 * @return event id of packed event
+	 */
+	public static int packedEventId(long packed) {
+		return (int) (packed >>> 32);
+	}
+
+	/**
+	 * @param packed - event packed by pack
+	 * @return count of packed event
+	 */
+	public static int packedCount(long packed) {
+		return (int) packed;
+	}
+
 	@Override
 	public String toString() {
 		return "Event Id: " + eventId + " Count: " + count;
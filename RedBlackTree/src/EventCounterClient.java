@@ -0,0 +1,235 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Blocking client for EventCounterServer.
+ *
+ * Operations are collected in a Batch, which goes to the server as one
+ * frame. send() and receive() are separate, so several batches can be in
+ * flight on one connection (pipelining); their results come back in the
+ * order they were sent. A client must not be shared between threads.
+ *
+ * @author dhanusha
+ *
+ */
+public class EventCounterClient implements Closeable {
+
+	private final SocketChannel channel;
+
+	private final ByteBuffer out = ByteBuffer.allocateDirect(1 << 16);
+
+	private final ByteBuffer in = ByteBuffer.allocateDirect(1 << 16);
+
+	// Batch for the single operation methods
+	private final Batch single = new Batch();
+
+	/**
+	 * Operations sent to the server in one frame
+	 */
+	public static final class Batch {
+
+		private ByteBuffer ops = ByteBuffer.allocate(256);
+
+		// Number of ints the response holds
+		private int resultInts;
+
+		public Batch increase(int evId, int count) {
+			return add(EventCounterServer.OP_INCREASE, evId, count, 1);
+		}
+
+		public Batch reduce(int evId, int count) {
+			return add(EventCounterServer.OP_REDUCE, evId, count, 1);
+		}
+
+		public Batch count(int evId) {
+			return add(EventCounterServer.OP_COUNT, evId, 1);
+		}
+
+		public Batch inRange(int id1, int id2) {
+			return add(EventCounterServer.OP_IN_RANGE, id1, id2, 1);
+		}
+
+		// Result is event id followed by count
+		public Batch next(int eventId) {
+			return add(EventCounterServer.OP_NEXT, eventId, 2);
+		}
+
+		// Result is event id followed by count
+		public Batch prev(int eventId) {
+			return add(EventCounterServer.OP_PREV, eventId, 2);
+		}
+
+		/**
+		 * Removes all operations so the batch can be reused
+		 */
+		public Batch clear() {
+			ops.clear();
+			resultInts = 0;
+			return this;
+		}
+
+		/**
+		 * Gets the number of ints receive() returns for this batch
+		 */
+		public int resultSize() {
+			return resultInts;
+		}
+
+		private Batch add(byte op, int argument, int results) {
+			room(5).put(op).putInt(argument);
+			resultInts += results;
+			return this;
+		}
+
+		private Batch add(byte op, int argument1, int argument2, int results) {
+			room(9).put(op).putInt(argument1).putInt(argument2);
+			resultInts += results;
+			return this;
+		}
+
+		private ByteBuffer room(int bytes) {
+			if (ops.remaining() < bytes) {
+				ByteBuffer larger = ByteBuffer.allocate(ops.capacity() * 2);
+				ops.flip();
+				larger.put(ops);
+				ops = larger;
+			}
+			return ops;
+		}
+	}
+
+	/**
+	 * Constructor : connects to the server at 'address'
+	 * @param address
+	 * @throws IOException
+	 */
+	public EventCounterClient(InetSocketAddress address) throws IOException {
+
+		channel = SocketChannel.open(address);
+		channel.socket().setTcpNoDelay(true);
+		in.flip();
+	}
+
+	/**
+	 * Queues 'batch' as one request frame, written out when the send
+	 * buffer fills up or on flush() or receive()
+	 * @param batch
+	 * @throws IOException
+	 */
+	public void send(Batch batch) throws IOException {
+
+		int length = batch.ops.position();
+		if (length > EventCounterServer.MAX_FRAME) {
+			throw new IllegalArgumentException("Batch too large");
+		}
+		if (out.remaining() < 4 + length) {
+			flush();
+		}
+		ByteBuffer ops = batch.ops.duplicate();
+		ops.flip();
+		out.putInt(length);
+		if (out.remaining() >= length) {
+			out.put(ops);
+		} else {
+			// Larger than the send buffer, written directly
+			flush();
+			while (ops.hasRemaining()) {
+				channel.write(ops);
+			}
+		}
+	}
+
+	/**
+	 * Writes all queued frames to the server
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+
+		out.flip();
+		while (out.hasRemaining()) {
+			channel.write(out);
+		}
+		out.clear();
+	}
+
+	/**
+	 * Reads the response to the oldest batch sent and not yet received
+	 * @param batch - that batch, for its result size
+	 * @param results - receives batch.resultSize() ints
+	 * @throws IOException
+	 */
+	public void receive(Batch batch, int[] results) throws IOException {
+
+		flush();
+		int length = readInt();
+		if (length != 4 * batch.resultSize()) {
+			throw new IOException("Response of " + length + " bytes does not match batch");
+		}
+		for (int i = 0; i < batch.resultSize(); i++) {
+			results[i] = readInt();
+		}
+	}
+
+	private int readInt() throws IOException {
+
+		if (in.remaining() < 4) {
+			in.compact();
+			while (in.position() < 4) {
+				if (channel.read(in) < 0) {
+					throw new EOFException("Server closed the connection");
+				}
+			}
+			in.flip();
+		}
+		return in.getInt();
+	}
+
+	/**
+	 * Sends 'batch' and waits for its results
+	 * @param batch
+	 * @return results, see Batch.resultSize
+	 * @throws IOException
+	 */
+	public int[] execute(Batch batch) throws IOException {
+
+		int[] results = new int[batch.resultSize()];
+		send(batch);
+		receive(batch, results);
+		return results;
+	}
+
+	public int increase(int evId, int count) throws IOException {
+		return execute(single.clear().increase(evId, count))[0];
+	}
+
+	public int reduce(int evId, int count) throws IOException {
+		return execute(single.clear().reduce(evId, count))[0];
+	}
+
+	public int count(int evId) throws IOException {
+		return execute(single.clear().count(evId))[0];
+	}
+
+	public int inRange(int id1, int id2) throws IOException {
+		return execute(single.clear().inRange(id1, id2))[0];
+	}
+
+	public Event next(int eventId) throws IOException {
+		int[] result = execute(single.clear().next(eventId));
+		return new Event(result[0], result[1]);
+	}
+
+	public Event prev(int eventId) throws IOException {
+		int[] result = execute(single.clear().prev(eventId));
+		return new Event(result[0], result[1]);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
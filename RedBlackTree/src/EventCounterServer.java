@@ -0,0 +1,331 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * Serves one RedBlackEventTree to many clients over TCP.
+ *
+ * A single NIO selector thread owns the tree, so operations need no
+ * locking and run in the order their requests arrive. The protocol is
+ * binary and big endian. A request frame is an int payload length
+ * followed by any number of operations, each an opcode byte and its int
+ * arguments:
+ *
+ *   OP_INCREASE id count, OP_REDUCE id count, OP_COUNT id,
+ *   OP_IN_RANGE id1 id2, OP_NEXT id, OP_PREV id
+ *
+ * Every request frame gets one response frame, an int payload length
+ * followed by the results in order: one int for increase, reduce, count
+ * and inRange, event id and count for next and prev. Clients may send
+ * any number of frames before reading responses (pipelining). A malformed
+ * frame closes the connection.
+ *
+ * @author dhanusha
+ *
+ */
+public class EventCounterServer implements Closeable {
+
+	static final byte OP_INCREASE = 1;
+
+	static final byte OP_REDUCE = 2;
+
+	static final byte OP_COUNT = 3;
+
+	static final byte OP_IN_RANGE = 4;
+
+	static final byte OP_NEXT = 5;
+
+	static final byte OP_PREV = 6;
+
+	// Largest accepted request payload
+	static final int MAX_FRAME = 1 << 20;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	// Pending response bytes above which a connection is not read from
+	private static final int MAX_PENDING_OUTPUT = 4 * MAX_FRAME;
+
+	// Pause after a failed accept, so a lasting failure such as running out
+	// of file descriptors does not spin the selector loop
+	private static final long ACCEPT_RETRY_MILLIS = 100;
+
+	private final RedBlackEventTree tree;
+
+	private final Selector selector;
+
+	private final ServerSocketChannel serverChannel;
+
+	private final SelectionKey acceptKey;
+
+	// Time accepting resumes after a failed accept, 0 while accepting
+	private long acceptRetryAt;
+
+	private volatile boolean running = true;
+
+	/**
+	 * Per client buffers
+	 */
+	private static final class Connection {
+
+		ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		// Responses not yet written, in write mode
+		ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+	}
+
+	/**
+	 * Constructor : binds to 'address', use port 0 for any free port
+	 * @param tree - only used from the server thread from now on
+	 * @param address
+	 * @throws IOException
+	 */
+	public EventCounterServer(RedBlackEventTree tree, InetSocketAddress address) throws IOException {
+
+		this.tree = tree;
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(address, 1024);
+		serverChannel.configureBlocking(false);
+		acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Gets the port the server listens on
+	 */
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * Serves clients until close() is called
+	 * @throws IOException
+	 */
+	public void run() throws IOException {
+
+		while (running) {
+			if (acceptRetryAt == 0) {
+				selector.select();
+			} else {
+				selector.select(Math.max(1, acceptRetryAt - System.currentTimeMillis()));
+				if (System.currentTimeMillis() >= acceptRetryAt) {
+					acceptRetryAt = 0;
+					acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+				}
+			}
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid()) {
+					continue;
+				}
+				if (key == acceptKey) {
+					accept();
+					continue;
+				}
+				try {
+					if (key.isReadable()) {
+						read(key);
+					}
+					if (key.isValid() && key.isWritable()) {
+						write(key);
+					}
+				} catch (IOException e) {
+					// Client went away or sent a malformed frame
+					closeConnection(key);
+				}
+			}
+		}
+		for (SelectionKey key : selector.keys()) {
+			key.channel().close();
+		}
+		selector.close();
+	}
+
+	/**
+	 * Stops the server, the run() loop closes all connections
+	 */
+	@Override
+	public void close() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Accepts a pending client. A failed accept is logged and accepting
+	 * pauses for ACCEPT_RETRY_MILLIS, the listener stays open.
+	 */
+	private void accept() {
+
+		SocketChannel channel;
+		try {
+			channel = serverChannel.accept();
+		} catch (IOException e) {
+			System.err.println("Accept failed: " + e.getMessage());
+			acceptKey.interestOps(0);
+			acceptRetryAt = System.currentTimeMillis() + ACCEPT_RETRY_MILLIS;
+			return;
+		}
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			channel.register(selector, SelectionKey.OP_READ, new Connection());
+		} catch (IOException e) {
+			// Client went away before it was set up
+			try {
+				channel.close();
+			} catch (IOException closeFailure) {
+				// Already gone
+			}
+		}
+	}
+
+	private void closeConnection(SelectionKey key) {
+
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// Already gone
+		}
+	}
+
+	/**
+	 * Reads what the client sent, executes every complete frame and
+	 * writes the responses
+	 * @param key
+	 * @throws IOException
+	 */
+	private void read(SelectionKey key) throws IOException {
+
+		SocketChannel channel = (SocketChannel) key.channel();
+		Connection connection = (Connection) key.attachment();
+
+		if (channel.read(connection.in) < 0) {
+			closeConnection(key);
+			return;
+		}
+		ByteBuffer in = connection.in;
+		in.flip();
+		while (in.remaining() >= 4) {
+			int length = in.getInt(in.position());
+			if (length < 0 || length > MAX_FRAME) {
+				throw new IOException("Bad frame length " + length);
+			}
+			if (in.remaining() < 4 + length) {
+				break;
+			}
+			in.position(in.position() + 4);
+			execute(connection, in, in.position() + length);
+		}
+		in.compact();
+
+		if (!in.hasRemaining()) {
+			// A frame larger than the buffer is pending
+			ByteBuffer larger = ByteBuffer.allocateDirect(Math.min(in.capacity() * 2, MAX_FRAME + 4));
+			in.flip();
+			larger.put(in);
+			connection.in = larger;
+		}
+		write(key);
+	}
+
+	/**
+	 * Executes the operations of one frame, from the position of 'in' to
+	 * 'end', and appends their response frame
+	 * @param connection
+	 * @param in
+	 * @param end
+	 * @throws IOException if an operation is malformed
+	 */
+	private void execute(Connection connection, ByteBuffer in, int end) throws IOException {
+
+		// Results never take more than twice the bytes of their operations
+		ByteBuffer out = reserve(connection, 4 + 2 * (end - in.position()));
+		int start = out.position();
+		out.putInt(0);
+
+		while (in.position() < end) {
+			byte op = in.get();
+			int arguments = (op == OP_INCREASE || op == OP_REDUCE || op == OP_IN_RANGE) ? 2 : 1;
+			if (end - in.position() < 4 * arguments) {
+				throw new IOException("Truncated operation " + op);
+			}
+			switch (op) {
+			case OP_INCREASE:
+				out.putInt(tree.increase(in.getInt(), in.getInt()));
+				break;
+			case OP_REDUCE:
+				out.putInt(tree.reduce(in.getInt(), in.getInt()));
+				break;
+			case OP_COUNT:
+				out.putInt(tree.count(in.getInt()));
+				break;
+			case OP_IN_RANGE:
+				out.putInt(tree.inRange(in.getInt(), in.getInt()));
+				break;
+			case OP_NEXT:
+				out.putLong(tree.nextPacked(in.getInt()));
+				break;
+			case OP_PREV:
+				out.putLong(tree.prevPacked(in.getInt()));
+				break;
+			default:
+				throw new IOException("Unknown operation " + op);
+			}
+		}
+		out.putInt(start, out.position() - start - 4);
+	}
+
+	/**
+	 * Makes room for 'bytes' more bytes of responses
+	 * @return output buffer of 'connection'
+	 */
+	private static ByteBuffer reserve(Connection connection, int bytes) {
+
+		ByteBuffer out = connection.out;
+		if (out.remaining() < bytes) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes));
+			out.flip();
+			larger.put(out);
+			connection.out = out = larger;
+		}
+		return out;
+	}
+
+	/**
+	 * Writes pending responses, waiting for the socket to drain if they
+	 * do not fit, and stops reading from a client that does not read its
+	 * responses
+	 * @param key
+	 * @throws IOException
+	 */
+	private void write(SelectionKey key) throws IOException {
+
+		SocketChannel channel = (SocketChannel) key.channel();
+		Connection connection = (Connection) key.attachment();
+		ByteBuffer out = connection.out;
+
+		out.flip();
+		channel.write(out);
+		out.compact();
+
+		int pending = out.position();
+		if (pending == 0) {
+			key.interestOps(SelectionKey.OP_READ);
+		} else if (pending < MAX_PENDING_OUTPUT) {
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		} else {
+			key.interestOps(SelectionKey.OP_WRITE);
+		}
+	}
+}
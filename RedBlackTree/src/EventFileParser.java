@@ -0,0 +1,335 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parallel parser for the sorted event input file.
+ * First line holds the number of events, each following line an event id
+ * and its count. The file is memory mapped, split into chunks on line
+ * boundaries and the chunks are parsed concurrently on the fork join pool
+ * into primitive arrays, which are then merged in file order.
+ *
+ * @author dhanusha
+ *
+ */
+public class EventFileParser {
+
+	// Nominal chunk size, actual chunks end at the next line break
+	private static final long CHUNK_SIZE = 8 << 20;
+
+	/**
+	 * Events read from a file, in strictly increasing id order
+	 */
+	public static final class SortedEvents {
+
+		public final int[] eventIds;
+
+		public final int[] counts;
+
+		public final int size;
+
+		SortedEvents(int[] eventIds, int[] counts, int size) {
+			this.eventIds = eventIds;
+			this.counts = counts;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Parses event file 'path'
+	 *
+	 * @param path
+	 * @return events of the file
+	 * @throws IOException if the file can not be read, a line is malformed,
+	 * ids are not strictly increasing or the number of events does not
+	 * match the first line. The message holds the offending line number.
+	 */
+	public static SortedEvents parse(Path path) throws IOException {
+
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long fileSize = channel.size();
+
+			// First line: number of events
+			ChunkParser header = new ChunkParser(channel, 0, nextLineStart(channel, 0, fileSize), 1);
+			header.compute();
+			long declared = header.numbers[0];
+			if (header.error == null && (header.numberCount != 1 || declared < 0 || declared > Integer.MAX_VALUE)) {
+				header.error = "expected number of events";
+			}
+			if (header.error != null) {
+				throw new IOException(path + ":1: " + header.error);
+			}
+
+			// Split the rest into chunks that end on line breaks
+			List<ChunkParser> chunks = new ArrayList<ChunkParser>();
+			long start = header.end;
+			while (start < fileSize) {
+				long end = nextLineStart(channel, Math.min(start + CHUNK_SIZE, fileSize) - 1, fileSize);
+				chunks.add(new ChunkParser(channel, start, end, 2));
+				start = end;
+			}
+			ForkJoinTask.invokeAll(chunks);
+
+			// Report the first error in file order, including ids out of
+			// order across chunk borders
+			long total = 0;
+			long firstLine = 2;
+			ChunkParser previous = null;
+			for (ChunkParser chunk : chunks) {
+				if (chunk.failure != null) {
+					throw chunk.failure;
+				}
+				if (chunk.error != null) {
+					throw new IOException(path + ":" + (firstLine + chunk.errorLine) + ": " + chunk.error);
+				}
+				if (chunk.size > 0) {
+					if (previous != null && chunk.eventIds[0] <= previous.eventIds[previous.size - 1]) {
+						throw new IOException(path + ":" + (firstLine + chunk.firstEventLine)
+								+ ": event id " + chunk.eventIds[0] + " is not greater than previous id "
+								+ previous.eventIds[previous.size - 1]);
+					}
+					previous = chunk;
+				}
+				total += chunk.size;
+				firstLine += chunk.lines;
+			}
+			if (total != declared) {
+				throw new IOException(path + ": declared " + declared + " events but found " + total);
+			}
+
+			// Merge chunks in file order
+			int[] eventIds = new int[(int) total];
+			int[] counts = new int[(int) total];
+			int size = 0;
+			for (ChunkParser chunk : chunks) {
+				System.arraycopy(chunk.eventIds, 0, eventIds, size, chunk.size);
+				System.arraycopy(chunk.counts, 0, counts, size, chunk.size);
+				size += chunk.size;
+			}
+			return new SortedEvents(eventIds, counts, size);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Finds the start of the line following the first line break
+	 * at or after 'position'
+	 *
+	 * @param channel
+	 * @param position
+	 * @param fileSize
+	 * @return position after the line break, or fileSize if there is none
+	 * @throws IOException
+	 */
+	private static long nextLineStart(FileChannel channel, long position, long fileSize) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.allocate(256);
+		while (position < fileSize) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			for (int i = 0; i < read; i++) {
+				if (buffer.get(i) == '\n') {
+					return position + i + 1;
+				}
+			}
+			position += read;
+		}
+		return fileSize;
+	}
+
+	/**
+	 * Parses one chunk of lines into primitive arrays.
+	 * Errors are recorded with the line number relative to the chunk.
+	 */
+	private static class ChunkParser extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final FileChannel channel;
+
+		private final long start;
+
+		private final long end;
+
+		// Numbers expected per line
+		private final int numbersPerLine;
+
+		// Numbers of the line being parsed
+		private final long[] numbers = new long[2];
+
+		private int numberCount;
+
+		int[] eventIds = new int[0];
+
+		int[] counts = new int[0];
+
+		int size;
+
+		// Line breaks seen in the chunk
+		long lines;
+
+		// Line of the first event, relative to the chunk
+		long firstEventLine;
+
+		String error;
+
+		long errorLine;
+
+		IOException failure;
+
+		ChunkParser(FileChannel channel, long start, long end, int numbersPerLine) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+			this.numbersPerLine = numbersPerLine;
+		}
+
+		@Override
+		protected void compute() {
+
+			try {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+				if (numbersPerLine == 2) {
+					int capacity = (int) Math.min(Integer.MAX_VALUE - 8, (end - start) / 12 + 16);
+					eventIds = new int[capacity];
+					counts = new int[capacity];
+				}
+				parseLines(buffer);
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		/**
+		 * Parses all lines of 'buffer', stopping at the first error
+		 * @param buffer
+		 */
+		private void parseLines(MappedByteBuffer buffer) {
+
+			int limit = buffer.limit();
+			int pos = 0;
+
+			while (pos < limit) {
+				numberCount = 0;
+				while (true) {
+					// Skip blanks between numbers
+					while (pos < limit && isBlank(buffer.get(pos))) {
+						pos++;
+					}
+					if (pos == limit || buffer.get(pos) == '\n') {
+						break;
+					}
+					if (numberCount == numbersPerLine) {
+						fail("unexpected '" + (char) buffer.get(pos) + "' after " + numbersPerLine + " numbers");
+						return;
+					}
+					pos = parseNumber(buffer, pos, limit);
+					if (pos < 0) {
+						return;
+					}
+				}
+
+				if (numberCount == numbersPerLine) {
+					if (numbersPerLine == 2 && !addEvent()) {
+						return;
+					}
+				} else if (numberCount != 0 || numbersPerLine == 1) {
+					fail("expected " + numbersPerLine + " numbers but found " + numberCount);
+					return;
+				}
+				// Skip the line break
+				if (pos < limit) {
+					pos++;
+					lines++;
+				}
+			}
+		}
+
+		/**
+		 * Parses an optionally negative int at 'pos' into 'numbers'
+		 * @return position after the number, or -1 on error
+		 */
+		private int parseNumber(MappedByteBuffer buffer, int pos, int limit) {
+
+			boolean negative = false;
+			if (buffer.get(pos) == '-') {
+				negative = true;
+				pos++;
+			}
+			long value = 0;
+			int digits = 0;
+			while (pos < limit) {
+				byte c = buffer.get(pos);
+				if (c < '0' || c > '9') {
+					break;
+				}
+				value = value * 10 + (c - '0');
+				if (value > (long) Integer.MAX_VALUE + 1) {
+					fail("number out of int range");
+					return -1;
+				}
+				digits++;
+				pos++;
+			}
+			if (digits == 0 || (pos < limit && !isBlank(buffer.get(pos)) && buffer.get(pos) != '\n')) {
+				fail("malformed number");
+				return -1;
+			}
+			value = negative ? -value : value;
+			if (value > Integer.MAX_VALUE) {
+				fail("number out of int range");
+				return -1;
+			}
+			numbers[numberCount++] = value;
+			return pos;
+		}
+
+		/**
+		 * Appends the parsed event, checking order and count
+		 * @return false on error
+		 */
+		private boolean addEvent() {
+
+			int evid = (int) numbers[0];
+			int count = (int) numbers[1];
+			if (count < 0) {
+				fail("count must not be negative");
+				return false;
+			}
+			if (size > 0 && evid <= eventIds[size - 1]) {
+				fail("event id " + evid + " is not greater than previous id " + eventIds[size - 1]);
+				return false;
+			}
+			if (size == 0) {
+				firstEventLine = lines;
+			}
+			if (size == eventIds.length) {
+				eventIds = Arrays.copyOf(eventIds, size * 2);
+				counts = Arrays.copyOf(counts, size * 2);
+			}
+			eventIds[size] = evid;
+			counts[size] = count;
+			size++;
+			return true;
+		}
+
+		private void fail(String message) {
+			error = message;
+			errorLine = lines;
+		}
+
+		private static boolean isBlank(byte c) {
+			return c == ' ' || c == '\t' || c == '\r';
+		}
+	}
+}
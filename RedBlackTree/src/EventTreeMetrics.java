@@ -0,0 +1,294 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Operation latencies and structural counters of one RedBlackEventTree,
+ * see RedBlackEventTree.enableMetrics. Counters are LongAdders, so they
+ * can be read from any thread, for example over JMX once register() is
+ * called.
+ *
+ * The structural stats node count, black height and max depth are
+ * computed by walking the tree when asked for. Read them while the tree
+ * is not being changed, values taken during a change may be off.
+ *
+ * @author dhanusha
+ *
+ */
+public class EventTreeMetrics implements EventTreeMetricsMBean {
+
+	// Timed operations, indexes into 'latencies'
+	static final int INCREASE = 0;
+
+	static final int REDUCE = 1;
+
+	static final int COUNT = 2;
+
+	static final int IN_RANGE = 3;
+
+	static final int NEXT = 4;
+
+	static final int PREV = 5;
+
+	private static final String[] OPERATIONS = { "increase", "reduce", "count", "inRange", "next", "prev" };
+
+	private final RedBlackEventTree tree;
+
+	private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+
+	private final LongAdder inserts = new LongAdder();
+
+	private final LongAdder deletes = new LongAdder();
+
+	// Deletes by the operation that dropped a count to 0, together they
+	// make up 'deletes'
+	private final LongAdder reduceDeletes = new LongAdder();
+
+	private final LongAdder mergeDeletes = new LongAdder();
+
+	private final LongAdder batchDeletes = new LongAdder();
+
+	private final LongAdder insertRotations = new LongAdder();
+
+	// Recolor steps pushing a violation up: red uncle after insert,
+	// black sibling with black children after delete
+	private final LongAdder insertRecolors = new LongAdder();
+
+	private final LongAdder deleteRotations = new LongAdder();
+
+	private final LongAdder deleteRecolors = new LongAdder();
+
+	private ObjectName registeredName;
+
+	/**
+	 * Constructor
+	 * @param tree - measured tree, walked for the structural stats
+	 */
+	EventTreeMetrics(RedBlackEventTree tree) {
+		this.tree = tree;
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Records the latency of an operation
+	 * @param operation - INCREASE, REDUCE, ...
+	 * @param startNanos - System.nanoTime() when the operation started
+	 */
+	void record(int operation, long startNanos) {
+		latencies[operation].record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Records one insert and the rebalancing it took
+	 */
+	void recordInsert(int rotations, int recolors) {
+		inserts.increment();
+		if (rotations != 0) {
+			insertRotations.add(rotations);
+		}
+		if (recolors != 0) {
+			insertRecolors.add(recolors);
+		}
+	}
+
+	/**
+	 * Records one delete and the rebalancing it took
+	 */
+	void recordDelete(int rotations, int recolors) {
+		deletes.increment();
+		if (rotations != 0) {
+			deleteRotations.add(rotations);
+		}
+		if (recolors != 0) {
+			deleteRecolors.add(recolors);
+		}
+	}
+
+	void recordReduceDelete() {
+		reduceDeletes.increment();
+	}
+
+	void recordMergeDelete() {
+		mergeDeletes.increment();
+	}
+
+	void recordBatchDelete() {
+		batchDeletes.increment();
+	}
+
+	/**
+	 * Gets the latencies of an operation
+	 * @param operation - INCREASE, REDUCE, ...
+	 */
+	public LatencyHistogram getLatencies(int operation) {
+		return latencies[operation];
+	}
+
+	@Override
+	public int getNodeCount() {
+		return tree.nodeCount();
+	}
+
+	@Override
+	public int getBlackHeight() {
+		return tree.blackHeight();
+	}
+
+	@Override
+	public int getMaxDepth() {
+		return tree.maxDepth();
+	}
+
+	@Override
+	public long getInserts() {
+		return inserts.sum();
+	}
+
+	@Override
+	public long getDeletes() {
+		return deletes.sum();
+	}
+
+	@Override
+	public long getReduceDeletes() {
+		return reduceDeletes.sum();
+	}
+
+	@Override
+	public long getMergeDeletes() {
+		return mergeDeletes.sum();
+	}
+
+	@Override
+	public long getBatchDeletes() {
+		return batchDeletes.sum();
+	}
+
+	@Override
+	public double getRotationsPerInsert() {
+		return ratio(insertRotations, inserts);
+	}
+
+	@Override
+	public double getRecolorsPerInsert() {
+		return ratio(insertRecolors, inserts);
+	}
+
+	@Override
+	public double getRotationsPerDelete() {
+		return ratio(deleteRotations, deletes);
+	}
+
+	@Override
+	public double getRecolorsPerDelete() {
+		return ratio(deleteRecolors, deletes);
+	}
+
+	private static double ratio(LongAdder part, LongAdder whole) {
+		long total = whole.sum();
+		return (total == 0) ? 0 : part.sum() / (double) total;
+	}
+
+	@Override
+	public String getIncreaseLatency() {
+		return latencies[INCREASE].toString();
+	}
+
+	@Override
+	public String getReduceLatency() {
+		return latencies[REDUCE].toString();
+	}
+
+	@Override
+	public String getCountLatency() {
+		return latencies[COUNT].toString();
+	}
+
+	@Override
+	public String getInRangeLatency() {
+		return latencies[IN_RANGE].toString();
+	}
+
+	@Override
+	public String getNextLatency() {
+		return latencies[NEXT].toString();
+	}
+
+	@Override
+	public String getPrevLatency() {
+		return latencies[PREV].toString();
+	}
+
+	/**
+	 * All metrics, one per line
+	 */
+	@Override
+	public String dump() {
+
+		StringBuilder out = new StringBuilder();
+		String separator = System.lineSeparator();
+		out.append("nodes ").append(getNodeCount()).append(separator);
+		out.append("black height ").append(getBlackHeight()).append(separator);
+		out.append("max depth ").append(getMaxDepth()).append(separator);
+		out.append(String.format("inserts %d rotations/insert %.3f recolors/insert %.3f", getInserts(),
+				getRotationsPerInsert(), getRecolorsPerInsert())).append(separator);
+		out.append(String.format(
+				"deletes %d (by reduce %d merge %d applyBatch %d) rotations/delete %.3f recolors/delete %.3f",
+				getDeletes(), getReduceDeletes(), getMergeDeletes(), getBatchDeletes(), getRotationsPerDelete(),
+				getRecolorsPerDelete())).append(separator);
+		for (int i = 0; i < OPERATIONS.length; i++) {
+			out.append(OPERATIONS[i]).append(' ').append(latencies[i]).append(separator);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Zeroes all counters and latencies
+	 */
+	@Override
+	public void reset() {
+		for (LatencyHistogram histogram : latencies) {
+			histogram.reset();
+		}
+		inserts.reset();
+		deletes.reset();
+		reduceDeletes.reset();
+		mergeDeletes.reset();
+		batchDeletes.reset();
+		insertRotations.reset();
+		insertRecolors.reset();
+		deleteRotations.reset();
+		deleteRecolors.reset();
+	}
+
+	/**
+	 * Registers with the platform MBean server as
+	 * EventCounter:type=EventTreeMetrics,name='name'
+	 * @param name
+	 * @throws JMException if the name is taken or invalid
+	 */
+	public synchronized void register(String name) throws JMException {
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName objectName = new ObjectName("EventCounter:type=EventTreeMetrics,name=" + ObjectName.quote(name));
+		server.registerMBean(this, objectName);
+		registeredName = objectName;
+	}
+
+	/**
+	 * Unregisters from the platform MBean server, if registered
+	 * @throws JMException
+	 */
+	public synchronized void unregister() throws JMException {
+
+		if (registeredName != null) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+			registeredName = null;
+		}
+	}
+}
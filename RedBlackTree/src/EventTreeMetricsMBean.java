@@ -0,0 +1,49 @@
+/**
+ * JMX view of EventTreeMetrics. Latencies are one line summaries, see
+ * LatencyHistogram.toString.
+ *
+ * @author dhanusha
+ *
+ */
+public interface EventTreeMetricsMBean {
+
+	int getNodeCount();
+
+	int getBlackHeight();
+
+	int getMaxDepth();
+
+	long getInserts();
+
+	long getDeletes();
+
+	long getReduceDeletes();
+
+	long getMergeDeletes();
+
+	long getBatchDeletes();
+
+	double getRotationsPerInsert();
+
+	double getRecolorsPerInsert();
+
+	double getRotationsPerDelete();
+
+	double getRecolorsPerDelete();
+
+	String getIncreaseLatency();
+
+	String getReduceLatency();
+
+	String getCountLatency();
+
+	String getInRangeLatency();
+
+	String getNextLatency();
+
+	String getPrevLatency();
+
+	String dump();
+
+	void reset();
+}
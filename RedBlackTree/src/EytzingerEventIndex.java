@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Read only event counter for trees that are built once and then only
+ * queried, as the file given to bbst usually is.
+ *
+ * Event ids are stored in Eytzinger (breadth first) order: the children
+ * of slot k are slots 2k and 2k + 1. The search is a plain loop over one
+ * int array without pointers, its first levels share a few cache lines
+ * that stay cached, and the next comparison does not depend on loading
+ * a child pointer first. The bits of the final slot number record the
+ * turns taken, which give both the first event above the bound and the
+ * last one below it. Counts and the sums of counts of all smaller events
+ * are stored in the same order, so count, inRange, next and prev read
+ * nothing but the slots the search ends at.
+ *
+ * Changes are not supported. Rebuild from the changed events instead.
+ *
+ * @author dhanusha
+ *
+ */
+public class EytzingerEventIndex {
+
+	// Event ids in Eytzinger order, slot 0 unused
+	private int[] layout = new int[1];
+
+	private int[] counts = new int[1];
+
+	// Sum of counts of all events with smaller event ids than the slot's
+	private int[] sumsBelow = new int[1];
+
+	private int total;
+
+	private int size;
+
+	private int lookaheadSink;
+
+	/**
+	 * Replaces contents with the events of a sorted input file, see
+	 * RedBlackEventTree.loadFromFile
+	 * @param path
+	 * @throws IOException
+	 */
+	public void loadFromFile(Path path) throws IOException {
+
+		EventFileParser.SortedEvents events = EventFileParser.parse(path);
+		buildTreeFromSortedArrays(events.eventIds, events.counts, events.size);
+	}
+
+	/**
+	 * Replaces contents with the first 'size' events of the given arrays
+	 * @param eventIds - in strictly increasing order
+	 * @param counts
+	 * @param size
+	 */
+	public void buildTreeFromSortedArrays(int[] eventIds, int[] counts, int size) {
+
+		for (int i = 1; i < size; i++) {
+			if (eventIds[i] <= eventIds[i - 1]) {
+				throw new IllegalArgumentException("Event ids are not in increasing order at index " + i);
+			}
+		}
+		this.size = size;
+		layout = new int[size + 1];
+		this.counts = new int[size + 1];
+		sumsBelow = new int[size + 1];
+		total = 0;
+		fill(1, 0, eventIds, counts);
+	}
+
+	/**
+	 * Fills the subtree of slot 'k' in order, an in order walk of the
+	 * implicit tree visiting the events in sorted order
+	 * @param k
+	 * @param rank - index of the smallest event of the subtree
+	 * @param eventIds
+	 * @param eventCounts
+	 * @return index after the subtree
+	 */
+	private int fill(int k, int rank, int[] eventIds, int[] eventCounts) {
+
+		// Depth is log2(size), recursion is safe
+		if (k <= size) {
+			rank = fill(2 * k, rank, eventIds, eventCounts);
+			layout[k] = eventIds[rank];
+			counts[k] = eventCounts[rank];
+			sumsBelow[k] = total;
+			total += eventCounts[rank++];
+			rank = fill(2 * k + 1, rank, eventIds, eventCounts);
+		}
+		return rank;
+	}
+
+	/**
+	 * Walks down from the root, turning right at events with event id
+	 * < 'evId', or <= it if 'inclusive'
+	 * @return slot past the leaves, whose bits are the turns taken
+	 */
+	private int search(int evId, boolean inclusive) {
+
+		// Java has no prefetch, so each step also loads the first of the 16
+		// descendants four levels down, which share a cache line. That load
+		// does not hold up the comparisons, and by the time the search gets
+		// there the line is in cache.
+		int lookaheadLimit = size >>> 4;
+		int touched = 0;
+		int k = 1;
+		if (inclusive) {
+			while (k <= size) {
+				touched += layout[Math.min(k, lookaheadLimit) << 4];
+				k = 2 * k + ((layout[k] <= evId) ? 1 : 0);
+			}
+		} else {
+			while (k <= size) {
+				touched += layout[Math.min(k, lookaheadLimit) << 4];
+				k = 2 * k + ((layout[k] < evId) ? 1 : 0);
+			}
+		}
+		// Keeps the JIT from dropping the lookahead loads
+		lookaheadSink = touched;
+		return k;
+	}
+
+	/**
+	 * Slot of the last left turn, the first event past the bound, or 0
+	 */
+	private static int firstAbove(int k) {
+		return k >>> (Integer.numberOfTrailingZeros(~k) + 1);
+	}
+
+	/**
+	 * Slot of the last right turn, the last event within the bound, or 0
+	 */
+	private static int lastWithin(int k) {
+		return k >>> (Integer.numberOfTrailingZeros(k) + 1);
+	}
+
+	/**
+	 * Returns sum of counts of all events with event id less than 'evId'
+	 * (or equal to it, if 'inclusive')
+	 */
+	private int countBelow(int evId, boolean inclusive) {
+		int slot = firstAbove(search(evId, inclusive));
+		return (slot == 0) ? total : sumsBelow[slot];
+	}
+
+	/**
+	 * Find event 'evId' and return its count
+	 * @param evId
+	 */
+	public int count(int evId) {
+		int slot = firstAbove(search(evId, false));
+		return (slot != 0 && layout[slot] == evId) ? counts[slot] : 0;
+	}
+
+	/**
+	 * Finds the total count of events whose event Id's are in the range
+	 * (id1,id2) both inclusive
+	 *
+	 * @param id1
+	 * @param id2
+	 * @return
+	 */
+	public int inRange(int id1, int id2) {
+
+		if (id1 > id2) {
+			return 0;
+		}
+		return countBelow(id2, true) - countBelow(id1, false);
+	}
+
+	/**
+	 * Gets event with next greater event Id after 'eventId'
+	 * @param eventId
+	 * @return next event or (0,0) if doesn't exist
+	 */
+	public Event next(int eventId) {
+		long packed = nextPacked(eventId);
+		return new Event(Event.packedEventId(packed), Event.packedCount(packed));
+	}
+
+	/**
+	 * Gets event with next greater event Id after 'eventId' packed into a
+	 * long, see Event.pack
+	 * @param eventId
+	 * @return packed next event or 0 (packed (0,0)) if doesn't exist
+	 */
+	public long nextPacked(int eventId) {
+		int slot = firstAbove(search(eventId, true));
+		return (slot == 0) ? 0L : Event.pack(layout[slot], counts[slot]);
+	}
+
+	/**
+	 * Gets event with next smaller event id after 'eventId'
+	 * @param eventId
+	 * @return previous event or (0,0) if doesn't exist
+	 */
+	public Event prev(int eventId) {
+		long packed = prevPacked(eventId);
+		return new Event(Event.packedEventId(packed), Event.packedCount(packed));
+	}
+
+	/**
+	 * Gets event with next smaller event id after 'eventId' packed into a
+	 * long, see Event.pack
+	 * @param eventId
+	 * @return packed previous event or 0 (packed (0,0)) if doesn't exist
+	 */
+	public long prevPacked(int eventId) {
+		int slot = lastWithin(search(eventId, false));
+		return (slot == 0) ? 0L : Event.pack(layout[slot], counts[slot]);
+	}
+
+	/**
+	 * Number of events
+	 */
+	public int size() {
+		return size;
+	}
+}
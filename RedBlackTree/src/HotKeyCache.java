@@ -0,0 +1,172 @@
+import java.util.Arrays;
+
+/**
+ * Bounded map from event id to its RedBlackNode, letting a tree skip the
+ * search from the root for frequently used ids.
+ *
+ * The table is set associative: an id hashes to a set of WAYS slots,
+ * which is all a lookup probes. A full set evicts with CLOCK, sweeping
+ * a hand over its slots and evicting the first one not used since the
+ * last sweep. New entries start unreferenced, so ids seen once are the
+ * first to go and a burst of cold ids can not flush out the hot ones.
+ *
+ * The tree removes entries of nodes it unlinks, see RedBlackEventTree.
+ * Not thread safe, lookups update reference bits and counters.
+ *
+ * @author dhanusha
+ *
+ */
+public class HotKeyCache {
+
+	private static final int WAYS = 4;
+
+	private final int[] keys;
+
+	// Null for an empty slot
+	private final RedBlackNode[] nodes;
+
+	// CLOCK reference bit of each slot
+	private final boolean[] referenced;
+
+	// CLOCK hand of each set, the next way to consider for eviction
+	private final byte[] hands;
+
+	private final int setMask;
+
+	private long hits;
+
+	private long misses;
+
+	/**
+	 * Constructor : creates an empty cache of at least 'capacity' entries,
+	 * rounded up to a power of two
+	 * @param capacity
+	 */
+	public HotKeyCache(int capacity) {
+
+		int sets = Integer.highestOneBit(Math.max(1, (capacity + WAYS - 1) / WAYS));
+		if (sets * WAYS < capacity) {
+			sets <<= 1;
+		}
+		keys = new int[sets * WAYS];
+		nodes = new RedBlackNode[sets * WAYS];
+		referenced = new boolean[sets * WAYS];
+		hands = new byte[sets];
+		setMask = sets - 1;
+	}
+
+	/**
+	 * Index of the set of 'evId'
+	 */
+	private int setOf(int evId) {
+		int h = evId * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & setMask;
+	}
+
+	/**
+	 * Gets the node of 'evId'
+	 * @param evId
+	 * @return node, or null if not cached
+	 */
+	public RedBlackNode get(int evId) {
+
+		int base = setOf(evId) * WAYS;
+		for (int i = base; i < base + WAYS; i++) {
+			if (nodes[i] != null && keys[i] == evId) {
+				referenced[i] = true;
+				hits++;
+				return nodes[i];
+			}
+		}
+		misses++;
+		return null;
+	}
+
+	/**
+	 * Adds the node of 'evId', which must not be cached yet, evicting
+	 * another entry of its set if the set is full
+	 * @param evId
+	 * @param node
+	 */
+	public void put(int evId, RedBlackNode node) {
+
+		int set = setOf(evId);
+		int base = set * WAYS;
+		for (int i = base; i < base + WAYS; i++) {
+			if (nodes[i] == null) {
+				store(i, evId, node);
+				return;
+			}
+		}
+		// Give referenced entries a second chance, at most one full sweep
+		int hand = hands[set];
+		while (referenced[base + hand]) {
+			referenced[base + hand] = false;
+			hand = (hand + 1) % WAYS;
+		}
+		store(base + hand, evId, node);
+		hands[set] = (byte) ((hand + 1) % WAYS);
+	}
+
+	private void store(int slot, int evId, RedBlackNode node) {
+		keys[slot] = evId;
+		nodes[slot] = node;
+		referenced[slot] = false;
+	}
+
+	/**
+	 * Removes the entry of 'evId', if any
+	 * @param evId
+	 */
+	public void remove(int evId) {
+
+		int base = setOf(evId) * WAYS;
+		for (int i = base; i < base + WAYS; i++) {
+			if (nodes[i] != null && keys[i] == evId) {
+				nodes[i] = null;
+				referenced[i] = false;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Removes all entries, the hit and miss counts are kept
+	 */
+	public void clear() {
+		Arrays.fill(nodes, null);
+		Arrays.fill(referenced, false);
+	}
+
+	/**
+	 * Gets the number of entries the cache can hold
+	 */
+	public int capacity() {
+		return nodes.length;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Gets the fraction of lookups that found their node, 0 before the
+	 * first lookup
+	 */
+	public double getHitRate() {
+		long lookups = hits + misses;
+		return (lookups == 0) ? 0 : hits / (double) lookups;
+	}
+
+	/**
+	 * Resets the hit and miss counts
+	 */
+	public void resetStatistics() {
+		hits = 0;
+		misses = 0;
+	}
+}
@@ -0,0 +1,141 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed size histogram of latencies in nanoseconds, in the style of
+ * HdrHistogram: values below 32 get a bucket each, and every power of two
+ * above is split into SUB_BUCKETS linear buckets, so any recorded value
+ * is known to within 1/16 of itself. All 960 buckets fit 7.5KB and
+ * recording is one increment, whatever the value.
+ *
+ * @author dhanusha
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKETS = 16;
+
+	// Values below this get a bucket each
+	private static final int EXACT_LIMIT = 2 * SUB_BUCKETS;
+
+	// Up to the largest long: exact buckets, then 58 powers of two
+	private static final int BUCKETS = EXACT_LIMIT + (63 - 5) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+	private final LongAdder totalNanos = new LongAdder();
+
+	/**
+	 * Bucket of 'value'
+	 */
+	private static int bucketOf(long value) {
+
+		if (value < EXACT_LIMIT) {
+			return (int) Math.max(value, 0);
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		// Top 5 bits, the leading one and 4 bits of position in the power of two
+		int top = (int) (value >>> (magnitude - 4));
+		return EXACT_LIMIT + (magnitude - 5) * SUB_BUCKETS + (top - SUB_BUCKETS);
+	}
+
+	/**
+	 * Largest value that falls into 'bucket'
+	 */
+	private static long highestOf(int bucket) {
+
+		if (bucket < EXACT_LIMIT) {
+			return bucket;
+		}
+		int magnitude = (bucket - EXACT_LIMIT) / SUB_BUCKETS + 5;
+		long top = (bucket - EXACT_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((top + 1) << (magnitude - 4)) - 1;
+	}
+
+	/**
+	 * Records one latency
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		buckets.incrementAndGet(bucketOf(nanos));
+		totalNanos.add(nanos);
+	}
+
+	/**
+	 * Gets the number of recorded latencies
+	 */
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += buckets.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Gets the mean latency, 0 if none was recorded
+	 */
+	public double getMean() {
+		long count = getCount();
+		return (count == 0) ? 0 : totalNanos.sum() / (double) count;
+	}
+
+	/**
+	 * Gets the latency that 'percentile' percent of the recorded ones do
+	 * not exceed, as the highest value of its bucket
+	 * @param percentile - 0 to 100
+	 * @return latency in nanoseconds, 0 if none was recorded
+	 */
+	public long getPercentile(double percentile) {
+
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			count += counts[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return highestOf(i);
+			}
+		}
+		return highestOf(BUCKETS - 1);
+	}
+
+	/**
+	 * Gets the highest recorded latency, to within its bucket
+	 */
+	public long getMax() {
+		for (int i = BUCKETS - 1; i >= 0; i--) {
+			if (buckets.get(i) != 0) {
+				return highestOf(i);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Removes all recorded latencies, not atomic with concurrent records
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets.set(i, 0);
+		}
+		totalNanos.reset();
+	}
+
+	/**
+	 * One line summary of count, mean and percentiles
+	 */
+	@Override
+	public String toString() {
+		return String.format("n=%d mean=%.0fns p50=%dns p90=%dns p99=%dns p99.9=%dns max=%dns", getCount(), getMean(),
+				getPercentile(50), getPercentile(90), getPercentile(99), getPercentile(99.9), getMax());
+	}
+}
@@ -0,0 +1,778 @@
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Event counter with 64 bit event ids and counts, for hashed event keys
+ * and counts beyond the int range.
+ *
+ * Same layout as RedBlackArrayEventTree: a Red Black Tree stored as
+ * parallel primitive arrays, slot 0 being the nil node, so nothing is
+ * boxed and an event takes 41 bytes instead of the ~80 of a TreeMap
+ * entry with Long key and value. Ids are compared directly, never by
+ * subtraction, and range sums are long.
+ *
+ * @author dhanusha
+ *
+ */
+public class LongEventTree {
+
+	private static final byte RED = 0;
+
+	private static final byte BLACK = 1;
+
+	// Slot index of the nil node
+	private static final int NIL = 0;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private long[] eventIds;
+
+	private long[] counts;
+
+	// Sum of counts of all nodes in the subtree rooted at a slot
+	private long[] subtreeCounts;
+
+	private int[] leftChild;
+
+	private int[] rightChild;
+
+	private int[] parent;
+
+	private byte[] colors;
+
+	private int root;
+
+	// Next never used slot
+	private int nextSlot;
+
+	// Head of the list of freed slots, chained through leftChild
+	private int freeHead;
+
+	/**
+	 * Constructor : initializes root node to nil for an empty tree
+	 */
+	public LongEventTree() {
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Constructor : creates an empty tree with room for 'capacity' events
+	 * before the arrays have to grow
+	 * @param capacity
+	 */
+	public LongEventTree(int capacity) {
+		allocate(capacity + 1);
+	}
+
+	/**
+	 * Allocates empty arrays of 'size' slots, including the nil slot
+	 * @param size
+	 */
+	private void allocate(int size) {
+		eventIds = new long[size];
+		counts = new long[size];
+		subtreeCounts = new long[size];
+		leftChild = new int[size];
+		rightChild = new int[size];
+		parent = new int[size];
+		colors = new byte[size];
+		colors[NIL] = BLACK;
+		root = NIL;
+		nextSlot = 1;
+		freeHead = NIL;
+	}
+
+	/**
+	 * Wrapper method to parse input file with sorted event data
+	 * and build RBT
+	 * @param filename
+	 */
+	public void buildTreeFromFile(String filename) {
+
+		try {
+			BufferedInputStream bis = new BufferedInputStream(new FileInputStream(filename));
+			int count = (int) readLong(bis);
+			allocate(count + 1);
+			if (count == 0) {
+				bis.close();
+				return;
+			}
+
+			// Insert first node and set root
+			int tempPtr = newNode(readLong(bis), readLong(bis));
+			root = tempPtr;
+			colors[root] = BLACK;
+			count--;
+
+			//Insert remaining nodes
+			for (int i = count; i > 0; i--) {
+
+				tempPtr = buildTree(tempPtr, readLong(bis), readLong(bis));
+			}
+
+			// Subtree counts are filled in once the shape is final
+			computeAggregates(root);
+
+			bis.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Replaces contents with the first 'size' events of the given arrays
+	 * @param eventIds - in strictly increasing order
+	 * @param counts
+	 * @param size
+	 */
+	public void buildTreeFromSortedArrays(long[] eventIds, long[] counts, int size) {
+
+		for (int i = 1; i < size; i++) {
+			if (eventIds[i] <= eventIds[i - 1]) {
+				throw new IllegalArgumentException("Event ids are not in increasing order at index " + i);
+			}
+		}
+		allocate(size + 1);
+		if (size == 0) {
+			return;
+		}
+
+		int tempPtr = newNode(eventIds[0], counts[0]);
+		root = tempPtr;
+		colors[root] = BLACK;
+		for (int i = 1; i < size; i++) {
+			tempPtr = buildTree(tempPtr, eventIds[i], counts[i]);
+		}
+		computeAggregates(root);
+	}
+
+	/**
+	 * Method to build RBT in linear time from sorted data by always
+	 * inserting as right child of the rightmost slot
+	 *
+	 * @param insertPtr - rightmost slot
+	 * @param evid
+	 * @param count
+	 * @return new rightmost slot
+	 */
+	private int buildTree(int insertPtr, long evid, long count) {
+
+		int next = newNode(evid, count);
+		rightChild[insertPtr] = next;
+		parent[next] = insertPtr;
+
+		adjustAfterInsert(next);
+		return next;
+	}
+
+	/**
+	 * Helper method to read in long data from file, ids may be negative
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	private static long readLong(InputStream in) throws IOException {
+		long ret = 0;
+		boolean digit = false;
+		boolean negative = false;
+
+		for (int c = 0; (c = in.read()) != -1; ) {
+			if (c >= '0' && c <= '9') {
+				digit = true;
+				ret = ret * 10 + c - '0';
+			} else if (digit) {
+				break;
+			} else {
+				negative = (c == '-');
+			}
+		}
+		// Accumulating the magnitude wraps for Long.MIN_VALUE only, and negating gives it back
+		return negative ? -ret : ret;
+	}
+
+	/**
+	 * Takes a slot from the free list, or the next unused slot,
+	 * and initializes it as a red leaf
+	 * @param evid
+	 * @param count
+	 * @return slot index of new node
+	 */
+	private int newNode(long evid, long count) {
+
+		int slot;
+		if (freeHead != NIL) {
+			slot = freeHead;
+			freeHead = leftChild[slot];
+		} else {
+			if (nextSlot == eventIds.length) {
+				grow();
+			}
+			slot = nextSlot++;
+		}
+		eventIds[slot] = evid;
+		counts[slot] = count;
+		subtreeCounts[slot] = count;
+		leftChild[slot] = NIL;
+		rightChild[slot] = NIL;
+		parent[slot] = NIL;
+		colors[slot] = RED;
+		return slot;
+	}
+
+	/**
+	 * Returns slot to the free list
+	 * @param slot
+	 */
+	private void freeNode(int slot) {
+		leftChild[slot] = freeHead;
+		freeHead = slot;
+	}
+
+	/**
+	 * Doubles capacity of all arrays
+	 */
+	private void grow() {
+		int size = eventIds.length * 2;
+		eventIds = Arrays.copyOf(eventIds, size);
+		counts = Arrays.copyOf(counts, size);
+		subtreeCounts = Arrays.copyOf(subtreeCounts, size);
+		leftChild = Arrays.copyOf(leftChild, size);
+		rightChild = Arrays.copyOf(rightChild, size);
+		parent = Arrays.copyOf(parent, size);
+		colors = Arrays.copyOf(colors, size);
+	}
+
+	/**
+	 * Links a new node as child of 'tempParent', which must be the slot
+	 * under whose nil child the event id belongs, and rebalances
+	 * @param tempParent - parent for the new node, or NIL for an empty tree
+	 * @param evid
+	 * @param count
+	 */
+	private void insertBelow(int tempParent, long evid, long count) {
+
+		int nodeToInsert = newNode(evid, count);
+
+		parent[nodeToInsert] = tempParent;
+
+		if (tempParent == NIL) {
+			root = nodeToInsert;
+		} else if (evid < eventIds[tempParent]) {
+			leftChild[tempParent] = nodeToInsert;
+		} else {
+			rightChild[tempParent] = nodeToInsert;
+		}
+
+		updateAggregatesToRoot(tempParent);
+
+		adjustAfterInsert(nodeToInsert);
+	}
+
+	/**
+	 * Correct RedBlackTree property violations that have occurred
+	 * after new node insert
+	 *
+	 * @param newNode
+	 */
+	private void adjustAfterInsert(int newNode) {
+
+		while (colors[parent[newNode]] == RED) {
+
+			int par = parent[newNode];
+			int grand = parent[par];
+
+			if (par == leftChild[grand]) {
+				int uncle = rightChild[grand];
+				if (colors[uncle] == RED) {
+					// Recolor and push the problem up to the grandparent
+					colors[par] = BLACK;
+					colors[uncle] = BLACK;
+					colors[grand] = RED;
+					newNode = grand;
+				} else if (newNode == rightChild[par]) {
+					// LR case: convert to LL case
+					newNode = par;
+					leftRotate(newNode);
+				} else {
+					// LL case: recolor and rotate around grandparent
+					colors[par] = BLACK;
+					colors[grand] = RED;
+					rightRotate(grand);
+				}
+			} else {
+				int uncle = leftChild[grand];
+				if (colors[uncle] == RED) {
+					colors[par] = BLACK;
+					colors[uncle] = BLACK;
+					colors[grand] = RED;
+					newNode = grand;
+				} else if (newNode == leftChild[par]) {
+					// RL case: convert to RR case
+					newNode = par;
+					rightRotate(newNode);
+				} else {
+					// RR case: recolor and rotate around grandparent
+					colors[par] = BLACK;
+					colors[grand] = RED;
+					leftRotate(grand);
+				}
+			}
+		}
+
+		// Color root black - safety check
+		colors[root] = BLACK;
+	}
+
+	/**
+	 * Performs a left rotate around slot 'node'
+	 * @param node
+	 */
+	private void leftRotate(int node) {
+
+		int right = rightChild[node];
+		rightChild[node] = leftChild[right];
+
+		if (leftChild[right] != NIL) {
+			parent[leftChild[right]] = node;
+		}
+
+		parent[right] = parent[node];
+
+		if (parent[node] == NIL) {
+			root = right;
+		} else if (node == leftChild[parent[node]]) {
+			leftChild[parent[node]] = right;
+		} else {
+			rightChild[parent[node]] = right;
+		}
+
+		leftChild[right] = node;
+		parent[node] = right;
+
+		updateAggregate(node);
+		updateAggregate(right);
+	}
+
+	/**
+	 * Performs right rotate around slot 'node'
+	 * @param node
+	 */
+	private void rightRotate(int node) {
+
+		int left = leftChild[node];
+		leftChild[node] = rightChild[left];
+
+		if (rightChild[left] != NIL) {
+			parent[rightChild[left]] = node;
+		}
+
+		parent[left] = parent[node];
+
+		if (parent[node] == NIL) {
+			root = left;
+		} else if (node == leftChild[parent[node]]) {
+			leftChild[parent[node]] = left;
+		} else {
+			rightChild[parent[node]] = left;
+		}
+
+		rightChild[left] = node;
+		parent[node] = left;
+
+		updateAggregate(node);
+		updateAggregate(left);
+	}
+
+	/**
+	 * Searches RedBlackTree for slot by event id
+	 * @param evid
+	 * @return - desired slot, or NIL if not found
+	 */
+	private int findNode(long evid) {
+
+		int searchPtr = root;
+
+		while (searchPtr != NIL) {
+			long id = eventIds[searchPtr];
+			if (id == evid) {
+				return searchPtr;
+			}
+			searchPtr = (id < evid) ? rightChild[searchPtr] : leftChild[searchPtr];
+		}
+		return NIL;
+	}
+
+	/**
+	 * Searches RedBlackTree for event id, remembering where it would go
+	 * @param evid
+	 * @return - slot of 'evid', else the last slot visited, under which
+	 * 'evid' would be inserted, or NIL if the tree is empty
+	 */
+	private int locate(long evid) {
+
+		int searchPtr = root;
+		int last = NIL;
+
+		while (searchPtr != NIL) {
+			long id = eventIds[searchPtr];
+			if (id == evid) {
+				return searchPtr;
+			}
+			last = searchPtr;
+			searchPtr = (id < evid) ? rightChild[searchPtr] : leftChild[searchPtr];
+		}
+		return last;
+	}
+
+	/**
+	 * Delete specified slot from tree
+	 * @param nodeToDel
+	 */
+	private void deleteNode(int nodeToDel) {
+
+		int delPtr;
+
+		if (leftChild[nodeToDel] == NIL || rightChild[nodeToDel] == NIL) {
+			delPtr = nodeToDel;
+		} else {
+			// Remove successor (min in right subtree) slot of nodeToDel
+			delPtr = rightChild[nodeToDel];
+			while (leftChild[delPtr] != NIL) {
+				delPtr = leftChild[delPtr];
+			}
+		}
+
+		int childOfDeletedNode = (leftChild[delPtr] != NIL) ? leftChild[delPtr] : rightChild[delPtr];
+		int delParent = parent[delPtr];
+		parent[childOfDeletedNode] = delParent;
+
+		if (delParent == NIL) {
+			root = childOfDeletedNode;
+		} else if (delPtr == leftChild[delParent]) {
+			leftChild[delParent] = childOfDeletedNode;
+		} else {
+			rightChild[delParent] = childOfDeletedNode;
+		}
+
+		// Transplant value of successor into the slot we wanted to delete
+		if (delPtr != nodeToDel) {
+			eventIds[nodeToDel] = eventIds[delPtr];
+			counts[nodeToDel] = counts[delPtr];
+		}
+
+		updateAggregatesToRoot(delParent);
+
+		if (colors[delPtr] == BLACK) {
+			adjustAfterDelete(childOfDeletedNode);
+		}
+
+		freeNode(delPtr);
+	}
+
+	/**
+	 * If deleted node is black, adjust tree
+	 * to have equal number of black nodes on all paths
+	 * @param node - child of deleted slot
+	 */
+	private void adjustAfterDelete(int node) {
+
+		while (node != root && colors[node] == BLACK) {
+
+			int par = parent[node];
+
+			if (node == leftChild[par]) {
+				int sibling = rightChild[par];
+
+				// case 1: sibling is RED
+				if (colors[sibling] == RED) {
+					colors[sibling] = BLACK;
+					colors[par] = RED;
+					leftRotate(par);
+					sibling = rightChild[par];
+				}
+
+				// case 2: sibling is BLACK and both its children are BLACK
+				if (colors[leftChild[sibling]] == BLACK && colors[rightChild[sibling]] == BLACK) {
+					colors[sibling] = RED;
+					node = par;
+				}
+				// case 3: sibling is BLACK and has atleast one RED child
+				else {
+					if (colors[rightChild[sibling]] == BLACK) {
+						colors[sibling] = RED;
+						colors[leftChild[sibling]] = BLACK;
+						rightRotate(sibling);
+						sibling = rightChild[par];
+					}
+					colors[rightChild[sibling]] = BLACK;
+					colors[sibling] = colors[par];
+					colors[par] = BLACK;
+					leftRotate(par);
+					node = root;
+				}
+			} else {
+				int sibling = leftChild[par];
+
+				if (colors[sibling] == RED) {
+					colors[sibling] = BLACK;
+					colors[par] = RED;
+					rightRotate(par);
+					sibling = leftChild[par];
+				}
+
+				if (colors[leftChild[sibling]] == BLACK && colors[rightChild[sibling]] == BLACK) {
+					colors[sibling] = RED;
+					node = par;
+				} else {
+					if (colors[leftChild[sibling]] == BLACK) {
+						colors[sibling] = RED;
+						colors[rightChild[sibling]] = BLACK;
+						leftRotate(sibling);
+						sibling = leftChild[par];
+					}
+					colors[leftChild[sibling]] = BLACK;
+					colors[sibling] = colors[par];
+					colors[par] = BLACK;
+					rightRotate(par);
+					node = root;
+				}
+			}
+		}
+
+		colors[node] = BLACK;
+	}
+
+	/**
+	 * Recomputes subtree count of 'node' from its children
+	 * @param node
+	 */
+	private void updateAggregate(int node) {
+		subtreeCounts[node] = subtreeCounts[leftChild[node]] + subtreeCounts[rightChild[node]] + counts[node];
+	}
+
+	/**
+	 * Recomputes subtree counts of 'node' and all of its ancestors
+	 * @param node
+	 */
+	private void updateAggregatesToRoot(int node) {
+		while (node != NIL) {
+			updateAggregate(node);
+			node = parent[node];
+		}
+	}
+
+	/**
+	 * Recomputes subtree counts of every slot in subtree of 'node'
+	 * @param node
+	 */
+	private void computeAggregates(int node) {
+		if (node == NIL) {
+			return;
+		}
+		computeAggregates(leftChild[node]);
+		computeAggregates(rightChild[node]);
+		updateAggregate(node);
+	}
+
+	/**
+	 * Finds the total count of events whose event Id's are in the range
+	 * (id1,id2) both inclusive
+	 *
+	 * @param id1
+	 * @param id2
+	 * @return
+	 */
+	public long inRange(long id1, long id2) {
+
+		if (id1 > id2) {
+			return 0;
+		}
+		return countBelow(id2, true) - countBelow(id1, false);
+	}
+
+	/**
+	 * Returns sum of counts of all events with event id less than 'evId'
+	 * (or equal to it, if 'inclusive')
+	 *
+	 * @param evId
+	 * @param inclusive
+	 * @return
+	 */
+	private long countBelow(long evId, boolean inclusive) {
+
+		long sum = 0;
+		int rootPtr = root;
+
+		while (rootPtr != NIL) {
+			long id = eventIds[rootPtr];
+			if (id < evId || (inclusive && id == evId)) {
+				sum += subtreeCounts[leftChild[rootPtr]] + counts[rootPtr];
+				rootPtr = rightChild[rootPtr];
+			} else {
+				rootPtr = leftChild[rootPtr];
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Increase count of event 'evId' by 'count'
+	 * If node not present, insert it
+	 *
+	 * @param evId
+	 * @param count
+	 * @return - the new count of node
+	 */
+	public long increase(long evId, long count) {
+
+		// One descent finds either the slot or the parent of the new slot
+		int node = locate(evId);
+		if (node == NIL || eventIds[node] != evId) {
+			insertBelow(node, evId, count);
+			return count;
+		}
+		counts[node] += count;
+		updateAggregatesToRoot(node);
+		return counts[node];
+	}
+
+	/**
+	 * Reduce count of event 'evId' by 'count'
+	 * Delete node if count drops to 0
+	 *
+	 * @param evId
+	 * @param count
+	 * @return - the new count of node, or 0 if node doesn't exist/was removed
+	 */
+	public long reduce(long evId, long count) {
+
+		int node = findNode(evId);
+		if (node == NIL) {
+			return 0;
+		}
+		if (counts[node] <= count) {
+			deleteNode(node);
+			return 0;
+		}
+		counts[node] -= count;
+		updateAggregatesToRoot(node);
+		return counts[node];
+	}
+
+	/**
+	 * Event with long id and count, also usable as a reusable result
+	 * holder for next and prev
+	 */
+	public static final class Entry {
+
+		private long eventId;
+
+		private long count;
+
+		public Entry() {
+		}
+
+		public Entry(long eventId, long count) {
+			this.eventId = eventId;
+			this.count = count;
+		}
+
+		public long getEventId() {
+			return eventId;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		private Entry set(long eventId, long count) {
+			this.eventId = eventId;
+			this.count = count;
+			return this;
+		}
+	}
+
+	/**
+	 * Gets event with next greater event Id after 'eventId'
+	 * @param eventId
+	 * @return next event or (0,0) if doesn't exist
+	 */
+	public Entry next(long eventId) {
+		return next(eventId, new Entry());
+	}
+
+	/**
+	 * Same as next(eventId), writing the event into 'result' instead of
+	 * allocating
+	 * @param eventId
+	 * @param result
+	 * @return 'result'
+	 */
+	public Entry next(long eventId, Entry result) {
+
+		int rootPtr = root;
+		int tempLargest = NIL;
+
+		while (rootPtr != NIL) {
+			if (eventIds[rootPtr] <= eventId) {
+				rootPtr = rightChild[rootPtr];
+			} else {
+				tempLargest = rootPtr;
+				rootPtr = leftChild[rootPtr];
+			}
+		}
+		if (tempLargest == NIL) {
+			return result.set(0, 0);
+		}
+		return result.set(eventIds[tempLargest], counts[tempLargest]);
+	}
+
+	/**
+	 * Gets event with next smaller event id after 'eventId'
+	 * @param eventId
+	 * @return previous event or (0,0) if doesn't exist
+	 */
+	public Entry prev(long eventId) {
+		return prev(eventId, new Entry());
+	}
+
+	/**
+	 * Same as prev(eventId), writing the event into 'result' instead of
+	 * allocating
+	 * @param eventId
+	 * @param result
+	 * @return 'result'
+	 */
+	public Entry prev(long eventId, Entry result) {
+
+		int rootPtr = root;
+		int tempSmallest = NIL;
+
+		while (rootPtr != NIL) {
+			if (eventIds[rootPtr] < eventId) {
+				tempSmallest = rootPtr;
+				rootPtr = rightChild[rootPtr];
+			} else {
+				rootPtr = leftChild[rootPtr];
+			}
+		}
+		if (tempSmallest == NIL) {
+			return result.set(0, 0);
+		}
+		return result.set(eventIds[tempSmallest], counts[tempSmallest]);
+	}
+
+	/**
+	 * Find event 'evId' and return its count
+	 * @param evId
+	 */
+	public long count(long evId) {
+
+		int foundNode = findNode(evId);
+		return (foundNode == NIL) ? 0 : counts[foundNode];
+	}
+
+}
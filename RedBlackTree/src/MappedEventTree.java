@@ -0,0 +1,779 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Event counter using a Red Black Tree whose nodes live in a memory mapped
+ * file. Reopening an existing file only maps it again, nothing is rebuilt.
+ * Changes reach the disk when sync() is called (or whenever the OS decides
+ * to write the mapped pages back), a crash in the middle of an operation
+ * can leave the file inconsistent.
+ *
+ * File layout: a header block followed by chunks of fixed size node records,
+ * record 0 is the nil node.
+ *
+ * @author dhanusha
+ *
+ */
+public class MappedEventTree implements Closeable {
+
+	private static final int MAGIC = 0x52425445; // "RBTE"
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 4096;
+
+	// Header field offsets
+	private static final int H_MAGIC = 0;
+	private static final int H_VERSION = 4;
+	private static final int H_ROOT = 8;
+	private static final int H_NEXT_SLOT = 12;
+	private static final int H_FREE_HEAD = 16;
+	private static final int H_CHUNKS = 20;
+
+	// Node record layout, 32 bytes per node
+	private static final int RECORD_SHIFT = 5;
+	private static final int EVENT_ID = 0;
+	private static final int COUNT = 4;
+	private static final int SUBTREE_COUNT = 8;
+	private static final int LEFT = 12;
+	private static final int RIGHT = 16;
+	private static final int PARENT = 20;
+	private static final int COLOR = 24;
+
+	// 2^20 records (32 MB) per mapped chunk
+	private static final int CHUNK_SHIFT = 20;
+	private static final int CHUNK_SLOTS = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_SLOTS - 1;
+	private static final long CHUNK_BYTES = (long) CHUNK_SLOTS << RECORD_SHIFT;
+
+	private static final int RED = 0;
+
+	private static final int BLACK = 1;
+
+	private static final int NIL = 0;
+
+	private final FileChannel channel;
+
+	private final MappedByteBuffer header;
+
+	private MappedByteBuffer[] chunks;
+
+	// Cached copies of header fields
+	private int root;
+
+	private int nextSlot;
+
+	private int freeHead;
+
+	/**
+	 * Opens the tree stored in 'filename', or creates an empty one
+	 * if the file does not exist yet or is empty
+	 * @param filename
+	 * @throws IOException if the file exists but is not an event tree
+	 */
+	public MappedEventTree(String filename) throws IOException {
+
+		channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		boolean exists = channel.size() > 0;
+		if (exists && (channel.size() < HEADER_SIZE || !hasMagic())) {
+			channel.close();
+			throw new IOException(filename + " is not an event tree file");
+		}
+		header = map(0, HEADER_SIZE);
+
+		if (exists) {
+			if (header.getInt(H_VERSION) != VERSION) {
+				channel.close();
+				throw new IOException("Unsupported event tree file version " + header.getInt(H_VERSION));
+			}
+			root = header.getInt(H_ROOT);
+			nextSlot = header.getInt(H_NEXT_SLOT);
+			freeHead = header.getInt(H_FREE_HEAD);
+			int chunkCount = header.getInt(H_CHUNKS);
+			chunks = new MappedByteBuffer[chunkCount];
+			for (int i = 0; i < chunkCount; i++) {
+				chunks[i] = map(HEADER_SIZE + i * CHUNK_BYTES, CHUNK_BYTES);
+			}
+		} else {
+			clear();
+		}
+	}
+
+	/**
+	 * Checks the magic number at the start of the file without mapping it
+	 * @return
+	 * @throws IOException
+	 */
+	private boolean hasMagic() throws IOException {
+		ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		channel.read(magic, H_MAGIC);
+		return magic.getInt(0) == MAGIC;
+	}
+
+	/**
+	 * Maps 'size' bytes of the file at 'position', growing the file if needed
+	 * @param position
+	 * @param size
+	 * @return
+	 * @throws IOException
+	 */
+	private MappedByteBuffer map(long position, long size) throws IOException {
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+
+	/**
+	 * Removes all events, keeping the first chunk of the file
+	 * @throws IOException
+	 */
+	private void clear() throws IOException {
+
+		if (chunks == null || chunks.length == 0) {
+			chunks = new MappedByteBuffer[] { map(HEADER_SIZE, CHUNK_BYTES) };
+		}
+		setInt(NIL, EVENT_ID, 0);
+		setInt(NIL, COUNT, 0);
+		setInt(NIL, SUBTREE_COUNT, 0);
+		setInt(NIL, COLOR, BLACK);
+		setRoot(NIL);
+		setNextSlot(1);
+		setFreeHead(NIL);
+		header.putInt(H_CHUNKS, chunks.length);
+		header.putInt(H_VERSION, VERSION);
+		// Magic goes in last so a half initialized file is not accepted on open
+		header.putInt(H_MAGIC, MAGIC);
+	}
+
+	/**
+	 * Flushes all changes to the file
+	 */
+	public void sync() {
+		for (MappedByteBuffer chunk : chunks) {
+			chunk.force();
+		}
+		header.force();
+	}
+
+	/**
+	 * Syncs and closes the file. The tree must not be used afterwards.
+	 */
+	@Override
+	public void close() throws IOException {
+		sync();
+		channel.close();
+	}
+
+	private int getInt(int node, int field) {
+		return chunks[node >>> CHUNK_SHIFT].getInt(((node & CHUNK_MASK) << RECORD_SHIFT) + field);
+	}
+
+	private void setInt(int node, int field, int value) {
+		chunks[node >>> CHUNK_SHIFT].putInt(((node & CHUNK_MASK) << RECORD_SHIFT) + field, value);
+	}
+
+	private int eventId(int node) {
+		return getInt(node, EVENT_ID);
+	}
+
+	private int left(int node) {
+		return getInt(node, LEFT);
+	}
+
+	private int right(int node) {
+		return getInt(node, RIGHT);
+	}
+
+	private int parent(int node) {
+		return getInt(node, PARENT);
+	}
+
+	private int color(int node) {
+		return getInt(node, COLOR);
+	}
+
+	private void setRoot(int node) {
+		root = node;
+		header.putInt(H_ROOT, node);
+	}
+
+	private void setNextSlot(int slot) {
+		nextSlot = slot;
+		header.putInt(H_NEXT_SLOT, slot);
+	}
+
+	private void setFreeHead(int slot) {
+		freeHead = slot;
+		header.putInt(H_FREE_HEAD, slot);
+	}
+
+	/**
+	 * Wrapper method to parse input file with sorted event data
+	 * and build RBT, replacing current contents of the tree
+	 * @param filename
+	 */
+	public void buildTreeFromFile(String filename) {
+
+		try {
+			BufferedInputStream bis = new BufferedInputStream(new FileInputStream(filename));
+			int count = readInt(bis);
+			clear();
+
+			// Insert first node and set root
+			int tempPtr = newNode(readInt(bis), readInt(bis));
+			setInt(tempPtr, COLOR, BLACK);
+			setRoot(tempPtr);
+			count--;
+
+			//Insert remaining nodes as right child of rightmost node
+			for (int i = count; i > 0; i--) {
+				int next = newNode(readInt(bis), readInt(bis));
+				setInt(tempPtr, RIGHT, next);
+				setInt(next, PARENT, tempPtr);
+				adjustAfterInsert(next);
+				tempPtr = next;
+			}
+
+			// Subtree counts are filled in once the shape is final
+			computeAggregates(root);
+
+			bis.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Helper method to read in integer data from file
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	private static int readInt(InputStream in) throws IOException {
+		int ret = 0;
+		boolean digit = false;
+
+		for (int c = 0; (c = in.read()) != -1; ) {
+			if (c >= '0' && c <= '9') {
+				digit = true;
+				ret = ret * 10 + c - '0';
+			} else if (digit) break;
+		}
+		return ret;
+	}
+
+	/**
+	 * Takes a record from the free list, or the next unused record,
+	 * and initializes it as a red leaf
+	 * @param evid
+	 * @param count
+	 * @return index of new node
+	 * @throws IOException if the file could not be grown
+	 */
+	private int newNode(int evid, int count) throws IOException {
+
+		int slot;
+		if (freeHead != NIL) {
+			slot = freeHead;
+			setFreeHead(left(slot));
+		} else {
+			slot = nextSlot;
+			if ((slot >>> CHUNK_SHIFT) == chunks.length) {
+				// Map one more chunk at the end of the file
+				chunks = Arrays.copyOf(chunks, chunks.length + 1);
+				chunks[chunks.length - 1] = map(HEADER_SIZE + (chunks.length - 1) * CHUNK_BYTES, CHUNK_BYTES);
+				header.putInt(H_CHUNKS, chunks.length);
+			}
+			setNextSlot(slot + 1);
+		}
+		setInt(slot, EVENT_ID, evid);
+		setInt(slot, COUNT, count);
+		setInt(slot, SUBTREE_COUNT, count);
+		setInt(slot, LEFT, NIL);
+		setInt(slot, RIGHT, NIL);
+		setInt(slot, PARENT, NIL);
+		setInt(slot, COLOR, RED);
+		return slot;
+	}
+
+	/**
+	 * Returns record to the free list
+	 * @param slot
+	 */
+	private void freeNode(int slot) {
+		setInt(slot, LEFT, freeHead);
+		setFreeHead(slot);
+	}
+
+	/**
+	 * Insert a new node into Red Black Tree
+	 * @param evid
+	 * @param count
+	 * @throws IOException
+	 */
+	private void insertNode(int evid, int count) throws IOException {
+
+		int nodeToInsert = newNode(evid, count);
+
+		int insertPtr = root;
+		int tempParent = NIL;
+
+		while (insertPtr != NIL) {
+			tempParent = insertPtr;
+			insertPtr = (evid < eventId(insertPtr)) ? left(insertPtr) : right(insertPtr);
+		}
+
+		setInt(nodeToInsert, PARENT, tempParent);
+
+		if (tempParent == NIL) {
+			setRoot(nodeToInsert);
+		} else if (evid < eventId(tempParent)) {
+			setInt(tempParent, LEFT, nodeToInsert);
+		} else {
+			setInt(tempParent, RIGHT, nodeToInsert);
+		}
+
+		updateAggregatesToRoot(tempParent);
+
+		adjustAfterInsert(nodeToInsert);
+	}
+
+	/**
+	 * Correct RedBlackTree property violations that have occurred
+	 * after new node insert
+	 *
+	 * @param newNode
+	 */
+	private void adjustAfterInsert(int newNode) {
+
+		while (color(parent(newNode)) == RED) {
+
+			int par = parent(newNode);
+			int grand = parent(par);
+			boolean parentIsLeftChild = (par == left(grand));
+			int uncle = parentIsLeftChild ? right(grand) : left(grand);
+
+			if (color(uncle) == RED) {
+				// Recolor and push the problem up to the grandparent
+				setInt(par, COLOR, BLACK);
+				setInt(uncle, COLOR, BLACK);
+				setInt(grand, COLOR, RED);
+				newNode = grand;
+			} else if (parentIsLeftChild) {
+				if (newNode == right(par)) {
+					// LR case: convert to LL case
+					newNode = par;
+					leftRotate(newNode);
+				} else {
+					// LL case: recolor and rotate around grandparent
+					setInt(par, COLOR, BLACK);
+					setInt(grand, COLOR, RED);
+					rightRotate(grand);
+				}
+			} else {
+				if (newNode == left(par)) {
+					// RL case: convert to RR case
+					newNode = par;
+					rightRotate(newNode);
+				} else {
+					// RR case: recolor and rotate around grandparent
+					setInt(par, COLOR, BLACK);
+					setInt(grand, COLOR, RED);
+					leftRotate(grand);
+				}
+			}
+		}
+
+		// Color root black - safety check
+		setInt(root, COLOR, BLACK);
+	}
+
+	/**
+	 * Performs a left rotate around 'node'
+	 * @param node
+	 */
+	private void leftRotate(int node) {
+
+		int rightChild = right(node);
+		int grandChild = left(rightChild);
+		int par = parent(node);
+
+		setInt(node, RIGHT, grandChild);
+		if (grandChild != NIL) {
+			setInt(grandChild, PARENT, node);
+		}
+
+		setInt(rightChild, PARENT, par);
+		if (par == NIL) {
+			setRoot(rightChild);
+		} else if (node == left(par)) {
+			setInt(par, LEFT, rightChild);
+		} else {
+			setInt(par, RIGHT, rightChild);
+		}
+
+		setInt(rightChild, LEFT, node);
+		setInt(node, PARENT, rightChild);
+
+		updateAggregate(node);
+		updateAggregate(rightChild);
+	}
+
+	/**
+	 * Performs right rotate around 'node'
+	 * @param node
+	 */
+	private void rightRotate(int node) {
+
+		int leftChild = left(node);
+		int grandChild = right(leftChild);
+		int par = parent(node);
+
+		setInt(node, LEFT, grandChild);
+		if (grandChild != NIL) {
+			setInt(grandChild, PARENT, node);
+		}
+
+		setInt(leftChild, PARENT, par);
+		if (par == NIL) {
+			setRoot(leftChild);
+		} else if (node == left(par)) {
+			setInt(par, LEFT, leftChild);
+		} else {
+			setInt(par, RIGHT, leftChild);
+		}
+
+		setInt(leftChild, RIGHT, node);
+		setInt(node, PARENT, leftChild);
+
+		updateAggregate(node);
+		updateAggregate(leftChild);
+	}
+
+	/**
+	 * Searches RedBlackTree for node by event id
+	 * @param evid
+	 * @return - desired node, or NIL if not found
+	 */
+	private int findNode(int evid) {
+
+		int searchPtr = root;
+
+		while (searchPtr != NIL) {
+			int id = eventId(searchPtr);
+			if (id == evid) {
+				return searchPtr;
+			}
+			searchPtr = (id < evid) ? right(searchPtr) : left(searchPtr);
+		}
+		return NIL;
+	}
+
+	/**
+	 * Delete specified node from tree
+	 * @param nodeToDel
+	 */
+	private void deleteNode(int nodeToDel) {
+
+		int delPtr;
+
+		if (left(nodeToDel) == NIL || right(nodeToDel) == NIL) {
+			delPtr = nodeToDel;
+		} else {
+			// Remove successor (min in right subtree) of nodeToDel
+			delPtr = right(nodeToDel);
+			while (left(delPtr) != NIL) {
+				delPtr = left(delPtr);
+			}
+		}
+
+		int childOfDeletedNode = (left(delPtr) != NIL) ? left(delPtr) : right(delPtr);
+		int delParent = parent(delPtr);
+		setInt(childOfDeletedNode, PARENT, delParent);
+
+		if (delParent == NIL) {
+			setRoot(childOfDeletedNode);
+		} else if (delPtr == left(delParent)) {
+			setInt(delParent, LEFT, childOfDeletedNode);
+		} else {
+			setInt(delParent, RIGHT, childOfDeletedNode);
+		}
+
+		// Transplant value of successor into the node we wanted to delete
+		if (delPtr != nodeToDel) {
+			setInt(nodeToDel, EVENT_ID, eventId(delPtr));
+			setInt(nodeToDel, COUNT, getInt(delPtr, COUNT));
+		}
+
+		updateAggregatesToRoot(delParent);
+
+		if (color(delPtr) == BLACK) {
+			adjustAfterDelete(childOfDeletedNode);
+		}
+
+		freeNode(delPtr);
+	}
+
+	/**
+	 * If deleted node is black, adjust tree
+	 * to have equal number of black nodes on all paths
+	 * @param node - child of deleted node
+	 */
+	private void adjustAfterDelete(int node) {
+
+		while (node != root && color(node) == BLACK) {
+
+			int par = parent(node);
+
+			if (node == left(par)) {
+				int sibling = right(par);
+
+				// case 1: sibling is RED
+				if (color(sibling) == RED) {
+					setInt(sibling, COLOR, BLACK);
+					setInt(par, COLOR, RED);
+					leftRotate(par);
+					sibling = right(par);
+				}
+
+				// case 2: sibling is BLACK and both its children are BLACK
+				if (color(left(sibling)) == BLACK && color(right(sibling)) == BLACK) {
+					setInt(sibling, COLOR, RED);
+					node = par;
+				}
+				// case 3: sibling is BLACK and has atleast one RED child
+				else {
+					if (color(right(sibling)) == BLACK) {
+						setInt(sibling, COLOR, RED);
+						setInt(left(sibling), COLOR, BLACK);
+						rightRotate(sibling);
+						sibling = right(par);
+					}
+					setInt(right(sibling), COLOR, BLACK);
+					setInt(sibling, COLOR, color(par));
+					setInt(par, COLOR, BLACK);
+					leftRotate(par);
+					node = root;
+				}
+			} else {
+				int sibling = left(par);
+
+				if (color(sibling) == RED) {
+					setInt(sibling, COLOR, BLACK);
+					setInt(par, COLOR, RED);
+					rightRotate(par);
+					sibling = left(par);
+				}
+
+				if (color(left(sibling)) == BLACK && color(right(sibling)) == BLACK) {
+					setInt(sibling, COLOR, RED);
+					node = par;
+				} else {
+					if (color(left(sibling)) == BLACK) {
+						setInt(sibling, COLOR, RED);
+						setInt(right(sibling), COLOR, BLACK);
+						leftRotate(sibling);
+						sibling = left(par);
+					}
+					setInt(left(sibling), COLOR, BLACK);
+					setInt(sibling, COLOR, color(par));
+					setInt(par, COLOR, BLACK);
+					rightRotate(par);
+					node = root;
+				}
+			}
+		}
+
+		setInt(node, COLOR, BLACK);
+	}
+
+	/**
+	 * Recomputes subtree count of 'node' from its children
+	 * @param node
+	 */
+	private void updateAggregate(int node) {
+		setInt(node, SUBTREE_COUNT, getInt(left(node), SUBTREE_COUNT) + getInt(right(node), SUBTREE_COUNT)
+				+ getInt(node, COUNT));
+	}
+
+	/**
+	 * Recomputes subtree counts of 'node' and all of its ancestors
+	 * @param node
+	 */
+	private void updateAggregatesToRoot(int node) {
+		while (node != NIL) {
+			updateAggregate(node);
+			node = parent(node);
+		}
+	}
+
+	/**
+	 * Recomputes subtree counts of every node in subtree of 'node'
+	 * @param node
+	 */
+	private void computeAggregates(int node) {
+		if (node == NIL) {
+			return;
+		}
+		computeAggregates(left(node));
+		computeAggregates(right(node));
+		updateAggregate(node);
+	}
+
+	/**
+	 * Finds the total count of events whose event Id's are in the range
+	 * (id1,id2) both inclusive
+	 *
+	 * @param id1
+	 * @param id2
+	 * @return
+	 */
+	public int inRange(int id1, int id2) {
+
+		if (id1 > id2) {
+			return 0;
+		}
+		return countBelow(id2, true) - countBelow(id1, false);
+	}
+
+	/**
+	 * Returns sum of counts of all events with event id less than 'evId'
+	 * (or equal to it, if 'inclusive')
+	 *
+	 * @param evId
+	 * @param inclusive
+	 * @return
+	 */
+	private int countBelow(int evId, boolean inclusive) {
+
+		int sum = 0;
+		int rootPtr = root;
+
+		while (rootPtr != NIL) {
+			int id = eventId(rootPtr);
+			if (id < evId || (inclusive && id == evId)) {
+				sum += getInt(left(rootPtr), SUBTREE_COUNT) + getInt(rootPtr, COUNT);
+				rootPtr = right(rootPtr);
+			} else {
+				rootPtr = left(rootPtr);
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Increase count of event 'evId' by 'count'
+	 * If node not present, insert it
+	 *
+	 * @param evId
+	 * @param count
+	 * @return - the new count of node
+	 * @throws IOException if the file could not be grown
+	 */
+	public int increase(int evId, int count) throws IOException {
+
+		int node = findNode(evId);
+		if (node == NIL) {
+			insertNode(evId, count);
+			return count;
+		}
+		int newCount = getInt(node, COUNT) + count;
+		setInt(node, COUNT, newCount);
+		updateAggregatesToRoot(node);
+		return newCount;
+	}
+
+	/**
+	 * Reduce count of event 'evId' by 'count'
+	 * Delete node if count drops to 0
+	 *
+	 * @param evId
+	 * @param count
+	 * @return - the new count of node, or 0 if node doesn't exist/was removed
+	 */
+	public int reduce(int evId, int count) {
+
+		int node = findNode(evId);
+		if (node == NIL) {
+			return 0;
+		}
+		int currCount = getInt(node, COUNT);
+		if (currCount <= count) {
+			deleteNode(node);
+			return 0;
+		}
+		setInt(node, COUNT, currCount - count);
+		updateAggregatesToRoot(node);
+		return currCount - count;
+	}
+
+	/**
+	 * Gets event with next greater event Id after 'eventId'
+	 * @param eventId
+	 * @return next event or (0,0) if doesn't exist
+	 */
+	public Event next(int eventId) {
+
+		int rootPtr = root;
+		int tempLargest = NIL;
+
+		while (rootPtr != NIL) {
+			if (eventId(rootPtr) <= eventId) {
+				rootPtr = right(rootPtr);
+			} else {
+				tempLargest = rootPtr;
+				rootPtr = left(rootPtr);
+			}
+		}
+		if (tempLargest == NIL) {
+			return new Event(0, 0);
+		}
+		return new Event(eventId(tempLargest), getInt(tempLargest, COUNT));
+	}
+
+	/**
+	 * Gets event with next smaller event id after 'eventId'
+	 * @param eventId
+	 * @return previous event or (0,0) if doesn't exist
+	 */
+	public Event prev(int eventId) {
+
+		int rootPtr = root;
+		int tempSmallest = NIL;
+
+		while (rootPtr != NIL) {
+			if (eventId(rootPtr) < eventId) {
+				tempSmallest = rootPtr;
+				rootPtr = right(rootPtr);
+			} else {
+				rootPtr = left(rootPtr);
+			}
+		}
+		if (tempSmallest == NIL) {
+			return new Event(0, 0);
+		}
+		return new Event(eventId(tempSmallest), getInt(tempSmallest, COUNT));
+	}
+
+	/**
+	 * Find event 'evId' and return its count
+	 * @param evId
+	 */
+	public int count(int evId) {
+
+		int foundNode = findNode(evId);
+		return (foundNode == NIL) ? 0 : getInt(foundNode, COUNT);
+	}
+
+}
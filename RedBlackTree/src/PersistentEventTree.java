@@ -0,0 +1,576 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Event counter on a persistent left leaning Red Black Tree, for readers
+ * that need a consistent view while writers keep going.
+ *
+ * snapshot() is O(1): it freezes the current version and returns a read
+ * only view of it. Nodes carry the version that created them and are only
+ * changed in place by that version, so a write after a snapshot copies the
+ * O(log n) nodes on its path (path copying) and leaves the frozen ones
+ * shared. Writes with no snapshot taken since the node was created do not
+ * copy anything. Old versions are reclaimed by the GC once the last
+ * Snapshot referring to them is dropped.
+ *
+ * Writes must come from one thread at a time, snapshots may be read from
+ * any number of threads.
+ *
+ * @author dhanusha
+ *
+ */
+public class PersistentEventTree {
+
+	/**
+	 * Tree node, immutable once its version has been frozen by a snapshot
+	 */
+	private static final class Node {
+
+		int eventId;
+
+		int count;
+
+		boolean red;
+
+		Node left;
+
+		Node right;
+
+		// Number of nodes and sum of counts in the subtree rooted here
+		int subtreeSize;
+
+		int subtreeCount;
+
+		// Version that created this node and may change it in place
+		final long version;
+
+		Node(int eventId, int count, long version) {
+			this.eventId = eventId;
+			this.count = count;
+			this.red = true;
+			this.subtreeSize = 1;
+			this.subtreeCount = count;
+			this.version = version;
+		}
+
+		Node(Node other, long version) {
+			this.eventId = other.eventId;
+			this.count = other.count;
+			this.red = other.red;
+			this.left = other.left;
+			this.right = other.right;
+			this.subtreeSize = other.subtreeSize;
+			this.subtreeCount = other.subtreeCount;
+			this.version = version;
+		}
+	}
+
+	private Node root;
+
+	// Version of the live tree, bumped by every snapshot
+	private long version;
+
+	// New count of the event changed by the last insert
+	private int lastCount;
+
+	/**
+	 * Parses input file with sorted event data and builds the tree
+	 * @param path
+	 * @throws IOException if the file can not be read or is malformed
+	 */
+	public void loadFromFile(Path path) throws IOException {
+
+		EventFileParser.SortedEvents events = EventFileParser.parse(path);
+		buildTreeFromSortedArrays(events.eventIds, events.counts, events.size);
+	}
+
+	/**
+	 * Replaces contents with the first 'size' events of the given arrays.
+	 * Snapshots taken before keep the old contents.
+	 * @param eventIds - in strictly increasing order
+	 * @param counts
+	 * @param size
+	 */
+	public void buildTreeFromSortedArrays(int[] eventIds, int[] counts, int size) {
+
+		for (int i = 1; i < size; i++) {
+			if (eventIds[i] <= eventIds[i - 1]) {
+				throw new IllegalArgumentException("Event ids are not in increasing order at index " + i);
+			}
+		}
+		// Left leaning trees have no simple linear time shape, insert in order
+		root = null;
+		for (int i = 0; i < size; i++) {
+			increase(eventIds[i], counts[i]);
+		}
+	}
+
+	/**
+	 * Freezes the current contents
+	 * @return read only view, unaffected by later writes
+	 */
+	public Snapshot snapshot() {
+
+		Snapshot snapshot = new Snapshot(root);
+		// Nodes of the frozen version are copied before the next change
+		version++;
+		return snapshot;
+	}
+
+	/**
+	 * Increase count of event 'evId' by 'count', inserting it if not present
+	 * @param evId
+	 * @param count
+	 * @return - the new count of event
+	 */
+	public int increase(int evId, int count) {
+
+		root = insert(root, evId, count);
+		root.red = false;
+		return lastCount;
+	}
+
+	/**
+	 * Reduce count of event 'evId' by 'count', deleting it if count drops to 0
+	 * @param evId
+	 * @param count
+	 * @return - the new count of event, or 0 if it doesn't exist/was removed
+	 */
+	public int reduce(int evId, int count) {
+
+		int current = count(root, evId);
+		if (current == 0) {
+			return 0;
+		}
+		if (current > count) {
+			// Structure stays the same, only the path is updated
+			root = insert(root, evId, -count);
+			return lastCount;
+		}
+		root = own(root);
+		if (!isRed(root.left) && !isRed(root.right)) {
+			root.red = true;
+		}
+		root = delete(root, evId);
+		if (root != null) {
+			root = own(root);
+			root.red = false;
+		}
+		return 0;
+	}
+
+	/**
+	 * Find event 'evId' and return its count
+	 * @param evId
+	 */
+	public int count(int evId) {
+		return count(root, evId);
+	}
+
+	/**
+	 * Finds the total count of events whose event Id's are in the range
+	 * (id1,id2) both inclusive
+	 * @param id1
+	 * @param id2
+	 * @return
+	 */
+	public int inRange(int id1, int id2) {
+		return inRange(root, id1, id2);
+	}
+
+	/**
+	 * Gets event with next greater event Id after 'eventId'
+	 * @param eventId
+	 * @return next event or (0,0) if doesn't exist
+	 */
+	public Event next(int eventId) {
+		return next(root, eventId);
+	}
+
+	/**
+	 * Gets event with next smaller event id after 'eventId'
+	 * @param eventId
+	 * @return previous event or (0,0) if doesn't exist
+	 */
+	public Event prev(int eventId) {
+		return prev(root, eventId);
+	}
+
+	/**
+	 * Gets number of events in the tree
+	 */
+	public int size() {
+		return (root == null) ? 0 : root.subtreeSize;
+	}
+
+	/**
+	 * Read only view of the tree as of a snapshot() call
+	 */
+	public static final class Snapshot {
+
+		private final Node root;
+
+		private Snapshot(Node root) {
+			this.root = root;
+		}
+
+		public int count(int evId) {
+			return PersistentEventTree.count(root, evId);
+		}
+
+		public int inRange(int id1, int id2) {
+			return PersistentEventTree.inRange(root, id1, id2);
+		}
+
+		public Event next(int eventId) {
+			return PersistentEventTree.next(root, eventId);
+		}
+
+		public Event prev(int eventId) {
+			return PersistentEventTree.prev(root, eventId);
+		}
+
+		public int size() {
+			return (root == null) ? 0 : root.subtreeSize;
+		}
+
+		/**
+		 * Iterates over events with ids in the range (id1,id2) both
+		 * inclusive, in increasing order of event id
+		 * @param id1
+		 * @param id2
+		 * @return
+		 */
+		public Iterator<Event> iterator(int id1, int id2) {
+			return new RangeIterator(root, id1, id2);
+		}
+	}
+
+	/**
+	 * Gets the node to change in place for the live version, copying 'node'
+	 * if it belongs to a frozen one
+	 * @param node
+	 * @return
+	 */
+	private Node own(Node node) {
+		return (node.version == version) ? node : new Node(node, version);
+	}
+
+	private static boolean isRed(Node node) {
+		return node != null && node.red;
+	}
+
+	/**
+	 * Recomputes subtree size and count of 'node' from its children
+	 * @param node
+	 */
+	private static void updateAggregate(Node node) {
+		node.subtreeSize = 1;
+		node.subtreeCount = node.count;
+		if (node.left != null) {
+			node.subtreeSize += node.left.subtreeSize;
+			node.subtreeCount += node.left.subtreeCount;
+		}
+		if (node.right != null) {
+			node.subtreeSize += node.right.subtreeSize;
+			node.subtreeCount += node.right.subtreeCount;
+		}
+	}
+
+	/**
+	 * Adds 'count' to event 'evId' in subtree of 'node', inserting it if
+	 * not present, and restores the left leaning shape on the way up
+	 * @param node
+	 * @param evId
+	 * @param count
+	 * @return new root of subtree
+	 */
+	private Node insert(Node node, int evId, int count) {
+
+		if (node == null) {
+			lastCount = count;
+			return new Node(evId, count, version);
+		}
+		node = own(node);
+		if (evId < node.eventId) {
+			node.left = insert(node.left, evId, count);
+		} else if (evId > node.eventId) {
+			node.right = insert(node.right, evId, count);
+		} else {
+			node.count += count;
+			lastCount = node.count;
+		}
+		return fixUp(node);
+	}
+
+	/**
+	 * Deletes event 'evId', which must be present, from subtree of 'node'
+	 * @param node - owned by the live version
+	 * @param evId
+	 * @return new root of subtree
+	 */
+	private Node delete(Node node, int evId) {
+
+		if (evId < node.eventId) {
+			if (!isRed(node.left) && !isRed(node.left.left)) {
+				node = moveRedLeft(node);
+			}
+			node.left = delete(own(node.left), evId);
+		} else {
+			if (isRed(node.left)) {
+				node = rotateRight(node);
+			}
+			if (evId == node.eventId && node.right == null) {
+				return null;
+			}
+			if (!isRed(node.right) && !isRed(node.right.left)) {
+				node = moveRedRight(node);
+			}
+			if (evId == node.eventId) {
+				// Replace with the successor and delete that instead
+				Node successor = node.right;
+				while (successor.left != null) {
+					successor = successor.left;
+				}
+				node.eventId = successor.eventId;
+				node.count = successor.count;
+				node.right = deleteMin(own(node.right));
+			} else {
+				node.right = delete(own(node.right), evId);
+			}
+		}
+		return fixUp(node);
+	}
+
+	/**
+	 * Deletes the smallest event from subtree of 'node'
+	 * @param node - owned by the live version
+	 * @return new root of subtree
+	 */
+	private Node deleteMin(Node node) {
+
+		if (node.left == null) {
+			return null;
+		}
+		if (!isRed(node.left) && !isRed(node.left.left)) {
+			node = moveRedLeft(node);
+		}
+		node.left = deleteMin(own(node.left));
+		return fixUp(node);
+	}
+
+	/**
+	 * Makes the left child of 'node' or one of its children red
+	 * @param node - owned by the live version
+	 * @return new root of subtree
+	 */
+	private Node moveRedLeft(Node node) {
+
+		flipColors(node);
+		if (isRed(node.right.left)) {
+			node.right = rotateRight(node.right);
+			node = rotateLeft(node);
+			flipColors(node);
+		}
+		return node;
+	}
+
+	/**
+	 * Makes the right child of 'node' or one of its children red
+	 * @param node - owned by the live version
+	 * @return new root of subtree
+	 */
+	private Node moveRedRight(Node node) {
+
+		flipColors(node);
+		if (isRed(node.left.left)) {
+			node = rotateRight(node);
+			flipColors(node);
+		}
+		return node;
+	}
+
+	/**
+	 * Rotates right leaning reds left, splits temporary 4-nodes and
+	 * recomputes aggregates
+	 * @param node - owned by the live version
+	 * @return new root of subtree
+	 */
+	private Node fixUp(Node node) {
+
+		if (isRed(node.right) && !isRed(node.left)) {
+			node = rotateLeft(node);
+		}
+		if (isRed(node.left) && isRed(node.left.left)) {
+			node = rotateRight(node);
+		}
+		if (isRed(node.left) && isRed(node.right)) {
+			flipColors(node);
+		}
+		updateAggregate(node);
+		return node;
+	}
+
+	/**
+	 * Performs a left rotate around 'node'
+	 * @param node - owned by the live version
+	 * @return new root of subtree
+	 */
+	private Node rotateLeft(Node node) {
+
+		Node right = own(node.right);
+		node.right = right.left;
+		right.left = node;
+		right.red = node.red;
+		node.red = true;
+		updateAggregate(node);
+		updateAggregate(right);
+		return right;
+	}
+
+	/**
+	 * Performs a right rotate around 'node'
+	 * @param node - owned by the live version
+	 * @return new root of subtree
+	 */
+	private Node rotateRight(Node node) {
+
+		Node left = own(node.left);
+		node.left = left.right;
+		left.right = node;
+		left.red = node.red;
+		node.red = true;
+		updateAggregate(node);
+		updateAggregate(left);
+		return left;
+	}
+
+	/**
+	 * Flips the colors of 'node' and both of its children
+	 * @param node - owned by the live version
+	 */
+	private void flipColors(Node node) {
+
+		node.red = !node.red;
+		node.left = own(node.left);
+		node.left.red = !node.left.red;
+		node.right = own(node.right);
+		node.right.red = !node.right.red;
+	}
+
+	private static int count(Node node, int evId) {
+
+		while (node != null) {
+			if (node.eventId == evId) {
+				return node.count;
+			}
+			node = (node.eventId < evId) ? node.right : node.left;
+		}
+		return 0;
+	}
+
+	private static int inRange(Node root, int id1, int id2) {
+
+		if (id1 > id2) {
+			return 0;
+		}
+		return countBelow(root, id2, true) - countBelow(root, id1, false);
+	}
+
+	/**
+	 * Returns sum of counts of all events with event id less than 'evId'
+	 * (or equal to it, if 'inclusive')
+	 */
+	private static int countBelow(Node node, int evId, boolean inclusive) {
+
+		int sum = 0;
+		while (node != null) {
+			if (node.eventId < evId || (inclusive && node.eventId == evId)) {
+				sum += node.count + ((node.left == null) ? 0 : node.left.subtreeCount);
+				node = node.right;
+			} else {
+				node = node.left;
+			}
+		}
+		return sum;
+	}
+
+	private static Event next(Node node, int eventId) {
+
+		Node found = null;
+		while (node != null) {
+			if (node.eventId > eventId) {
+				found = node;
+				node = node.left;
+			} else {
+				node = node.right;
+			}
+		}
+		return (found == null) ? new Event(0, 0) : new Event(found.eventId, found.count);
+	}
+
+	private static Event prev(Node node, int eventId) {
+
+		Node found = null;
+		while (node != null) {
+			if (node.eventId < eventId) {
+				found = node;
+				node = node.right;
+			} else {
+				node = node.left;
+			}
+		}
+		return (found == null) ? new Event(0, 0) : new Event(found.eventId, found.count);
+	}
+
+	/**
+	 * In order iterator over a range, keeping the path to the next node on
+	 * a stack since nodes have no parent pointers
+	 */
+	private static final class RangeIterator implements Iterator<Event> {
+
+		// Longest root to leaf path of a red black tree with int keys
+		private final Node[] stack = new Node[64];
+
+		private int depth;
+
+		private final int hi;
+
+		RangeIterator(Node node, int lo, int hi) {
+			this.hi = hi;
+			if (lo > hi) {
+				return;
+			}
+			// Push the ancestors of the first event >= lo that are >= lo
+			while (node != null) {
+				if (node.eventId >= lo) {
+					stack[depth++] = node;
+					node = node.left;
+				} else {
+					node = node.right;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return depth > 0 && stack[depth - 1].eventId <= hi;
+		}
+
+		@Override
+		public Event next() {
+
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Node node = stack[--depth];
+			// Successor is the leftmost node of the right subtree
+			for (Node ptr = node.right; ptr != null; ptr = ptr.left) {
+				stack[depth++] = ptr;
+			}
+			return new Event(node.eventId, node.count);
+		}
+	}
+}
@@ -1,7 +1,28 @@
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.IntBinaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Event counter using Red Black Tree
@@ -10,19 +31,41 @@ import java.io.InputStream;
  */
 public class RedBlackEventTree {
 
+	// Binary snapshot header: magic "RBTS", version, flags, event count
+	private static final int SNAPSHOT_MAGIC = 0x52425453;
+	
+	private static final int SNAPSHOT_VERSION = 1;
+	
+	// Snapshot flag: ids stored as varint gaps, counts as varints
+	private static final int SNAPSHOT_DELTA = 1;
+
 	private RedBlackNode root;
 
-	//Nil node used to store the external nodes
-	private RedBlackNode nil = new RedBlackNode();
+	// Nil node used to store the external nodes. Shared by all trees and
+	// never changed, so split, join and union can move subtrees between
+	// trees, and trees used by different threads do not race on it.
+	private static final RedBlackNode nil = createNil();
+	
+	// Nodes of recently used event ids, null when disabled
+	private HotKeyCache hotKeys;
+	
+	// Latencies and structural counters, null when disabled
+	private EventTreeMetrics metrics;
 
 	/**
 	 * Constructor : initializes root node to nil for an empty tree
 	 */
 	public RedBlackEventTree() {
 		root = nil;
-		root.leftChild = nil;
-		root.rightChild = nil;
-		root.parent = nil;
+	}
+	
+	private static RedBlackNode createNil() {
+		RedBlackNode node = new RedBlackNode();
+		node.subtreeSize = 0;
+		node.leftChild = node;
+		node.rightChild = node;
+		node.parent = node;
+		return node;
 	}
 
 	/**
@@ -39,6 +82,7 @@ public class RedBlackEventTree {
 			// Insert first node and set root
 			RedBlackNode next = new RedBlackNode(readInt(bis), readInt(bis));
 			root = next;
+			forgetHotKeys();
 			next.leftChild = nil;
 			next.rightChild = nil;
 			next.parent = nil;
@@ -51,6 +95,9 @@ public class RedBlackEventTree {
 
 				tempPtr = buildTree(tempPtr, readInt(bis), readInt(bis));
 			}
+			
+			// Subtree sizes and counts are filled in once the shape is final
+			computeAggregates(root);
 
 			bis.close();
 		} catch (Exception e) {
@@ -60,6 +107,8 @@ public class RedBlackEventTree {
 	
 	/**
 	 * Method to build RBT in linear time from sorted data
+	 * Subtree aggregates are not maintained here, call computeAggregates
+	 * on the root once all nodes are in place
 	 * 
 	 * @param insertPtr
 	 * @param evid
@@ -107,45 +156,480 @@ public class RedBlackEventTree {
 	}
 
 	/**
-	 * Insert a new node into Red Black Tree
-	 * @param nodeToInsert
+	 * Writes all events to 'path' in the binary snapshot format
+	 * as fixed width sorted id/count pairs
+	 * @param path
+	 * @throws IOException
+	 */
+	public void saveSnapshot(Path path) throws IOException {
+		saveSnapshot(path, false);
+	}
+	
+	/**
+	 * Writes all events to 'path' in the binary snapshot format.
+	 * Header (magic, version, flags, count) is followed by the events
+	 * in increasing id order, either as fixed width id/count int pairs or,
+	 * if 'deltaEncoded', as varint gaps between ids and varint counts
+	 * 
+	 * @param path
+	 * @param deltaEncoded
+	 * @throws IOException
 	 */
-	private void insertNode(Event newEvent) {
+	public void saveSnapshot(Path path, boolean deltaEncoded) throws IOException {
 		
-		RedBlackNode nodeToInsert = new RedBlackNode(newEvent.eventId,newEvent.count);
-
-		RedBlackNode insertPtr = root;
-		RedBlackNode tempParent = nil;
-
-		// Find the proper place to insert new node
-		// by comparing event ids and going into left/right subtree accordingly
-		while (!isNil(insertPtr)) {
-			tempParent = insertPtr;
-			if (nodeToInsert.eventId - insertPtr.eventId < 0) {
-				insertPtr = insertPtr.leftChild;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+		try {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeInt(deltaEncoded ? SNAPSHOT_DELTA : 0);
+			out.writeInt(root.subtreeSize);
+			writeEvents(out, root, deltaEncoded, 0);
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Writes events of subtree of 'node' in order
+	 * 
+	 * @param out
+	 * @param node
+	 * @param deltaEncoded
+	 * @param prevId - last id written before this subtree
+	 * @return last id written
+	 * @throws IOException
+	 */
+	private int writeEvents(DataOutputStream out, RedBlackNode node, boolean deltaEncoded, int prevId) throws IOException {
+		
+		if (isNil(node)) {
+			return prevId;
+		}
+		prevId = writeEvents(out, node.leftChild, deltaEncoded, prevId);
+		if (deltaEncoded) {
+			// First gap is taken from 0, so it is just the id itself
+			writeVarint(out, node.eventId - prevId);
+			writeVarint(out, node.count);
+		} else {
+			out.writeInt(node.eventId);
+			out.writeInt(node.count);
+		}
+		return writeEvents(out, node.rightChild, deltaEncoded, node.eventId);
+	}
+	
+	/**
+	 * Writes 'value' as an unsigned varint, 7 bits per byte
+	 * @param out
+	 * @param value
+	 * @throws IOException
+	 */
+	private static void writeVarint(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+	
+	/**
+	 * Replaces contents of the tree with the events in snapshot 'path'.
+	 * The file is mapped and the tree is built bottom up as a perfectly
+	 * balanced tree, with the nodes of an incomplete last level colored
+	 * red and all others black, so no fixup rotations are needed.
+	 * 
+	 * @param path
+	 * @throws IOException if the file is not a valid snapshot
+	 */
+	public void loadSnapshot(Path path) throws IOException {
+		
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() < 16 || buffer.getInt() != SNAPSHOT_MAGIC) {
+				throw new IOException(path + " is not an event snapshot");
+			}
+			int version = buffer.getInt();
+			if (version != SNAPSHOT_VERSION) {
+				throw new IOException("Unsupported snapshot version " + version);
+			}
+			int flags = buffer.getInt();
+			if ((flags & ~SNAPSHOT_DELTA) != 0) {
+				throw new IOException("Unsupported snapshot flags " + flags);
+			}
+			boolean deltaEncoded = (flags & SNAPSHOT_DELTA) != 0;
+			SnapshotReader reader = new SnapshotReader(buffer, deltaEncoded);
+			int size = buffer.getInt();
+			
+			// An event takes 8 bytes, or at least 2 as varints
+			long minBytes = (long) size * (deltaEncoded ? 2 : 8);
+			if (size < 0 || minBytes > buffer.remaining()) {
+				throw new IOException("Corrupt snapshot " + path + ": " + size + " events do not fit "
+						+ buffer.remaining() + " bytes");
+			}
+			
+			// Depth of the last, possibly incomplete, level
+			int redDepth = 31 - Integer.numberOfLeadingZeros(size + 1);
+			
+			RedBlackNode newRoot = buildBalanced(reader, size, 0, redDepth);
+			if (buffer.hasRemaining()) {
+				throw new IOException("Corrupt snapshot " + path + ": " + buffer.remaining() + " bytes after the events");
+			}
+			setRoot(newRoot);
+		} catch (RuntimeException e) {
+			// Truncated file shows up as BufferUnderflowException
+			throw new IOException("Corrupt snapshot " + path, e);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Replaces contents of the tree with the events in 'path', a text file
+	 * in the same format as for buildTreeFromFile. The file is parsed in
+	 * parallel by EventFileParser and the tree is built balanced in one pass.
+	 * 
+	 * @param path
+	 * @throws IOException if the file can not be read, is malformed or
+	 * is not sorted, with the offending line number in the message
+	 */
+	public void loadFromFile(Path path) throws IOException {
+		
+		EventFileParser.SortedEvents events = EventFileParser.parse(path);
+		buildTreeFromSortedArrays(events.eventIds, events.counts, events.size);
+	}
+	
+	/**
+	 * Replaces contents of the tree with the first 'size' events of the
+	 * given arrays, building a perfectly balanced tree without rotations
+	 * 
+	 * @param eventIds - in strictly increasing order
+	 * @param counts
+	 * @param size
+	 */
+	public void buildTreeFromSortedArrays(int[] eventIds, int[] counts, int size) {
+		
+		for (int i = 1; i < size; i++) {
+			if (eventIds[i] <= eventIds[i - 1]) {
+				throw new IllegalArgumentException("Event ids are not in increasing order at index " + i);
+			}
+		}
+		int redDepth = 31 - Integer.numberOfLeadingZeros(size + 1);
+		try {
+			setRoot(buildBalanced(new ArrayEventSource(eventIds, counts), size, 0, redDepth));
+		} catch (IOException e) {
+			// Array source never fails
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Makes 'newRoot' the root of the tree
+	 * @param newRoot
+	 */
+	private void setRoot(RedBlackNode newRoot) {
+		if (!isNil(newRoot)) {
+			newRoot.parent = nil;
+			newRoot.color = RedBlackNode.Color.BLACK;
+		}
+		root = newRoot;
+		forgetHotKeys();
+	}
+	
+	/**
+	 * Caches the nodes of up to 'capacity' recently used event ids, so
+	 * count, increase, reduce, getAndIncrease, increaseIfPresent and merge
+	 * find hot ids without searching from the root. Updates still walk up
+	 * to the root for the subtree aggregates. Lookups change the cache, so
+	 * with the cache enabled even count must not run concurrently with
+	 * other operations.
+	 * 
+	 * @param capacity
+	 */
+	public void enableHotKeyCache(int capacity) {
+		hotKeys = new HotKeyCache(capacity);
+	}
+	
+	public void disableHotKeyCache() {
+		hotKeys = null;
+	}
+	
+	/**
+	 * Gets the hot key cache, for its hit rate
+	 * @return cache, or null if disabled
+	 */
+	public HotKeyCache getHotKeyCache() {
+		return hotKeys;
+	}
+	
+	/**
+	 * Starts recording latencies of increase, reduce, count, inRange, next
+	 * and prev, and rotations, recolors, inserts and deletes. Costs two
+	 * System.nanoTime calls per operation, when disabled only a null check.
+	 * 
+	 * @return the metrics, also available from getMetrics
+	 */
+	public EventTreeMetrics enableMetrics() {
+		if (metrics == null) {
+			metrics = new EventTreeMetrics(this);
+		}
+		return metrics;
+	}
+	
+	public void disableMetrics() {
+		metrics = null;
+	}
+	
+	/**
+	 * Gets the metrics
+	 * @return metrics, or null if disabled
+	 */
+	public EventTreeMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Number of nodes in the tree
+	 */
+	int nodeCount() {
+		return root.subtreeSize;
+	}
+	
+	/**
+	 * Number of black nodes on every path from the root down to nil
+	 */
+	int blackHeight() {
+		int height = 0;
+		for (RedBlackNode node = root; !isNil(node); node = node.leftChild) {
+			if (node.color == RedBlackNode.Color.BLACK) {
+				height++;
+			}
+		}
+		return height;
+	}
+	
+	/**
+	 * Number of nodes on the longest path from the root down
+	 */
+	int maxDepth() {
+		return maxDepth(root);
+	}
+	
+	private int maxDepth(RedBlackNode node) {
+		// Recursion depth is bounded by the tree height, 2 log n at most
+		if (isNil(node)) {
+			return 0;
+		}
+		return 1 + Math.max(maxDepth(node.leftChild), maxDepth(node.rightChild));
+	}
+	
+	/**
+	 * Empties the hot key cache, when the whole tree is replaced
+	 */
+	private void forgetHotKeys() {
+		if (hotKeys != null) {
+			hotKeys.clear();
+		}
+	}
+	
+	/**
+	 * findNode through the hot key cache
+	 * @param evId
+	 * @return - desired node, or null if not found
+	 */
+	private RedBlackNode findCached(int evId) {
+		
+		if (hotKeys == null) {
+			return findNode(evId);
+		}
+		RedBlackNode node = hotKeys.get(evId);
+		if (node == null) {
+			node = findNode(evId);
+			if (node != null) {
+				hotKeys.put(evId, node);
+			}
+		}
+		return node;
+	}
+	
+	/**
+	 * locate from the root through the hot key cache
+	 * @param evId
+	 * @return node with 'evId', else the node under which it would be
+	 * inserted, or nil if the tree is empty
+	 */
+	private RedBlackNode locateCached(int evId) {
+		
+		if (hotKeys == null) {
+			return locate(root, evId);
+		}
+		RedBlackNode node = hotKeys.get(evId);
+		if (node == null) {
+			node = locate(root, evId);
+			if (!isNil(node) && node.eventId == evId) {
+				hotKeys.put(evId, node);
+			}
+		}
+		return node;
+	}
+	
+	/**
+	 * Builds a balanced subtree from the next 'size' events of 'reader',
+	 * consuming them in order
+	 * 
+	 * @param reader
+	 * @param size - number of events in subtree
+	 * @param depth - depth of subtree root
+	 * @param redDepth - depth at which nodes are colored red
+	 * @return root of subtree
+	 * @throws IOException if events are not in increasing id order
+	 */
+	private RedBlackNode buildBalanced(EventSource reader, int size, int depth, int redDepth) throws IOException {
+		
+		if (size == 0) {
+			return nil;
+		}
+		int leftSize = (size - 1) / 2;
+		RedBlackNode left = buildBalanced(reader, leftSize, depth + 1, redDepth);
+		
+		RedBlackNode node = new RedBlackNode(reader.nextId(), reader.nextCount());
+		node.color = (depth == redDepth) ? RedBlackNode.Color.RED : RedBlackNode.Color.BLACK;
+		
+		RedBlackNode right = buildBalanced(reader, size - leftSize - 1, depth + 1, redDepth);
+		
+		node.leftChild = left;
+		node.rightChild = right;
+		if (!isNil(left)) {
+			left.parent = node;
+		}
+		if (!isNil(right)) {
+			right.parent = node;
+		}
+		updateAggregate(node);
+		return node;
+	}
+	
+	/**
+	 * Sequential source of sorted events for buildBalanced
+	 */
+	private interface EventSource {
+		
+		int nextId() throws IOException;
+		
+		int nextCount();
+	}
+	
+	/**
+	 * Event source over parallel arrays
+	 */
+	private static class ArrayEventSource implements EventSource {
+		
+		private final int[] eventIds;
+		
+		private final int[] counts;
+		
+		private int next;
+		
+		ArrayEventSource(int[] eventIds, int[] counts) {
+			this.eventIds = eventIds;
+			this.counts = counts;
+		}
+		
+		public int nextId() {
+			return eventIds[next];
+		}
+		
+		public int nextCount() {
+			return counts[next++];
+		}
+	}
+	
+	/**
+	 * Sequential decoder for the events section of a snapshot
+	 */
+	private static class SnapshotReader implements EventSource {
+		
+		private final MappedByteBuffer buffer;
+		
+		private final boolean deltaEncoded;
+		
+		private int prevId;
+		
+		private boolean first = true;
+		
+		SnapshotReader(MappedByteBuffer buffer, boolean deltaEncoded) {
+			this.buffer = buffer;
+			this.deltaEncoded = deltaEncoded;
+		}
+		
+		public int nextId() throws IOException {
+			int id;
+			if (deltaEncoded) {
+				int gap = readVarint();
+				if (gap == 0 && !first) {
+					throw new IOException("Snapshot ids are not in increasing order");
+				}
+				id = prevId + gap;
 			} else {
-				insertPtr = insertPtr.rightChild;
+				id = buffer.getInt();
+				if (!first && id <= prevId) {
+					throw new IOException("Snapshot ids are not in increasing order");
+				}
+			}
+			first = false;
+			prevId = id;
+			return id;
+		}
+		
+		public int nextCount() {
+			return deltaEncoded ? readVarint() : buffer.getInt();
+		}
+		
+		private int readVarint() {
+			int value = 0;
+			for (int shift = 0; ; shift += 7) {
+				byte b = buffer.get();
+				value |= (b & 0x7F) << shift;
+				if (b >= 0) {
+					return value;
+				}
 			}
 		}
+	}
 
+	/**
+	 * Links a new node as child of 'tempParent', which must be the node
+	 * under whose nil child the event id belongs, and rebalances
+	 * 
+	 * @param tempParent - parent for the new node, or nil for an empty tree
+	 * @param evId
+	 * @param count
+	 * @return the new node
+	 */
+	private RedBlackNode insertBelow(RedBlackNode tempParent, int evId, int count) {
+		
+		RedBlackNode nodeToInsert = new RedBlackNode(evId, count);
+		
+		// Insert the new node as red node
+		nodeToInsert.leftChild = nil;
+		nodeToInsert.rightChild = nil;
+		nodeToInsert.color = RedBlackNode.Color.RED;
 		nodeToInsert.parent = tempParent;
 
 		if (isNil(tempParent)) {
 			root = nodeToInsert;
-		} else if (nodeToInsert.eventId - tempParent.eventId < 0) {
+		} else if (evId < tempParent.eventId) {
 			tempParent.leftChild = nodeToInsert;
 		} else {
 			tempParent.rightChild = nodeToInsert;
 		}
-		// Insert the new node as red node
-		nodeToInsert.leftChild = nil;
-		nodeToInsert.rightChild = nil;
-		nodeToInsert.color = RedBlackNode.Color.RED;
+		
+		// New node adds to the size and count of every ancestor
+		updateAggregatesToRoot(tempParent);
 		
 		// Adjust the colors of Red Black Tree 
 		// if insertion caused red-red RBT property violations
 		adjustAfterInsert(nodeToInsert);
 		
+		return nodeToInsert;
 	}
 
 	/**
@@ -153,11 +637,15 @@ public class RedBlackEventTree {
 	 * after new node insert
 	 * 
 	 * @param newNode
+	 * @return true if the root was red, so coloring it black raised the
+	 * black height of the tree by one
 	 */
-	private void adjustAfterInsert(RedBlackNode newNode) {
+	private boolean adjustAfterInsert(RedBlackNode newNode) {
 
 		RedBlackNode uncle = nil;
 		boolean parentIsLeftChild = true;
+		int rotations = 0;
+		int recolors = 0;
 
 		// There is a red-red violation between new node and parent
 		while (newNode.parent.color == RedBlackNode.Color.RED) {
@@ -183,6 +671,7 @@ public class RedBlackEventTree {
 				uncle.color = RedBlackNode.Color.BLACK;
 				newNode.parent.parent.color = RedBlackNode.Color.RED;
 				newNode = newNode.parent.parent;
+				recolors++;
 			break;
 
 			case BLACK:
@@ -195,12 +684,14 @@ public class RedBlackEventTree {
 						newNode.parent.color = RedBlackNode.Color.BLACK;
 						newNode.parent.parent.color = RedBlackNode.Color.RED;
 						rightRotate(newNode.parent.parent);
+						rotations++;
 
 					} else {
 						// LR case: new node is right child of left child
 						// left rotate around parent to convert to above LL case
 						newNode = newNode.parent;
 						leftRotate(newNode);
+						rotations++;
 					}
 				} else {
 
@@ -210,11 +701,13 @@ public class RedBlackEventTree {
 						newNode.parent.color = RedBlackNode.Color.BLACK;
 						newNode.parent.parent.color = RedBlackNode.Color.RED;
 						leftRotate(newNode.parent.parent);
+						rotations++;
 					} else {
 						// RL case: new node is left child of right child
 						// right rotate around parent to convert to above case
 						newNode = newNode.parent;
 						rightRotate(newNode);
+						rotations++;
 					}
 				}
 			break;
@@ -222,7 +715,13 @@ public class RedBlackEventTree {
 		}
 		
 		// Color root black - safety check
+		boolean rootWasRed = (root.color == RedBlackNode.Color.RED);
 		root.color = RedBlackNode.Color.BLACK;
+		
+		if (metrics != null) {
+			metrics.recordInsert(rotations, recolors);
+		}
+		return rootWasRed;
 	}
 
 	/**
@@ -252,6 +751,10 @@ public class RedBlackEventTree {
 		
 		rightChild.leftChild = node;
 		node.parent = rightChild;
+		
+		// 'node' is now below 'rightChild', so recompute it first
+		updateAggregate(node);
+		updateAggregate(rightChild);
 
 	}
 	
@@ -280,32 +783,29 @@ public class RedBlackEventTree {
 			node.parent.rightChild = left;
 		}
 		node.parent = left;
+		
+		// 'node' is now below 'left', so recompute it first
+		updateAggregate(node);
+		updateAggregate(left);
 	}
 
 	/**
 	 * Searches RedBlackTree for node by event id
-	 * @param event
+	 * @param evId
 	 * @return - desired node, or null if not found
 	 */
-	private RedBlackNode findNode(Event event) {
-		
-		RedBlackNode eventNode = new RedBlackNode(event.eventId,event.count);
-		
-		//Empty tree
-		if (isNil(root)) {
-            return null;
-        }
+	RedBlackNode findNode(int evId) {
 		
 		// Initialize search pointer to the root
 		RedBlackNode searchPtr = root;
 		
 		while(!isNil(searchPtr)){
 			
-			if(searchPtr.eventId - eventNode.eventId == 0)
+			if(searchPtr.eventId == evId)
 				return searchPtr;
 			
 			//Enter right subtree if current node's event is less than desired event value
-			if(searchPtr.eventId - eventNode.eventId < 0){
+			if(searchPtr.eventId < evId){
 				searchPtr = searchPtr.rightChild;
 			}
 			//Enter left subtree if current node's event is greater
@@ -326,6 +826,10 @@ public class RedBlackEventTree {
 		RedBlackNode childOfDeletedNode = nil;
 		RedBlackNode delPtr = nil;
 		
+		if (hotKeys != null) {
+			hotKeys.remove(nodeToDel.eventId);
+		}
+		
 		if(isNil(nodeToDel.leftChild) || isNil(nodeToDel.rightChild)){
 			// The node to be deleted has only one child
 			// Remove nodeToDel node
@@ -344,7 +848,20 @@ public class RedBlackEventTree {
 		else {
 			childOfDeletedNode = delPtr.rightChild;
 		}
-		childOfDeletedNode.parent = delPtr.parent;
+		
+		// A black leaf leaves a nil in its place, whose parent the fixup
+		// would need. The shared nil has no parent of its own, so fix up
+		// first with the leaf standing in for the nil and unlink it after.
+		// Rotations around its parent and sibling keep it a leaf.
+		boolean adjusted = false;
+		if (isNil(childOfDeletedNode) && delPtr.color == RedBlackNode.Color.BLACK && !isNil(delPtr.parent)) {
+			adjustAfterDelete(delPtr);
+			adjusted = true;
+		}
+		
+		if (!isNil(childOfDeletedNode)) {
+			childOfDeletedNode.parent = delPtr.parent;
+		}
 		
 		if(isNil(delPtr.parent)){
 			// If deleted node has no parent, its child is the new root
@@ -360,14 +877,28 @@ public class RedBlackEventTree {
 		// If physically deleted node was successor node, 
 		// transplant value of successor into the node we wanted to delete
 		if(delPtr != nodeToDel){
+			// The successor id moves to another node, its cached one is unlinked
+			if (hotKeys != null) {
+				hotKeys.remove(delPtr.eventId);
+			}
 			nodeToDel.eventId = delPtr.eventId;
 			nodeToDel.count = delPtr.count;
 		}
 		
+		// nodeToDel lies on the path from the removed node to the root
+		// so one walk up fixes the aggregates of both
+		updateAggregatesToRoot(delPtr.parent);
+		
 		//If deleted node was black, readjust RBT to maintain properties
+		if (adjusted) {
+			return;
+		}
 		if(delPtr.color == RedBlackNode.Color.BLACK){
 			adjustAfterDelete(childOfDeletedNode);
 		}
+		else if (metrics != null) {
+			metrics.recordDelete(0, 0);
+		}
 		
 	}
 	
@@ -381,6 +912,10 @@ public class RedBlackEventTree {
 		RedBlackNode sibling;
 
 		boolean siblingIsLeftChild;
+		
+		int rotations = 0;
+		
+		int recolors = 0;
 
 		while (node != root && node.color == RedBlackNode.Color.BLACK) {
 
@@ -408,6 +943,7 @@ public class RedBlackEventTree {
 					leftRotate(node.parent);
 					sibling = node.parent.rightChild;
 				}
+				rotations++;
 			}
 
 			// case 2: sibling is BLACK and both its children are BLACK
@@ -416,6 +952,7 @@ public class RedBlackEventTree {
 				// recolor and push up the problem to parent node.
 				sibling.color = RedBlackNode.Color.RED;
 				node = node.parent;
+				recolors++;
 			}
 
 			// case 3: sibling is BLACK and has atleast one RED child
@@ -428,6 +965,7 @@ public class RedBlackEventTree {
 						sibling.rightChild.color = RedBlackNode.Color.BLACK;
 						leftRotate(sibling);
 						sibling = node.parent.leftChild;
+						rotations++;
 					}
 					// LL case: sibling is left child and its red child is a left child
 					// recolor, right rotate around parent, DONE.
@@ -435,6 +973,7 @@ public class RedBlackEventTree {
 					sibling.color = node.parent.color;
 					node.parent.color = RedBlackNode.Color.BLACK;
 					rightRotate(node.parent);
+					rotations++;
 					node = root;
 				} else {
 					// RL case: sibling is right child and its only red child is a left child
@@ -444,6 +983,7 @@ public class RedBlackEventTree {
 						sibling.leftChild.color = RedBlackNode.Color.BLACK;
 						rightRotate(sibling);
 						sibling = node.parent.rightChild;
+						rotations++;
 					}
 					// RR case: sibling is right child and its red child is a right child
 					// recolor, left rotate around parent, DONE.
@@ -451,6 +991,7 @@ public class RedBlackEventTree {
 					sibling.color = node.parent.color;
 					node.parent.color = RedBlackNode.Color.BLACK;
 					leftRotate(node.parent);
+					rotations++;
 					node = root;
 				}
 			}
@@ -462,7 +1003,13 @@ public class RedBlackEventTree {
 		 *  Also in case 2 in while loop, if parent was red, it would exit the loop,
 		 *  so we set it to black here to ensure rbt properties are held in all cases
 		 */
-		node.color = RedBlackNode.Color.BLACK;
+		if (!isNil(node)) {
+			node.color = RedBlackNode.Color.BLACK;
+		}
+		
+		if (metrics != null) {
+			metrics.recordDelete(rotations, recolors);
+		}
 	}
 
 	/**
@@ -482,19 +1029,83 @@ public class RedBlackEventTree {
 		return rightTree;
 	}
 	
+	/**
+	 * Recomputes subtree size, count and max count of 'node' from its children
+	 * @param node
+	 */
+	private static void updateAggregate(RedBlackNode node) {
+		node.subtreeSize = node.leftChild.subtreeSize + node.rightChild.subtreeSize + 1;
+		node.subtreeCount = node.leftChild.subtreeCount + node.rightChild.subtreeCount + node.count;
+		node.subtreeMax = Math.max(node.count, Math.max(node.leftChild.subtreeMax, node.rightChild.subtreeMax));
+	}
+	
+	/**
+	 * Recomputes subtree aggregates of 'node' and all of its ancestors
+	 * @param node
+	 */
+	private void updateAggregatesToRoot(RedBlackNode node) {
+		while (!isNil(node)) {
+			updateAggregate(node);
+			node = node.parent;
+		}
+	}
+	
+	/**
+	 * Updates aggregates of 'node' and all of its ancestors after the count
+	 * of 'node' changed by 'delta'. Cheaper than updateAggregatesToRoot as
+	 * sizes stay the same, sums only add 'delta' and the max is recomputed
+	 * only as long as it changes.
+	 * @param node
+	 * @param delta
+	 */
+	private void addToAggregatesToRoot(RedBlackNode node, int delta) {
+		boolean maxChanged = true;
+		while (!isNil(node)) {
+			node.subtreeCount += delta;
+			if (maxChanged) {
+				int max = Math.max(node.count, Math.max(node.leftChild.subtreeMax, node.rightChild.subtreeMax));
+				maxChanged = (max != node.subtreeMax);
+				node.subtreeMax = max;
+			}
+			node = node.parent;
+		}
+	}
+	
+	/**
+	 * Recomputes subtree aggregates of every node in subtree of 'node'
+	 * in post order
+	 * @param node
+	 */
+	private void computeAggregates(RedBlackNode node) {
+		if (isNil(node)) {
+			return;
+		}
+		computeAggregates(node.leftChild);
+		computeAggregates(node.rightChild);
+		updateAggregate(node);
+	}
+	
+	/**
+	 * Gets the root node, for wrappers that walk the tree themselves
+	 * @return root, or nil node for an empty tree
+	 */
+	RedBlackNode getRoot() {
+		return root;
+	}
+	
 	/**
 	 * Checks RedBlackNode node to see whether it is nil node
 	 * 
 	 * @param node
 	 * @return true if node is nil else false
 	 */
-	private boolean isNil(RedBlackNode node) {
+	boolean isNil(RedBlackNode node) {
 		return node == nil;
 	}
 	
 	/**
-	 * Finds the number of nodes whose event Id's are in the range
-	 * (id1,id2) both inclusive by calling recursive function countInRange
+	 * Finds the total count of events whose event Id's are in the range
+	 * (id1,id2) both inclusive, as the difference of two prefix sums
 	 * 
 	 * @param id1
 	 * @param id2
@@ -502,96 +1113,907 @@ public class RedBlackEventTree {
 	 */
 	public int inRange(int id1, int id2){
 		
-		RedBlackNode rootPtr = root;
-		return countInRange(rootPtr, new Event(id1, 0), new Event(id2, 0));
+		if (metrics == null) {
+			return sumRange(id1, id2);
+		}
+		long start = System.nanoTime();
+		int sum = sumRange(id1, id2);
+		metrics.record(EventTreeMetrics.IN_RANGE, start);
+		return sum;
+	}
+	
+	private int sumRange(int id1, int id2){
+		
+		if (id1 > id2) {
+			return 0;
+		}
+		return countBelow(id2, true) - countBelow(id1, false);
+	}
+	
+	/**
+	 * Returns sum of counts of all events with event id less than 'evId'
+	 * (or equal to it, if 'inclusive') in a single root to leaf walk
+	 * 
+	 * @param evId
+	 * @param inclusive
+	 * @return
+	 */
+	private int countBelow(int evId, boolean inclusive){
+		
+		int sum = 0;
+		RedBlackNode rootPtr = root;
+		
+		while (!isNil(rootPtr)) {
+			if (rootPtr.eventId < evId || (inclusive && rootPtr.eventId == evId)) {
+				// This node and its whole left subtree are in the prefix
+				sum += rootPtr.leftChild.subtreeCount + rootPtr.count;
+				rootPtr = rootPtr.rightChild;
+			} else {
+				rootPtr = rootPtr.leftChild;
+			}
+		}
+		return sum;
+	}
+	
+	/**
+	 * Finds the number of events with event id smaller than 'evId'
+	 * 
+	 * @param evId
+	 * @return - rank of 'evId', starting at 0
+	 */
+	public int rankOf(int evId){
+		
+		int rank = 0;
+		RedBlackNode rootPtr = root;
+		
+		while (!isNil(rootPtr)) {
+			if (rootPtr.eventId < evId) {
+				rank += rootPtr.leftChild.subtreeSize + 1;
+				rootPtr = rootPtr.rightChild;
+			} else {
+				rootPtr = rootPtr.leftChild;
+			}
+		}
+		return rank;
+	}
+	
+	/**
+	 * Gets the k-th smallest event, counting from 0,
+	 * so that kthEvent(rankOf(id)) returns the event 'id' if present
+	 * 
+	 * @param k
+	 * @return k-th event or (0,0) if k is out of range
+	 */
+	public Event kthEvent(int k){
+		
+		if (k < 0 || k >= root.subtreeSize) {
+			return new Event(0, 0);
+		}
+		RedBlackNode rootPtr = root;
+		
+		while (true) {
+			int leftSize = rootPtr.leftChild.subtreeSize;
+			if (k < leftSize) {
+				rootPtr = rootPtr.leftChild;
+			} else if (k == leftSize) {
+				return new Event(rootPtr.eventId, rootPtr.count);
+			} else {
+				// Skip left subtree and this node
+				k -= leftSize + 1;
+				rootPtr = rootPtr.rightChild;
+			}
+		}
+	}
+	
+	/**
+	 * Gets the first event, in order of event id, at which the running
+	 * total of counts reaches 'cumulativeCount'
+	 * 
+	 * @param cumulativeCount - between 1 and the total count of the tree
+	 * @return event or (0,0) if cumulativeCount is out of range
+	 */
+	public Event eventAtCumulativeCount(int cumulativeCount){
+		
+		if (cumulativeCount <= 0 || cumulativeCount > root.subtreeCount) {
+			return new Event(0, 0);
+		}
+		RedBlackNode rootPtr = root;
+		
+		while (!isNil(rootPtr)) {
+			int leftCount = rootPtr.leftChild.subtreeCount;
+			if (cumulativeCount <= leftCount) {
+				rootPtr = rootPtr.leftChild;
+			} else if (cumulativeCount <= leftCount + rootPtr.count) {
+				return new Event(rootPtr.eventId, rootPtr.count);
+			} else {
+				// Skip counts of left subtree and this node
+				cumulativeCount -= leftCount + rootPtr.count;
+				rootPtr = rootPtr.rightChild;
+			}
+		}
+		return new Event(0, 0);
+	}
+	
+	/**
+	 * Draws an event with probability proportional to its count
+	 * 
+	 * @param random
+	 * @return event or (0,0) if the tree is empty
+	 */
+	public Event sampleWeighted(Random random){
+		
+		if (root.subtreeCount <= 0) {
+			return new Event(0, 0);
+		}
+		return eventAtCumulativeCount(1 + random.nextInt(root.subtreeCount));
+	}
+	
+	/**
+	 * Draws 'n' event ids with replacement, each with probability
+	 * proportional to its count, see sampleWeighted(int, Random)
+	 * 
+	 * @param n
+	 * @return ids drawn, in increasing order
+	 */
+	public int[] sampleWeighted(int n){
+		
+		return sampleWeighted(n, ThreadLocalRandom.current());
+	}
+	
+	/**
+	 * Draws 'n' event ids with replacement, each with probability
+	 * proportional to its count. The draws are sorted and resolved in one
+	 * descent that splits them between the subtrees, so paths shared by
+	 * several draws are walked once: O(n log(size/n) + n log n) instead of
+	 * n separate descents. Shuffle the result if the draw order matters.
+	 * 
+	 * @param n
+	 * @param random
+	 * @return ids drawn, in increasing order, empty if the tree is empty
+	 */
+	public int[] sampleWeighted(int n, Random random){
+		
+		if (n < 0) {
+			throw new IllegalArgumentException("negative sample size: " + n);
+		}
+		if (root.subtreeCount <= 0) {
+			return new int[0];
+		}
+		int[] draws = new int[n];
+		for (int i = 0; i < n; i++) {
+			draws[i] = 1 + random.nextInt(root.subtreeCount);
+		}
+		Arrays.sort(draws);
+		resolveDraws(root, draws, 0, n, 0);
+		return draws;
+	}
+	
+	/**
+	 * Replaces the sorted cumulative counts draws[from..to), which all fall
+	 * in the subtree of 'node' whose counts start after 'offset', with the
+	 * ids they land on
+	 */
+	private void resolveDraws(RedBlackNode node, int[] draws, int from, int to, int offset){
+		
+		while (from < to) {
+			int leftEnd = offset + node.leftChild.subtreeCount;
+			int nodeEnd = leftEnd + node.count;
+			int splitLeft = upperBound(draws, from, to, leftEnd);
+			int splitNode = upperBound(draws, splitLeft, to, nodeEnd);
+			if (splitLeft > from) {
+				resolveDraws(node.leftChild, draws, from, splitLeft, offset);
+			}
+			Arrays.fill(draws, splitLeft, splitNode, node.eventId);
+			// Continue with the right subtree in place of a tail call
+			from = splitNode;
+			offset = nodeEnd;
+			node = node.rightChild;
+		}
+	}
+	
+	/**
+	 * First index in the sorted a[from..to) holding a value above 'key',
+	 * 'to' if there is none
+	 */
+	private static int upperBound(int[] a, int from, int to, int key){
+		
+		while (from < to) {
+			int mid = (from + to) >>> 1;
+			if (a[mid] <= key) {
+				from = mid + 1;
+			} else {
+				to = mid;
+			}
+		}
+		return from;
+	}
+	
+	/**
+	 * Gets the id of the event at the 'p'-th percentile of the total
+	 * count: the first event, in order of event id, at which the running
+	 * total of counts reaches p percent of all counts
+	 * 
+	 * @param p - 0 to 100
+	 * @return event id, 0 if the tree is empty
+	 */
+	public int percentileId(double p){
+		
+		if (!(p >= 0 && p <= 100)) {
+			throw new IllegalArgumentException("percentile out of range: " + p);
+		}
+		long rank = Math.max(1, (long) Math.ceil(root.subtreeCount * p / 100));
+		return eventAtCumulativeCount((int) Math.min(rank, root.subtreeCount)).getEventId();
+	}
+	
+	/**
+	 * Gets the 'k' events with the highest counts, highest first
+	 * 
+	 * @param k
+	 * @return up to 'k' events, ties in no particular order
+	 */
+	public List<Event> topK(int k){
+		
+		return topK(k, Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Gets the 'k' events with the highest counts among event ids in the
+	 * range (id1,id2) both inclusive, highest first.
+	 * 
+	 * Best first search on the subtree max counts: the range is split into
+	 * the nodes on the two boundary paths and the O(log n) subtrees lying
+	 * wholly inside it, and the candidate with the largest count or subtree
+	 * max is expanded next, so O(k log n) nodes are visited.
+	 * 
+	 * @param k
+	 * @param id1
+	 * @param id2
+	 * @return up to 'k' events, ties in no particular order
+	 */
+	public List<Event> topK(int k, int id1, int id2){
+		
+		List<Event> result = new ArrayList<Event>();
+		if (k <= 0 || id1 > id2) {
+			return result;
+		}
+		PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>();
+		
+		// Find the node where the paths to id1 and id2 split
+		RedBlackNode split = root;
+		while (!isNil(split) && (split.eventId < id1 || split.eventId > id2)) {
+			split = (split.eventId < id1) ? split.rightChild : split.leftChild;
+		}
+		if (isNil(split)) {
+			return result;
+		}
+		queue.add(new Candidate(split, false));
+		
+		// Left path: nodes >= id1 with their right subtrees
+		RedBlackNode ptr = split.leftChild;
+		while (!isNil(ptr)) {
+			if (ptr.eventId >= id1) {
+				queue.add(new Candidate(ptr, false));
+				addSubtree(queue, ptr.rightChild);
+				ptr = ptr.leftChild;
+			} else {
+				ptr = ptr.rightChild;
+			}
+		}
+		
+		// Right path: nodes <= id2 with their left subtrees
+		ptr = split.rightChild;
+		while (!isNil(ptr)) {
+			if (ptr.eventId <= id2) {
+				queue.add(new Candidate(ptr, false));
+				addSubtree(queue, ptr.leftChild);
+				ptr = ptr.rightChild;
+			} else {
+				ptr = ptr.leftChild;
+			}
+		}
+		
+		while (result.size() < k && !queue.isEmpty()) {
+			Candidate best = queue.poll();
+			RedBlackNode node = best.node;
+			if (!best.subtree) {
+				result.add(new Event(node.eventId, node.count));
+			} else {
+				// Expand the subtree into its root and two child subtrees
+				queue.add(new Candidate(node, false));
+				addSubtree(queue, node.leftChild);
+				addSubtree(queue, node.rightChild);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Queues the subtree of 'node' as a whole, unless it is empty
+	 * @param queue
+	 * @param node
+	 */
+	private void addSubtree(PriorityQueue<Candidate> queue, RedBlackNode node){
+		
+		if (!isNil(node)) {
+			queue.add(new Candidate(node, true));
+		}
+	}
+	
+	/**
+	 * Entry of the topK search: either a single node, ranked by its count,
+	 * or a whole subtree, ranked by its max count
+	 */
+	private static final class Candidate implements Comparable<Candidate> {
+		
+		final RedBlackNode node;
+		
+		final boolean subtree;
+		
+		final int key;
+		
+		Candidate(RedBlackNode node, boolean subtree) {
+			this.node = node;
+			this.subtree = subtree;
+			this.key = subtree ? node.subtreeMax : node.count;
+		}
+		
+		@Override
+		public int compareTo(Candidate other) {
+			// Highest key first, single nodes before subtrees on ties
+			int order = Integer.compare(other.key, key);
+			return (order != 0) ? order : Boolean.compare(subtree, other.subtree);
+		}
+	}
+	
+	/**
+	 * Increase count of node with event id 'evId' by 'count'
+	 * If node not present, insert it
+	 * 
+	 * @param evId
+	 * @param count
+	 * @return - the new count of node
+	 */
+	public int increase(int evId, int count){
+		
+		if (metrics == null) {
+			return applyIncrease(evId, count);
+		}
+		long start = System.nanoTime();
+		int newCount = applyIncrease(evId, count);
+		metrics.record(EventTreeMetrics.INCREASE, start);
+		return newCount;
+	}
+	
+	private int applyIncrease(int evId, int count){
+		
+		// One descent finds either the node or the parent of the new node
+		RedBlackNode node = locateCached(evId);
+		if(isNil(node) || node.eventId != evId){
+			//node does not exist, insert it
+			insertBelow(node, evId, count);
+			return count;
+		}
+		else {
+			//node exists, increment count
+			node.count = node.count + count;
+			addToAggregatesToRoot(node, count);
+			return node.count;
+		}
+	}
+	
+	/**
+	 * Reduce count of node with event Id 'evId' by 'count'
+	 * Delete node if count drops to 0
+	 * 
+	 * @param evId
+	 * @param count
+	 * @return - the new count of node, or 0 if node doesn't exist/was removed
+	 */
+	public int reduce(int evId, int count){
+		
+		if (metrics == null) {
+			return applyReduce(evId, count);
+		}
+		long start = System.nanoTime();
+		int newCount = applyReduce(evId, count);
+		metrics.record(EventTreeMetrics.REDUCE, start);
+		return newCount;
+	}
+	
+	private int applyReduce(int evId, int count){
+		
+		RedBlackNode node = findCached(evId);
+		if(node == null){
+			//node does not exist
+			return 0;
+		}
+		//node exists, reduce count and delete if count drops to 0,
+		//deleteNode works from the node itself without searching again
+		if(node.count <= count){
+			if (metrics != null) {
+				metrics.recordReduceDelete();
+			}
+			deleteNode(node);
+			return 0;
+		}
+		node.count = node.count - count;
+		addToAggregatesToRoot(node, -count);
+		return node.count;
+	}
+	
+	/**
+	 * Increase count of event 'evId' by 'count', inserting it if not present
+	 * 
+	 * @param evId
+	 * @param count
+	 * @return - the count of node before the increase, 0 if it was inserted
+	 */
+	public int getAndIncrease(int evId, int count){
+		
+		RedBlackNode node = locateCached(evId);
+		if(isNil(node) || node.eventId != evId){
+			insertBelow(node, evId, count);
+			return 0;
+		}
+		int previous = node.count;
+		node.count = previous + count;
+		addToAggregatesToRoot(node, count);
+		return previous;
+	}
+	
+	/**
+	 * Increase count of event 'evId' by 'count' only if it is present
+	 * 
+	 * @param evId
+	 * @param count
+	 * @return - the new count of node, or 0 if node doesn't exist
+	 */
+	public int increaseIfPresent(int evId, int count){
+		
+		RedBlackNode node = findCached(evId);
+		if(node == null){
+			return 0;
+		}
+		node.count = node.count + count;
+		addToAggregatesToRoot(node, count);
+		return node.count;
+	}
+	
+	/**
+	 * Combines the count of event 'evId' with 'value' in one descent, like
+	 * Map.merge: an absent event gets count 'value', a present one
+	 * 'remapping(count, value)'. A resulting count of 0 or less removes the
+	 * event, or doesn't insert it.
+	 * 
+	 * @param evId
+	 * @param value
+	 * @param remapping - gets the current count and 'value'
+	 * @return - the new count of node, or 0 if node doesn't exist/was removed
+	 */
+	public int merge(int evId, int value, IntBinaryOperator remapping){
+		
+		RedBlackNode node = locateCached(evId);
+		if(isNil(node) || node.eventId != evId){
+			//node does not exist, insert it if the count is positive
+			if(value <= 0){
+				return 0;
+			}
+			insertBelow(node, evId, value);
+			return value;
+		}
+		int newCount = remapping.applyAsInt(node.count, value);
+		if(newCount <= 0){
+			if (metrics != null) {
+				metrics.recordMergeDelete();
+			}
+			deleteNode(node);
+			return 0;
+		}
+		int delta = newCount - node.count;
+		node.count = newCount;
+		addToAggregatesToRoot(node, delta);
+		return newCount;
+	}
+	
+	/**
+	 * Applies a batch of count changes, the same as calling increase for
+	 * every positive delta and reduce for every negative one, in order.
+	 * Zero deltas are ignored. The batch is sorted by id and applied in one
+	 * in order walk, where each search starts from the node of the previous
+	 * id (finger search) instead of the root and inserts reuse the position
+	 * found by that search.
+	 * 
+	 * @param ids
+	 * @param deltas - change of count for the event id at the same index
+	 */
+	public void applyBatch(int[] ids, int[] deltas){
+		
+		if (ids.length != deltas.length) {
+			throw new IllegalArgumentException("ids and deltas differ in length");
+		}
+		
+		// Sort by id, then by position so changes to one id keep their order
+		long[] order = new long[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			order[i] = ((long) ids[i] << 32) | i;
+		}
+		Arrays.sort(order);
+		
+		// Live node with id not greater than the next id in the batch, or null
+		RedBlackNode finger = null;
+		
+		for (long entry : order) {
+			int evId = (int) (entry >> 32);
+			int delta = deltas[(int) entry];
+			if (delta == 0) {
+				continue;
+			}
+			
+			RedBlackNode start = (finger == null) ? root : fingerStart(finger, evId);
+			RedBlackNode node = locate(start, evId);
+			
+			if (!isNil(node) && node.eventId == evId) {
+				if (delta > 0 || node.count > -delta) {
+					node.count += delta;
+					addToAggregatesToRoot(node, delta);
+					finger = node;
+				} else {
+					// Only 'node' or its successor is unlinked, any other
+					// finger holds a smaller id and stays in the tree
+					if (metrics != null) {
+						metrics.recordBatchDelete();
+					}
+					deleteNode(node);
+					if (finger == node) {
+						finger = null;
+					}
+				}
+			} else if (delta > 0) {
+				// 'node' is the parent under which the new id belongs
+				finger = insertBelow(node, evId, delta);
+			}
+		}
+	}
+	
+	/**
+	 * Finds the node from which to search for 'evId', by climbing from
+	 * 'finger' until reaching a subtree whose id range contains 'evId'
+	 * 
+	 * @param finger - node with id not greater than 'evId'
+	 * @param evId
+	 * @return node to start the search from
+	 */
+	private RedBlackNode fingerStart(RedBlackNode finger, int evId){
+		
+		RedBlackNode node = finger;
+		while (node.eventId != evId && !isNil(node.parent)) {
+			RedBlackNode parent = node.parent;
+			// Ids in a left subtree are bounded above by the parent
+			if (node == parent.leftChild && parent.eventId >= evId) {
+				return (parent.eventId == evId) ? parent : node;
+			}
+			node = parent;
+		}
+		return node;
+	}
+	
+	/**
+	 * Searches subtree of 'start' for 'evId'
+	 * 
+	 * @param start
+	 * @param evId
+	 * @return node with 'evId', else the last node visited, under which 'evId'
+	 * would be inserted, or nil if the subtree is empty
+	 */
+	private RedBlackNode locate(RedBlackNode start, int evId){
+		
+		RedBlackNode searchPtr = start;
+		RedBlackNode last = nil;
+		
+		while (!isNil(searchPtr)) {
+			if (searchPtr.eventId == evId) {
+				return searchPtr;
+			}
+			last = searchPtr;
+			searchPtr = (searchPtr.eventId < evId) ? searchPtr.rightChild : searchPtr.leftChild;
+		}
+		return last;
+	}
+	
+	/**
+	 * Moves the events with ids 'evId' and above to a new tree, in
+	 * O(log n). This tree keeps the events below 'evId'.
+	 * 
+	 * @param evId
+	 * @return tree of the events with ids 'evId' and above
+	 */
+	public RedBlackEventTree split(int evId){
+		
+		Subtree[] pieces = new Subtree[2];
+		RedBlackNode found = splitSubtree(new Subtree(root, blackHeight()), evId, pieces);
+		Subtree upper = (found == null) ? pieces[1] : joinSubtrees(EMPTY, found, pieces[1]);
+		setRoot(pieces[0].root);
+		
+		RedBlackEventTree result = new RedBlackEventTree();
+		result.setRoot(upper.root);
+		return result;
+	}
+	
+	/**
+	 * Joins two trees whose ids do not overlap into a new tree, in
+	 * O(log n). Both trees are left empty.
+	 * 
+	 * @param left
+	 * @param right - with ids greater than all ids of 'left'
+	 * @return tree of the events of both
+	 * @throws IllegalArgumentException if the ids overlap
+	 */
+	public static RedBlackEventTree join(RedBlackEventTree left, RedBlackEventTree right){
+		
+		if (left == right) {
+			throw new IllegalArgumentException("can not join a tree with itself");
+		}
+		Subtree joined = new Subtree(right.root, right.blackHeight());
+		if (left.root != nil) {
+			RedBlackNode last = left.root;
+			while (last.rightChild != nil) {
+				last = last.rightChild;
+			}
+			if (right.root != nil) {
+				RedBlackNode first = right.root;
+				while (first.leftChild != nil) {
+					first = first.leftChild;
+				}
+				if (last.eventId >= first.eventId) {
+					throw new IllegalArgumentException("ids of the trees overlap");
+				}
+			}
+			// The last event of 'left' becomes the node joining the two
+			Subtree[] pieces = new Subtree[2];
+			splitSubtree(new Subtree(left.root, left.blackHeight()), last.eventId, pieces);
+			joined = joinSubtrees(pieces[0], last, joined);
+		}
+		left.setRoot(nil);
+		right.setRoot(nil);
+		
+		RedBlackEventTree result = new RedBlackEventTree();
+		result.setRoot(joined.root);
+		return result;
+	}
+	
+	/**
+	 * Merges two trees into a new tree, summing the counts of ids found in
+	 * both. Both trees are left empty. The second tree is split at the root
+	 * of the first, the halves are merged recursively and joined again
+	 * under that root: O(m log(n/m + 1)) for trees of m <= n events. While
+	 * they are large, halves are merged in parallel on the common fork join
+	 * pool.
+	 * 
+	 * @param a
+	 * @param b
+	 * @return tree of the events of both
+	 */
+	public static RedBlackEventTree union(RedBlackEventTree a, RedBlackEventTree b){
+		
+		if (a == b) {
+			throw new IllegalArgumentException("can not merge a tree with itself");
+		}
+		Subtree merged = new UnionTask(new Subtree(a.root, a.blackHeight()), new Subtree(b.root, b.blackHeight()))
+				.invoke();
+		a.setRoot(nil);
+		b.setRoot(nil);
+		
+		RedBlackEventTree result = new RedBlackEventTree();
+		result.setRoot(merged.root);
+		return result;
+	}
+	
+	/**
+	 * Subtree cut out of a tree for split, join and union: a black root, or
+	 * nil, with no parent, and its black height
+	 */
+	private static final class Subtree {
+		
+		final RedBlackNode root;
+		
+		// Black nodes on every path from the root down to nil
+		final int blackHeight;
+		
+		Subtree(RedBlackNode root, int blackHeight) {
+			this.root = root;
+			this.blackHeight = blackHeight;
+		}
+	}
+	
+	private static final Subtree EMPTY = new Subtree(nil, 0);
+	
+	/**
+	 * Cuts the subtree of 'node', of black height 'height' counting a black
+	 * 'node' itself, from its parent and colors its root black
+	 */
+	private static Subtree detach(RedBlackNode node, int height){
+		
+		if (node == nil) {
+			return EMPTY;
+		}
+		node.parent = nil;
+		if (node.color == RedBlackNode.Color.RED) {
+			node.color = RedBlackNode.Color.BLACK;
+			height++;
+		}
+		return new Subtree(node, height);
+	}
+	
+	/**
+	 * Splits 'tree' into the events with ids below 'evId' in pieces[0] and
+	 * the events with ids above in pieces[1]. The subtrees hanging off the
+	 * search path are joined back on the way up, the black height of each
+	 * join's result bounding the cost of the next, so O(log n) in all.
+	 * 
+	 * @return the node of 'evId', cut out of both pieces, or null
+	 */
+	private static RedBlackNode splitSubtree(Subtree tree, int evId, Subtree[] pieces){
 		
+		RedBlackNode node = tree.root;
+		if (node == nil) {
+			pieces[0] = EMPTY;
+			pieces[1] = EMPTY;
+			return null;
+		}
+		// The root of a Subtree is black
+		Subtree left = detach(node.leftChild, tree.blackHeight - 1);
+		Subtree right = detach(node.rightChild, tree.blackHeight - 1);
+		
+		if (evId == node.eventId) {
+			pieces[0] = left;
+			pieces[1] = right;
+			return node;
+		}
+		RedBlackNode found;
+		if (evId < node.eventId) {
+			found = splitSubtree(left, evId, pieces);
+			pieces[1] = joinSubtrees(pieces[1], node, right);
+		} else {
+			found = splitSubtree(right, evId, pieces);
+			pieces[0] = joinSubtrees(left, node, pieces[0]);
+		}
+		return found;
 	}
 	
 	/**
-	 * Returns count of number of nodes between start and end, both inclusive
-	 * by comparing their event ids
-	 * 
-	 * @param rootPtr - initially points to root of tree
-	 * @param start - start node
-	 * @param end - end node
-	 * @return
+	 * Joins 'left', 'middle' and 'right', in increasing order of ids, into
+	 * one subtree. 'middle' is linked as a red node under the spine of the
+	 * higher side, at the black node as high as the other side, and any
+	 * red-red violation is fixed as after an insert, so the cost is the
+	 * difference of the black heights plus one.
 	 */
-	private int countInRange(RedBlackNode rootPtr, Event start, Event end){
+	private static Subtree joinSubtrees(Subtree left, RedBlackNode middle, Subtree right){
 		
-		// Stopping condition
-	    if (isNil(rootPtr)){
-	    	return 0;
-	    }
-	 
-		// If current node is in range, then increment count by 1 and
-		// call countInRange for its children
-		if ((rootPtr.eventId - end.getEventId() <= 0) && (rootPtr.eventId - start.eventId >= 0)) {
-			return rootPtr.count + countInRange(rootPtr.leftChild, start, end) + countInRange(rootPtr.rightChild, start, end);
-		}
-	 
-	    // If current node is smaller than start, enter its right subtree and count
-	    else if (rootPtr.eventId - start.eventId < 0){
-	    	 return countInRange(rootPtr.rightChild, start, end);
-	    }
-	 
-	    // Else enter left subtree and count
-	    else return countInRange(rootPtr.leftChild, start, end);
+		middle.parent = nil;
+		if (left.blackHeight == right.blackHeight) {
+			link(middle, left.root, right.root);
+			middle.color = RedBlackNode.Color.BLACK;
+			updateAggregate(middle);
+			return new Subtree(middle, left.blackHeight + 1);
+		}
+		
+		// Only a holder of the root for the insert fixup, with no metrics
+		RedBlackEventTree scratch = new RedBlackEventTree();
+		RedBlackNode parent;
+		RedBlackNode node;
+		if (left.blackHeight > right.blackHeight) {
+			// Down the right spine of 'left', one black node per step
+			node = left.root;
+			int height = left.blackHeight;
+			do {
+				parent = node;
+				node = node.rightChild;
+				if (node.color == RedBlackNode.Color.RED) {
+					parent = node;
+					node = node.rightChild;
+				}
+				height--;
+			} while (height > right.blackHeight);
+			link(middle, node, right.root);
+			parent.rightChild = middle;
+			scratch.root = left.root;
+		} else {
+			// Down the left spine of 'right'
+			node = right.root;
+			int height = right.blackHeight;
+			do {
+				parent = node;
+				node = node.leftChild;
+				if (node.color == RedBlackNode.Color.RED) {
+					parent = node;
+					node = node.leftChild;
+				}
+				height--;
+			} while (height > left.blackHeight);
+			link(middle, left.root, node);
+			parent.leftChild = middle;
+			scratch.root = right.root;
+		}
+		middle.parent = parent;
+		middle.color = RedBlackNode.Color.RED;
 		
+		scratch.updateAggregatesToRoot(middle);
+		boolean grown = scratch.adjustAfterInsert(middle);
+		return new Subtree(scratch.root, Math.max(left.blackHeight, right.blackHeight) + (grown ? 1 : 0));
 	}
 	
 	/**
-	 * Increase count of node with event id 'evId' by 'count'
-	 * If node not present, insert it
-	 * 
-	 * @param evId
-	 * @param count
-	 * @return - the new count of node
+	 * Makes 'left' and 'right' the children of 'node'
 	 */
-	public int increase(int evId, int count){
+	private static void link(RedBlackNode node, RedBlackNode left, RedBlackNode right){
 		
-		Event event = new Event(evId, count);
-		RedBlackNode node = findNode(event);
-		if(node == null){
-			//node does not exist, insert it
-			insertNode(event);
-			return count;
+		node.leftChild = left;
+		node.rightChild = right;
+		if (left != nil) {
+			left.parent = node;
 		}
-		else {
-			//node exists, increment count
-			node.count = node.count + count;
-			return node.count;
+		if (right != nil) {
+			right.parent = node;
 		}
 	}
 	
 	/**
-	 * Reduce count of node with event Id 'evId' by 'count'
-	 * Delete node if count drops to 0
-	 * 
-	 * @param evId
-	 * @param count
-	 * @return - the new count of node, or 0 if node doesn't exist/was removed
+	 * Merges two subtrees for union, summing counts of ids found in both
 	 */
-	public int reduce(int evId, int count){
+	private static final class UnionTask extends RecursiveTask<Subtree> {
 		
-		Event event = new Event(evId, count);
-		RedBlackNode node = findNode(event);
-		if(node == null){
-			//node does not exist
-			return 0;
+		private static final long serialVersionUID = 1L;
+		
+		// Below this many events in both subtrees the halves are merged
+		// one after the other, forking costs more than it saves
+		private static final int PARALLEL_SIZE = 1 << 13;
+		
+		private final Subtree first;
+		
+		private final Subtree second;
+		
+		UnionTask(Subtree first, Subtree second) {
+			this.first = first;
+			this.second = second;
 		}
-		else {
-			//node exists, reduce count and delete if count drops to 0
-			int currCount = node.count;
-			if(currCount<= count){
-				deleteNode(node);
-				return 0;
+		
+		@Override
+		protected Subtree compute() {
+			return union(first, second);
+		}
+		
+		private static Subtree union(Subtree first, Subtree second) {
+			
+			if (first.root == nil) {
+				return second;
+			}
+			if (second.root == nil) {
+				return first;
+			}
+			RedBlackNode node = first.root;
+			boolean parallel = node.subtreeSize + second.root.subtreeSize >= PARALLEL_SIZE;
+			Subtree left = detach(node.leftChild, first.blackHeight - 1);
+			Subtree right = detach(node.rightChild, first.blackHeight - 1);
+			
+			Subtree[] pieces = new Subtree[2];
+			RedBlackNode same = splitSubtree(second, node.eventId, pieces);
+			if (same != null) {
+				node.count += same.count;
 			}
-			else{
-				node.count = node.count - count;	
-				return node.count;
+			
+			Subtree lower;
+			Subtree upper;
+			if (parallel) {
+				UnionTask lowerTask = new UnionTask(left, pieces[0]);
+				lowerTask.fork();
+				upper = union(right, pieces[1]);
+				lower = lowerTask.join();
+			} else {
+				lower = union(left, pieces[0]);
+				upper = union(right, pieces[1]);
 			}
+			return joinSubtrees(lower, node, upper);
 		}
-		
 	}
 	
 	/**
@@ -601,13 +2023,60 @@ public class RedBlackEventTree {
 	 */
 	public Event next(int eventId){
 		
-		Event event = new Event(eventId, 0);
+		return next(eventId, new Event(0, 0));
+	}
+	
+	/**
+	 * Gets node with next greater event Id after 'eventId' without allocating,
+	 * by writing it into 'result'
+	 * @param eventId
+	 * @param result - holder to overwrite
+	 * @return 'result', holding next node or (0,0) if doesn't exist
+	 */
+	public Event next(int eventId, Event result){
+		
+		RedBlackNode node = nextNode(eventId);
+		result.eventId = (node == null) ? 0 : node.eventId;
+		result.count = (node == null) ? 0 : node.count;
+		return result;
+	}
+	
+	/**
+	 * Gets node with next greater event Id after 'eventId' packed into a long,
+	 * see Event.pack
+	 * @param eventId
+	 * @return packed next node or 0 (packed (0,0)) if doesn't exist
+	 */
+	public long nextPacked(int eventId){
+		
+		RedBlackNode node = nextNode(eventId);
+		return (node == null) ? 0L : Event.pack(node.eventId, node.count);
+	}
+	
+	/**
+	 * Finds node with next greater event Id after 'eventId'
+	 * @param eventId
+	 * @return next node or null if doesn't exist
+	 */
+	private RedBlackNode nextNode(int eventId){
+		
+		if (metrics == null) {
+			return searchNext(eventId);
+		}
+		long start = System.nanoTime();
+		RedBlackNode node = searchNext(eventId);
+		metrics.record(EventTreeMetrics.NEXT, start);
+		return node;
+	}
+	
+	private RedBlackNode searchNext(int eventId){
+		
 		RedBlackNode rootPtr = root;
 		RedBlackNode tempLargest = null;
 		
 		while (!isNil(rootPtr)) {
 			//If this node's event id is <= 'eventId', go into its right subtree
-			if (rootPtr.eventId - event.eventId <= 0) {
+			if (rootPtr.eventId <= eventId) {
 				rootPtr = rootPtr.rightChild;
 			} else {
 				//This node's event id is greater than 'eventId', save it in 'tempLargest'
@@ -617,10 +2086,7 @@ public class RedBlackEventTree {
 				rootPtr = rootPtr.leftChild;
 			}
 		}
-		if(tempLargest == null){
-			return new Event(0, 0);
-		}
-		return new Event(tempLargest.eventId, tempLargest.count);
+		return tempLargest;
 	}
 	
 
@@ -631,13 +2097,60 @@ public class RedBlackEventTree {
 	 */
 	public Event prev(int eventId) {
 		
-		Event event = new Event(eventId, 0);
+		return prev(eventId, new Event(0, 0));
+	}
+	
+	/**
+	 * Gets node with next smaller event id after 'eventId' without allocating,
+	 * by writing it into 'result'
+	 * @param eventId
+	 * @param result - holder to overwrite
+	 * @return 'result', holding previous node or (0,0) if doesn't exist
+	 */
+	public Event prev(int eventId, Event result) {
+		
+		RedBlackNode node = prevNode(eventId);
+		result.eventId = (node == null) ? 0 : node.eventId;
+		result.count = (node == null) ? 0 : node.count;
+		return result;
+	}
+	
+	/**
+	 * Gets node with next smaller event id after 'eventId' packed into a long,
+	 * see Event.pack
+	 * @param eventId
+	 * @return packed previous node or 0 (packed (0,0)) if doesn't exist
+	 */
+	public long prevPacked(int eventId) {
+		
+		RedBlackNode node = prevNode(eventId);
+		return (node == null) ? 0L : Event.pack(node.eventId, node.count);
+	}
+	
+	/**
+	 * Finds node with next smaller event id after 'eventId'
+	 * @param eventId
+	 * @return previous node or null if doesn't exist
+	 */
+	private RedBlackNode prevNode(int eventId) {
+		
+		if (metrics == null) {
+			return searchPrev(eventId);
+		}
+		long start = System.nanoTime();
+		RedBlackNode node = searchPrev(eventId);
+		metrics.record(EventTreeMetrics.PREV, start);
+		return node;
+	}
+	
+	private RedBlackNode searchPrev(int eventId) {
+		
 		RedBlackNode rootPtr = root;
 		RedBlackNode tempSmallest = null;
 		
 		while (!isNil(rootPtr)) {
 
-			if (rootPtr.eventId - event.getEventId() < 0) {
+			if (rootPtr.eventId < eventId) {
 				//If this node's event id is less than 'eventId', save it in 'tempSmallest'
 				//and go into its right subtree to check if further
 				//there is an event id larger than this one but smaller than 'eventId'
@@ -648,10 +2161,243 @@ public class RedBlackEventTree {
 				rootPtr = rootPtr.leftChild;
 			}
 		}
-		if(tempSmallest == null){
-			return new Event(0, 0);
+		return tempSmallest;
+	}
+	
+	/**
+	 * Finds node with the smallest event id >= 'eventId' in subtree of 'top'
+	 * @param top
+	 * @param eventId
+	 * @return node or null if doesn't exist
+	 */
+	private RedBlackNode ceilingNode(RedBlackNode top, int eventId) {
+		
+		RedBlackNode ptr = top;
+		RedBlackNode found = null;
+		
+		while (!isNil(ptr)) {
+			if (ptr.eventId >= eventId) {
+				found = ptr;
+				ptr = ptr.leftChild;
+			} else {
+				ptr = ptr.rightChild;
+			}
+		}
+		return found;
+	}
+	
+	/**
+	 * Gets the in order successor of 'node' by following child and parent
+	 * pointers, amortized O(1) over a walk
+	 * @param node
+	 * @return successor or null if 'node' is the last node
+	 */
+	private RedBlackNode successor(RedBlackNode node) {
+		
+		if (!isNil(node.rightChild)) {
+			return nextMinNodeInSubtree(node);
+		}
+		// Climb until coming up from a left subtree
+		RedBlackNode parent = node.parent;
+		while (!isNil(parent) && node == parent.rightChild) {
+			node = parent;
+			parent = parent.parent;
+		}
+		return isNil(parent) ? null : parent;
+	}
+	
+	/**
+	 * Opens a cursor over events with ids in the range (id1,id2) both
+	 * inclusive, in increasing order of event id. The tree must not be
+	 * structurally changed (events inserted or removed) while it is in use.
+	 * 
+	 * @param id1
+	 * @param id2
+	 * @return cursor positioned before the first event
+	 */
+	public Cursor cursor(int id1, int id2) {
+		
+		return new Cursor(id1, id2);
+	}
+	
+	/**
+	 * Allocation free cursor over a range of events, see cursor
+	 */
+	public final class Cursor {
+		
+		private final int lo;
+		
+		private final int hi;
+		
+		private RedBlackNode current;
+		
+		private boolean started;
+		
+		private Cursor(int lo, int hi) {
+			this.lo = lo;
+			this.hi = hi;
+		}
+		
+		/**
+		 * Moves to the next event of the range
+		 * @return false if there are no more events
+		 */
+		public boolean next() {
+			
+			if (!started) {
+				started = true;
+				current = (lo > hi) ? null : ceilingNode(root, lo);
+			} else if (current != null) {
+				current = successor(current);
+			}
+			if (current != null && current.eventId > hi) {
+				current = null;
+			}
+			return current != null;
+		}
+		
+		public int eventId() {
+			return current.eventId;
+		}
+		
+		public int count() {
+			return current.count;
+		}
+	}
+	
+	/**
+	 * Iterates over events with ids in the range (id1,id2) both inclusive,
+	 * in increasing order of event id
+	 * 
+	 * @param id1
+	 * @param id2
+	 * @return iterator of new Event objects
+	 */
+	public Iterator<Event> iterator(int id1, int id2) {
+		
+		return Spliterators.iterator(spliterator(id1, id2));
+	}
+	
+	/**
+	 * Spliterator over events with ids in the range (id1,id2) both
+	 * inclusive, which splits on subtrees for parallel streams
+	 * 
+	 * @param id1
+	 * @param id2
+	 * @return spliterator of new Event objects
+	 */
+	public Spliterator<Event> spliterator(int id1, int id2) {
+		
+		return new EventSpliterator(root, id1, id2);
+	}
+	
+	/**
+	 * Stream of events with ids in the range (id1,id2) both inclusive,
+	 * in increasing order of event id. Call parallel() on it to process
+	 * subtrees on separate threads.
+	 * 
+	 * @param id1
+	 * @param id2
+	 * @return sequential stream
+	 */
+	public Stream<Event> events(int id1, int id2) {
+		
+		return StreamSupport.stream(spliterator(id1, id2), false);
+	}
+	
+	/**
+	 * Spliterator over the events of subtree 'top' with ids in [lo, hi].
+	 * All events of the tree in [lo, hi] lie in that subtree, so splitting
+	 * only narrows the bounds and moves 'top' down.
+	 */
+	private final class EventSpliterator implements Spliterator<Event> {
+		
+		private RedBlackNode top;
+		
+		private int lo;
+		
+		private final int hi;
+		
+		// Next node to return once traversal has started, null when done
+		private RedBlackNode current;
+		
+		private boolean started;
+		
+		EventSpliterator(RedBlackNode top, int lo, int hi) {
+			this.top = top;
+			this.lo = lo;
+			this.hi = hi;
+		}
+		
+		/**
+		 * Finds the node in subtree of 'node' where the paths to 'from' and
+		 * 'hi' split, the first node lying inside [from, hi]
+		 */
+		private RedBlackNode splitNode(RedBlackNode node, int from) {
+			
+			while (!isNil(node) && (node.eventId < from || node.eventId > hi)) {
+				node = (node.eventId < from) ? node.rightChild : node.leftChild;
+			}
+			return node;
+		}
+		
+		@Override
+		public Spliterator<Event> trySplit() {
+			
+			if (started || lo > hi) {
+				return null;
+			}
+			RedBlackNode split = splitNode(top, lo);
+			if (isNil(split)) {
+				return null;
+			}
+			if (split.eventId > lo && !isNil(split.leftChild)) {
+				// Hand off the left subtree part [lo, split)
+				EventSpliterator prefix = new EventSpliterator(split.leftChild, lo, split.eventId - 1);
+				top = split;
+				lo = split.eventId;
+				return prefix;
+			}
+			if (split.eventId < hi && !isNil(split.rightChild)) {
+				// 'split' is the first event: hand off it and the part of the
+				// right subtree before where the rest of the range splits
+				RedBlackNode next = splitNode(split.rightChild, split.eventId + 1);
+				if (!isNil(next)) {
+					EventSpliterator prefix = new EventSpliterator(split, lo, next.eventId - 1);
+					top = next;
+					lo = next.eventId;
+					return prefix;
+				}
+			}
+			return null;
+		}
+		
+		@Override
+		public boolean tryAdvance(Consumer<? super Event> action) {
+			
+			if (!started) {
+				started = true;
+				current = (lo > hi) ? null : ceilingNode(top, lo);
+			}
+			if (current == null || current.eventId > hi) {
+				current = null;
+				return false;
+			}
+			RedBlackNode node = current;
+			current = successor(node);
+			action.accept(new Event(node.eventId, node.count));
+			return true;
+		}
+		
+		@Override
+		public long estimateSize() {
+			return (lo > hi) ? 0 : top.subtreeSize;
+		}
+		
+		@Override
+		public int characteristics() {
+			return Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL;
 		}
-		return new Event(tempSmallest.eventId, tempSmallest.count);
 	}
 
 
@@ -661,8 +2407,18 @@ public class RedBlackEventTree {
 	 */
 	public int count(int evId){
 		
-		Event node = new Event(evId, 0);
-		RedBlackNode foundNode = findNode(node);
+		if (metrics == null) {
+			return lookupCount(evId);
+		}
+		long start = System.nanoTime();
+		int count = lookupCount(evId);
+		metrics.record(EventTreeMetrics.COUNT, start);
+		return count;
+	}
+	
+	private int lookupCount(int evId){
+		
+		RedBlackNode foundNode = findCached(evId);
 		if(foundNode == null){
 			return 0;
 		}
@@ -671,4 +2427,154 @@ public class RedBlackEventTree {
 		}
 	}
 	
+	/**
+	 * Gets the counts of many event ids at once, the same as calling count
+	 * for each but several times faster for large batches, see searchAll.
+	 * Does not use the hot key cache.
+	 * 
+	 * @param ids
+	 * @param out - receives the count of ids[i] at index i, 0 if absent
+	 */
+	public void countAll(int[] ids, int[] out){
+		
+		if (out.length < ids.length) {
+			throw new IllegalArgumentException("out is shorter than ids");
+		}
+		searchAll(ids, SEARCH_COUNT, out, null);
+	}
+	
+	/**
+	 * Gets the next event after each of many event ids, the same as
+	 * calling nextPacked for each, see searchAll
+	 * 
+	 * @param ids
+	 * @param out - receives the next event after ids[i] at index i, packed
+	 * by Event.pack, or 0 if there is none
+	 */
+	public void nextAll(int[] ids, long[] out){
+		
+		if (out.length < ids.length) {
+			throw new IllegalArgumentException("out is shorter than ids");
+		}
+		searchAll(ids, SEARCH_NEXT, null, out);
+	}
+	
+	/**
+	 * Gets the previous event before each of many event ids, the same as
+	 * calling prevPacked for each, see searchAll
+	 * 
+	 * @param ids
+	 * @param out - receives the previous event before ids[i] at index i,
+	 * packed by Event.pack, or 0 if there is none
+	 */
+	public void prevAll(int[] ids, long[] out){
+		
+		if (out.length < ids.length) {
+			throw new IllegalArgumentException("out is shorter than ids");
+		}
+		searchAll(ids, SEARCH_PREV, null, out);
+	}
+	
+	// Searches of searchAll: exact match, next greater and previous smaller
+	private static final int SEARCH_COUNT = 0;
+	
+	private static final int SEARCH_NEXT = 1;
+	
+	private static final int SEARCH_PREV = 2;
+	
+	// Searches searchAll runs interleaved
+	private static final int SEARCH_LANES = 8;
+	
+	/**
+	 * Runs search 'mode' for every id of 'ids'. A single search waits for
+	 * one cache miss per level, each load depends on the one before. Here
+	 * the ids are sorted and taken in groups of SEARCH_LANES: the group
+	 * descends once while all of its ids go the same way, then the searches
+	 * of the group step down one level each in turn, so the CPU has several
+	 * independent loads in flight instead of one. Sorting keeps the shared
+	 * upper levels in cache from one group to the next.
+	 * 
+	 * @param ids
+	 * @param mode - SEARCH_COUNT, SEARCH_NEXT or SEARCH_PREV
+	 * @param counts - results of SEARCH_COUNT
+	 * @param packed - results of SEARCH_NEXT and SEARCH_PREV
+	 */
+	private void searchAll(int[] ids, int mode, int[] counts, long[] packed){
+		
+		int n = ids.length;
+		long[] order = new long[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = ((long) ids[i] << 32) | i;
+		}
+		Arrays.sort(order);
+		
+		// Lane state: current node, or null once done, and best candidate
+		// for next or prev found on the way down
+		RedBlackNode[] lanes = new RedBlackNode[SEARCH_LANES];
+		RedBlackNode[] best = new RedBlackNode[SEARCH_LANES];
+		int[] keys = new int[SEARCH_LANES];
+		int[] slots = new int[SEARCH_LANES];
+		
+		for (int base = 0; base < n; base += SEARCH_LANES) {
+			int width = Math.min(SEARCH_LANES, n - base);
+			int first = (int) (order[base] >> 32);
+			int last = (int) (order[base + width - 1] >> 32);
+			
+			// Common prefix of the paths of all ids in the group
+			RedBlackNode start = root;
+			RedBlackNode candidate = null;
+			while (!isNil(start)) {
+				if (start.eventId < first || (mode == SEARCH_NEXT && start.eventId == first)) {
+					if (mode == SEARCH_PREV) {
+						candidate = start;
+					}
+					start = start.rightChild;
+				} else if (start.eventId > last || (mode == SEARCH_PREV && start.eventId == last)) {
+					if (mode == SEARCH_NEXT) {
+						candidate = start;
+					}
+					start = start.leftChild;
+				} else {
+					break;
+				}
+			}
+			for (int j = 0; j < width; j++) {
+				lanes[j] = start;
+				best[j] = candidate;
+				keys[j] = (int) (order[base + j] >> 32);
+				slots[j] = (int) order[base + j];
+			}
+			
+			int active = width;
+			while (active > 0) {
+				for (int j = 0; j < width; j++) {
+					RedBlackNode node = lanes[j];
+					if (node == null) {
+						continue;
+					}
+					if (isNil(node) || (mode == SEARCH_COUNT && node.eventId == keys[j])) {
+						RedBlackNode found = isNil(node) ? best[j] : node;
+						if (mode == SEARCH_COUNT) {
+							counts[slots[j]] = (found == null) ? 0 : found.count;
+						} else {
+							packed[slots[j]] = (found == null) ? 0L : Event.pack(found.eventId, found.count);
+						}
+						lanes[j] = null;
+						active--;
+					} else if (node.eventId < keys[j] || (mode == SEARCH_NEXT && node.eventId == keys[j])) {
+						if (mode == SEARCH_PREV) {
+							best[j] = node;
+						}
+						lanes[j] = node.rightChild;
+					} else {
+						if (mode == SEARCH_NEXT) {
+							best[j] = node;
+						}
+						lanes[j] = node.leftChild;
+					}
+				}
+			}
+		}
+	}
+	
 }
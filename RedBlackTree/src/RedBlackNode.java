@@ -18,6 +18,15 @@ public class RedBlackNode {
 	
 	int count;
 	
+	// Number of nodes in the subtree rooted at this node
+	int subtreeSize;
+	
+	// Sum of counts of all nodes in the subtree rooted at this node
+	int subtreeCount;
+	
+	// Largest count of any node in the subtree rooted at this node
+	int subtreeMax;
+	
 	public RedBlackNode(){
 		
 		this(0,0);
@@ -27,6 +36,9 @@ public class RedBlackNode {
 		
 		this.eventId = evid;
     	this.count = count;
+    	this.subtreeSize = 1;
+    	this.subtreeCount = count;
+    	this.subtreeMax = count;
     	this.leftChild = null;
         this.rightChild = null;
         this.parent = null;
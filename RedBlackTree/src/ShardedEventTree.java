@@ -0,0 +1,228 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Thread safe event counter that splits the int id space into range
+ * partitions, each backed by its own ConcurrentEventTree and lock, so that
+ * structural inserts and deletes in different partitions do not contend.
+ *
+ * Point operations go to the partition owning the id. next and prev fall
+ * through to neighbouring partitions when their own has no answer, and
+ * inRange sums the overlapping partitions in parallel.
+ *
+ * @author dhanusha
+ *
+ */
+public class ShardedEventTree {
+
+	/**
+	 * Partition layout, replaced as a whole when the tree is rebuilt
+	 */
+	private static final class Shards {
+
+		// Smallest id of each partition, first one is Integer.MIN_VALUE
+		final int[] lowerBounds;
+
+		final ConcurrentEventTree[] trees;
+
+		Shards(int[] lowerBounds) {
+			this.lowerBounds = lowerBounds;
+			this.trees = new ConcurrentEventTree[lowerBounds.length];
+			for (int i = 0; i < trees.length; i++) {
+				trees[i] = new ConcurrentEventTree();
+			}
+		}
+	}
+
+	private final int shardCount;
+
+	private volatile Shards shards;
+
+	/**
+	 * Constructor : one partition per available processor
+	 */
+	public ShardedEventTree() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructor : 'shardCount' partitions of equal width over the id space,
+	 * until buildTreeFromFile picks boundaries from the data
+	 * @param shardCount
+	 */
+	public ShardedEventTree(int shardCount) {
+
+		if (shardCount < 1) {
+			throw new IllegalArgumentException("shardCount must be positive");
+		}
+		this.shardCount = shardCount;
+		int[] lowerBounds = new int[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			lowerBounds[i] = (int) (Integer.MIN_VALUE + ((1L << 32) * i) / shardCount);
+		}
+		shards = new Shards(lowerBounds);
+	}
+
+	/**
+	 * Parses input file with sorted event data and rebuilds all partitions,
+	 * placing the boundaries so that each partition starts out with the same
+	 * number of events. Must not run concurrently with other operations.
+	 * @param filename
+	 * @throws IOException if the file can not be read or is malformed
+	 */
+	public void buildTreeFromFile(String filename) throws IOException {
+
+		EventFileParser.SortedEvents events = EventFileParser.parse(Paths.get(filename));
+		int size = events.size;
+
+		// Event index at which each partition starts
+		int[] starts = new int[shardCount];
+		int[] lowerBounds = new int[shardCount];
+		int used = 1;
+		lowerBounds[0] = Integer.MIN_VALUE;
+		for (int i = 1; i < shardCount; i++) {
+			int start = (int) ((long) size * i / shardCount);
+			// Fewer events than partitions: skip empty ones
+			if (start > starts[used - 1] && start < size) {
+				starts[used] = start;
+				lowerBounds[used] = events.eventIds[start];
+				used++;
+			}
+		}
+
+		final Shards built = new Shards(Arrays.copyOf(lowerBounds, used));
+		final int[] from = Arrays.copyOf(starts, used);
+		IntStream.range(0, used).parallel().forEach(i -> {
+			int to = (i + 1 < from.length) ? from[i + 1] : size;
+			built.trees[i].buildTreeFromSortedArrays(Arrays.copyOfRange(events.eventIds, from[i], to),
+					Arrays.copyOfRange(events.counts, from[i], to), to - from[i]);
+		});
+		shards = built;
+	}
+
+	/**
+	 * Finds the partition owning 'evId'
+	 * @param layout
+	 * @param evId
+	 * @return partition index
+	 */
+	private static int shardOf(Shards layout, int evId) {
+
+		int index = Arrays.binarySearch(layout.lowerBounds, evId);
+		// Not a boundary itself: owned by the partition before the insertion point
+		return (index >= 0) ? index : -index - 2;
+	}
+
+	/**
+	 * Increase count of event 'evId' by 'count', inserting it if not present
+	 * @param evId
+	 * @param count
+	 * @return - the new count of event
+	 */
+	public int increase(int evId, int count) {
+		Shards layout = shards;
+		return layout.trees[shardOf(layout, evId)].increase(evId, count);
+	}
+
+	/**
+	 * Reduce count of event 'evId' by 'count', deleting it if count drops to 0
+	 * @param evId
+	 * @param count
+	 * @return - the new count of event, or 0 if it doesn't exist/was removed
+	 */
+	public int reduce(int evId, int count) {
+		Shards layout = shards;
+		return layout.trees[shardOf(layout, evId)].reduce(evId, count);
+	}
+
+	/**
+	 * Find event 'evId' and return its count
+	 * @param evId
+	 */
+	public int count(int evId) {
+		Shards layout = shards;
+		return layout.trees[shardOf(layout, evId)].count(evId);
+	}
+
+	/**
+	 * Gets event with next greater event Id after 'eventId'
+	 * @param eventId
+	 * @return next event or (0,0) if doesn't exist
+	 */
+	public Event next(int eventId) {
+		long packed = nextPacked(eventId);
+		return new Event(Event.packedEventId(packed), Event.packedCount(packed));
+	}
+
+	/**
+	 * Gets event with next greater event Id after 'eventId' packed into a
+	 * long, see Event.pack. Partitions after the owning one are tried in turn.
+	 * @param eventId
+	 * @return packed next event or 0 if doesn't exist
+	 */
+	public long nextPacked(int eventId) {
+
+		Shards layout = shards;
+		for (int i = shardOf(layout, eventId); i < layout.trees.length; i++) {
+			long packed = layout.trees[i].nextPacked(eventId);
+			if (packed != 0L) {
+				return packed;
+			}
+		}
+		return 0L;
+	}
+
+	/**
+	 * Gets event with next smaller event id after 'eventId'
+	 * @param eventId
+	 * @return previous event or (0,0) if doesn't exist
+	 */
+	public Event prev(int eventId) {
+		long packed = prevPacked(eventId);
+		return new Event(Event.packedEventId(packed), Event.packedCount(packed));
+	}
+
+	/**
+	 * Gets event with next smaller event id after 'eventId' packed into a
+	 * long, see Event.pack. Partitions before the owning one are tried in turn.
+	 * @param eventId
+	 * @return packed previous event or 0 if doesn't exist
+	 */
+	public long prevPacked(int eventId) {
+
+		Shards layout = shards;
+		for (int i = shardOf(layout, eventId); i >= 0; i--) {
+			long packed = layout.trees[i].prevPacked(eventId);
+			if (packed != 0L) {
+				return packed;
+			}
+		}
+		return 0L;
+	}
+
+	/**
+	 * Finds the total count of events whose event Id's are in the range
+	 * (id1,id2) both inclusive. Partitions covered by the range are
+	 * summed in parallel.
+	 * @param id1
+	 * @param id2
+	 * @return
+	 */
+	public int inRange(final int id1, final int id2) {
+
+		if (id1 > id2) {
+			return 0;
+		}
+		final Shards layout = shards;
+		int first = shardOf(layout, id1);
+		int last = shardOf(layout, id2);
+		if (first == last) {
+			return layout.trees[first].inRange(id1, id2);
+		}
+		return IntStream.rangeClosed(first, last).parallel()
+				.map(i -> layout.trees[i].inRange(id1, id2))
+				.sum();
+	}
+}
@@ -0,0 +1,190 @@
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Event counter over a sliding window of the last N time intervals.
+ *
+ * Every interval has a tree of the counts added during it, kept in a ring
+ * of N slots, and one more tree holds the sum over the live intervals,
+ * which answers count, inRange and topK. When time moves past an interval
+ * its counts are subtracted from the sum with one applyBatch and its slot
+ * is reused, so expiry costs O(m log n) for an interval of m events and
+ * nothing else is scanned or rebuilt.
+ *
+ * Time comes from a clock in milliseconds, System.currentTimeMillis by
+ * default; queries first expire the intervals that are out of the window
+ * at the current time. Not thread safe.
+ *
+ * @author dhanusha
+ *
+ */
+public class WindowedEventTree {
+
+	private final long intervalMillis;
+
+	// Counts added in each live interval, interval i is in slot i mod N
+	private final RedBlackEventTree[] intervals;
+
+	// Sum of the counts of all live intervals
+	private final RedBlackEventTree window = new RedBlackEventTree();
+
+	private final LongSupplier clock;
+
+	// Index of the newest interval, time / intervalMillis
+	private long current;
+
+	/**
+	 * Constructor : creates an empty window on the system clock
+	 * @param intervalMillis - length of an interval
+	 * @param intervals - number of intervals in the window
+	 */
+	public WindowedEventTree(long intervalMillis, int intervals) {
+		this(intervalMillis, intervals, System::currentTimeMillis);
+	}
+
+	/**
+	 * Constructor : creates an empty window
+	 * @param intervalMillis - length of an interval
+	 * @param intervals - number of intervals in the window
+	 * @param clock - current time in milliseconds
+	 */
+	public WindowedEventTree(long intervalMillis, int intervals, LongSupplier clock) {
+
+		if (intervalMillis <= 0 || intervals <= 0) {
+			throw new IllegalArgumentException("interval length and count must be positive");
+		}
+		this.intervalMillis = intervalMillis;
+		this.intervals = new RedBlackEventTree[intervals];
+		for (int i = 0; i < intervals; i++) {
+			this.intervals[i] = new RedBlackEventTree();
+		}
+		this.clock = clock;
+		this.current = Math.floorDiv(clock.getAsLong(), intervalMillis);
+	}
+
+	/**
+	 * Expires the intervals that are out of the window at 'timeMillis'.
+	 * Times before the newest interval change nothing.
+	 * @param timeMillis
+	 */
+	public void advanceTo(long timeMillis) {
+
+		long target = Math.floorDiv(timeMillis, intervalMillis);
+		if (target <= current) {
+			return;
+		}
+		// Interval current + i takes the slot of current + i - N
+		long steps = Math.min(target - current, intervals.length);
+		for (long i = 1; i <= steps; i++) {
+			expire((int) Math.floorMod(current + i, (long) intervals.length));
+		}
+		current = target;
+	}
+
+	/**
+	 * Subtracts the counts of the interval in 'slot' from the window and
+	 * empties the slot
+	 */
+	private void expire(int slot) {
+
+		RedBlackEventTree expired = intervals[slot];
+		int size = expired.nodeCount();
+		if (size == 0) {
+			return;
+		}
+		int[] ids = new int[size];
+		int[] deltas = new int[size];
+		RedBlackEventTree.Cursor cursor = expired.cursor(Integer.MIN_VALUE, Integer.MAX_VALUE);
+		for (int i = 0; cursor.next(); i++) {
+			ids[i] = cursor.eventId();
+			deltas[i] = -cursor.count();
+		}
+		window.applyBatch(ids, deltas);
+		intervals[slot] = new RedBlackEventTree();
+	}
+
+	/**
+	 * Adds 'count' events of 'evId' now
+	 * @param evId
+	 * @param count - must be positive
+	 * @return count of evId in the window after the change
+	 */
+	public int increase(int evId, int count) {
+		return increase(evId, count, clock.getAsLong());
+	}
+
+	/**
+	 * Adds 'count' events of 'evId' at 'timeMillis'. A time in the future
+	 * moves the window there, a time older than the window is ignored.
+	 * @param evId
+	 * @param count - must be positive
+	 * @param timeMillis
+	 * @return count of evId in the window after the change
+	 */
+	public int increase(int evId, int count, long timeMillis) {
+
+		if (count <= 0) {
+			throw new IllegalArgumentException("count must be positive: " + count);
+		}
+		advanceTo(timeMillis);
+		long interval = Math.floorDiv(timeMillis, intervalMillis);
+		if (interval <= current - intervals.length) {
+			return window.count(evId);
+		}
+		intervals[(int) Math.floorMod(interval, (long) intervals.length)].increase(evId, count);
+		return window.increase(evId, count);
+	}
+
+	/**
+	 * Gets the count of 'evId' in the window
+	 * @param evId
+	 * @return 0 if evId did not occur in the window
+	 */
+	public int count(int evId) {
+		advanceTo(clock.getAsLong());
+		return window.count(evId);
+	}
+
+	/**
+	 * Gets the total count of events in the window with ids in the range
+	 * (id1,id2) both inclusive
+	 * @param id1
+	 * @param id2
+	 */
+	public int inRange(int id1, int id2) {
+		advanceTo(clock.getAsLong());
+		return window.inRange(id1, id2);
+	}
+
+	/**
+	 * Gets the 'k' events with the highest counts in the window, highest
+	 * first
+	 * @param k
+	 * @return up to 'k' events, ties in no particular order
+	 */
+	public List<Event> topK(int k) {
+		advanceTo(clock.getAsLong());
+		return window.topK(k);
+	}
+
+	/**
+	 * Gets the 'k' events with the highest counts in the window among ids
+	 * in the range (id1,id2) both inclusive, highest first
+	 * @param k
+	 * @param id1
+	 * @param id2
+	 * @return up to 'k' events, ties in no particular order
+	 */
+	public List<Event> topK(int k, int id1, int id2) {
+		advanceTo(clock.getAsLong());
+		return window.topK(k, id1, id2);
+	}
+
+	/**
+	 * Gets the number of distinct event ids in the window
+	 */
+	public int size() {
+		advanceTo(clock.getAsLong());
+		return window.nodeCount();
+	}
+}
@@ -1,7 +1,14 @@
 import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.management.JMException;
 
 /**
  * UI Console class for event counter operations
@@ -13,16 +20,65 @@ public class bbst {
 
 	public static void main(String[] args) {
 
-		if (args.length != 1) {
-			System.err.println("Please enter file name as argument");
+		// -metrics may come anywhere after the file name
+		ArrayList<String> options = new ArrayList<String>(Arrays.asList(args));
+		boolean withMetrics = options.remove("-metrics");
+		args = options.toArray(new String[0]);
+		
+		boolean serve = args.length == 3 && args[1].equals("-server");
+		boolean batch = args.length == 2 && args[1].equals("-batch");
+		if (args.length != 1 && !serve && !batch) {
+			System.err.println("Please enter file name as argument, optionally followed by -server port or -batch"
+					+ " and -metrics");
 			System.exit(0);
 		}
 
 		RedBlackEventTree eventCounter = new RedBlackEventTree();
+		if (withMetrics) {
+			// Published over JMX and printed by the 'metrics' command
+			try {
+				eventCounter.enableMetrics().register("bbst");
+			} catch (JMException e) {
+				System.err.println(e.getMessage());
+			}
+		}
 		long start = System.currentTimeMillis();
-		eventCounter.buildTreeFromFile(args[0]);
+		try {
+			eventCounter.loadFromFile(Paths.get(args[0]));
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
 		System.out.println("Time(sec):" + (System.currentTimeMillis() - start));
 		
+		if (serve) {
+			// Serve the tree over TCP instead of reading commands from stdin
+			try {
+				EventCounterServer server = new EventCounterServer(eventCounter,
+						new InetSocketAddress(Integer.parseInt(args[2])));
+				System.out.println("Listening on port " + server.getPort());
+				server.run();
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+			}
+			return;
+		}
+		
+		if (batch) {
+			// Replay commands from stdin without the per line overhead below
+			try {
+				new CommandProcessor(eventCounter, System.in, new FileOutputStream(FileDescriptor.out)).run();
+				if (withMetrics) {
+					System.err.print(eventCounter.getMetrics().dump());
+				}
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+			}
+			return;
+		}
+		
 		BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
 		try {
 			String commandString = null;
@@ -33,6 +89,7 @@ public class bbst {
 			commandArray.add(3, "inrange");
 			commandArray.add(4, "next");
 			commandArray.add(5, "previous");
+			commandArray.add(6, "metrics");
 
 			while (!(commandString = reader.readLine()).equals("quit")) {
 
@@ -60,6 +117,14 @@ public class bbst {
 					Event p = eventCounter.prev(Integer.parseInt(cArgs[1]));
 					System.out.println(p.getEventId() + " " + p.getCount());
 					break;
+				case 6:
+					EventTreeMetrics metrics = eventCounter.getMetrics();
+					if (metrics == null) {
+						System.out.println(CommandProcessor.METRICS_DISABLED);
+					} else {
+						System.out.print(metrics.dump());
+					}
+					break;
 				}
 
 			}
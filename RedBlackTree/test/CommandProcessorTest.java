@@ -0,0 +1,167 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Output parity of CommandProcessor with the interactive loop of bbst, the
+ * same command file through both
+ *
+ * @author dhanusha
+ *
+ */
+public class CommandProcessorTest {
+
+	// Lines the interactive loop skips or reads in some unusual way
+	private static final String[] ODD_LINES = { " count 5", "\tcount 5", "count\t5", "quit ", "QUIT",
+			"quit now", "", "metrics", "metrics 1", "count 5 ", "count 5 extra", "count 5  ", "increase +7 +2",
+			"count -0", "count +5", "next 2147483647", "previous -2147483648", "inrange 10 -10", "unknown 1 2",
+			"countx 5", "increasex 1 1", "ïncrease 1 1" };
+
+	// Each stops both, after the same output
+	private static final String[] MALFORMED_LINES = { "count  5", "count 5x", "count 5\t", "count 5ÿ",
+			"increase 5", "increase 1  2", "count", "count ", "count  ", "count -", "count +", "count 2147483648",
+			"inrange 1 2x", "next -2147483649", " ", "   " };
+
+	@TempDir
+	Path dir;
+
+	private Path events;
+
+	@BeforeEach
+	public void writeEvents() throws IOException {
+
+		StringBuilder file = new StringBuilder("100\n");
+		for (int i = 0; i < 100; i++) {
+			file.append(3 * i).append(' ').append(1 + i % 7).append('\n');
+		}
+		events = Files.write(dir.resolve("events.txt"), file.toString().getBytes(StandardCharsets.US_ASCII));
+	}
+
+	@Test
+	public void sameOutputAsInteractiveLoop() throws IOException {
+
+		for (String lineBreak : new String[] { "\n", "\r\n", "\r" }) {
+			// Several chunks of commands, the odd lines in between
+			Random random = new Random(lineBreak.length());
+			StringBuilder commands = new StringBuilder();
+			for (int i = 0; i < 10000; i++) {
+				commands.append(random.nextInt(10) == 0 ? ODD_LINES[random.nextInt(ODD_LINES.length)]
+						: randomCommand(random)).append(lineBreak);
+			}
+			commands.append("quit").append(lineBreak).append("count 3").append(lineBreak);
+
+			byte[] input = commands.toString().getBytes(StandardCharsets.UTF_8);
+			assertEquals(interactive(input), batch(input), "line break " + lineBreak.length());
+		}
+	}
+
+	@Test
+	public void malformedArgumentStopsBothAlike() throws IOException {
+
+		Random random = new Random(1);
+		for (String malformed : MALFORMED_LINES) {
+			StringBuilder commands = new StringBuilder();
+			for (int i = 0; i < 5000; i++) {
+				commands.append(randomCommand(random)).append('\n');
+			}
+			commands.append(malformed).append("\ncount 3\nquit\n");
+
+			byte[] input = commands.toString().getBytes(StandardCharsets.UTF_8);
+			assertEquals(interactive(input), batch(input), malformed);
+		}
+	}
+
+	@Test
+	public void endOfStreamWithoutQuit() throws IOException {
+
+		RedBlackEventTree tree = new RedBlackEventTree();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new CommandProcessor(tree, new ByteArrayInputStream("increase 4 2\ncount 4".getBytes()), out).run();
+		String separator = System.lineSeparator();
+		assertEquals("2" + separator + "2" + separator, out.toString());
+	}
+
+	private static String randomCommand(Random random) {
+
+		int id = random.nextInt(400) - 50;
+		switch (random.nextInt(6)) {
+		case 0:
+			return "increase " + id + " " + (1 + random.nextInt(10));
+		case 1:
+			return "reduce " + id + " " + (1 + random.nextInt(10));
+		case 2:
+			return "count " + id;
+		case 3:
+			return "inrange " + id + " " + (id + random.nextInt(100));
+		case 4:
+			return "next " + id;
+		default:
+			return "previous " + id;
+		}
+	}
+
+	/**
+	 * Output of the interactive loop of bbst for 'input', without the load
+	 * time line. A malformed line ends it with an exception.
+	 */
+	private String interactive(byte[] input) {
+
+		InputStream stdin = System.in;
+		PrintStream stdout = System.out;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			System.setIn(new ByteArrayInputStream(input));
+			System.setOut(new PrintStream(out, true));
+			bbst.main(new String[] { events.toString() });
+		} catch (RuntimeException e) {
+			// Malformed number or missing argument
+		} finally {
+			System.setIn(stdin);
+			System.setOut(stdout);
+		}
+		String output = out.toString();
+		return output.substring(output.indexOf(System.lineSeparator()) + System.lineSeparator().length());
+	}
+
+	/**
+	 * Output of CommandProcessor for 'input'. A malformed line ends it with
+	 * an IOException.
+	 */
+	private String batch(byte[] input) throws IOException {
+
+		RedBlackEventTree tree = new RedBlackEventTree();
+		tree.loadFromFile(events);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CommandProcessor processor = new CommandProcessor(tree, new ByteArrayInputStream(input), out);
+		String text = new String(input, StandardCharsets.UTF_8);
+		if (containsMalformed(text)) {
+			assertThrows(IOException.class, processor::run);
+		} else {
+			processor.run();
+		}
+		return out.toString();
+	}
+
+	private static boolean containsMalformed(String text) {
+
+		for (String malformed : MALFORMED_LINES) {
+			if (text.contains("\n" + malformed + "\n")) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
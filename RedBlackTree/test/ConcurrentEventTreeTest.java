@@ -0,0 +1,193 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/**
+ * ConcurrentEventTree under concurrent increase and reduce, compared with
+ * a RedBlackEventTree that gets the same calls one at a time
+ *
+ * @author dhanusha
+ *
+ */
+public class ConcurrentEventTreeTest {
+
+	private static final int THREADS = 8;
+
+	// Ids 0 .. IDS-1, id % THREADS is the thread that inserts and deletes it
+	private static final int IDS = 4000;
+
+	// Ids every thread only increases, never deleted
+	private static final int HOT_IDS = 16;
+
+	// Calls each writer thread makes
+	private static final int CALLS = 20000;
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(2 * THREADS);
+
+	@AfterEach
+	public void shutdown() throws InterruptedException {
+		executor.shutdownNow();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	@Timeout(60)
+	public void concurrentUpdatesMatchSequentialReference() throws Exception {
+
+		ConcurrentEventTree tree = new ConcurrentEventTree();
+		List<Callable<RedBlackEventTree>> writers = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			int thread = t;
+			writers.add(() -> applyRandomCalls(tree, thread, CALLS));
+		}
+
+		// Each thread owns its ids, so its own calls decide their counts
+		RedBlackEventTree expected = new RedBlackEventTree();
+		for (Future<RedBlackEventTree> result : executor.invokeAll(writers)) {
+			RedBlackEventTree.Cursor cursor = result.get().cursor(Integer.MIN_VALUE, Integer.MAX_VALUE);
+			while (cursor.next()) {
+				expected.increase(cursor.eventId(), cursor.count());
+			}
+		}
+		for (int evId = -HOT_IDS; evId < 0; evId++) {
+			assertEquals(THREADS * CALLS / HOT_IDS, tree.count(evId), "hot " + evId);
+			expected.increase(evId, THREADS * CALLS / HOT_IDS);
+		}
+		assertSameContents(expected, tree);
+	}
+
+	@Test
+	@Timeout(60)
+	public void queriesDuringUpdatesSeeConsistentTree() throws Exception {
+
+		// Even ids are never deleted and only increased, odd ids come and go
+		ConcurrentEventTree tree = new ConcurrentEventTree();
+		int[] ids = new int[IDS / 2];
+		int[] counts = new int[IDS / 2];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = 2 * i;
+			counts[i] = 1;
+		}
+		tree.buildTreeFromSortedArrays(ids, counts, ids.length);
+
+		AtomicBoolean writing = new AtomicBoolean(true);
+		List<Future<?>> writers = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			int thread = t;
+			writers.add(executor.submit(() -> {
+				Random random = new Random(thread);
+				for (int i = 0; i < CALLS; i++) {
+					int odd = 2 * random.nextInt(IDS / 2) + 1;
+					tree.increase(odd, 1 + random.nextInt(3));
+					tree.reduce(odd, 1 + random.nextInt(3));
+					tree.increase(2 * random.nextInt(IDS / 2), 1);
+				}
+				return null;
+			}));
+		}
+		List<Future<?>> readers = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			int thread = t;
+			readers.add(executor.submit(() -> {
+				Random random = new Random(100 + thread);
+				int watched = 2 * thread;
+				int lastCount = 0;
+				while (writing.get()) {
+					int even = 2 * random.nextInt(IDS / 2 - 1);
+					assertTrue(tree.count(even) > 0, "even id " + even);
+					// The next and previous even ids always exist, odd ones may
+					Event next = tree.next(even);
+					assertTrue(next.getEventId() == even + 1 || next.getEventId() == even + 2, "next " + next);
+					assertTrue(next.getCount() > 0, "next count " + next);
+					Event prev = tree.prev(even + 2);
+					assertTrue(prev.getEventId() == even + 1 || prev.getEventId() == even, "prev " + prev);
+					assertTrue(prev.getCount() > 0, "prev count " + prev);
+					// Counts of even ids only grow
+					int count = tree.inRange(watched, watched);
+					assertTrue(count >= lastCount, "inRange of " + watched + " fell to " + count);
+					lastCount = tree.count(watched);
+					assertTrue(lastCount >= count, "count of " + watched + " fell to " + lastCount);
+					int all = tree.inRange(0, IDS);
+					assertTrue(all >= IDS / 2, "total " + all);
+				}
+				return null;
+			}));
+		}
+		try {
+			for (Future<?> writer : writers) {
+				writer.get();
+			}
+		} finally {
+			writing.set(false);
+		}
+		for (Future<?> reader : readers) {
+			reader.get();
+		}
+
+		// Every even increase is in, every odd id that is left has a count
+		int evenTotal = 0;
+		for (int evId = 0; evId < IDS; evId += 2) {
+			evenTotal += tree.count(evId);
+		}
+		assertEquals(IDS / 2 + THREADS * CALLS, evenTotal);
+		int oddTotal = 0;
+		for (int evId = 1; evId < IDS; evId += 2) {
+			oddTotal += tree.count(evId);
+		}
+		assertEquals(evenTotal + oddTotal, tree.inRange(Integer.MIN_VALUE, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Makes 'calls' random increase and reduce calls on ids owned by
+	 * 'thread' and increases of the hot ids in turn, checking the results
+	 * against a tree that gets the same calls
+	 * @return that tree, without the hot ids
+	 */
+	private static RedBlackEventTree applyRandomCalls(ConcurrentEventTree tree, int thread, int calls) {
+
+		Random random = new Random(thread);
+		RedBlackEventTree reference = new RedBlackEventTree();
+		for (int i = 0; i < calls; i++) {
+			int evId = THREADS * random.nextInt(IDS / THREADS) + thread;
+			int count = 1 + random.nextInt(10);
+			if (random.nextInt(5) < 2) {
+				assertEquals(reference.reduce(evId, count), tree.reduce(evId, count), "reduce " + evId);
+			} else {
+				assertEquals(reference.increase(evId, count), tree.increase(evId, count), "increase " + evId);
+			}
+			tree.increase(-1 - i % HOT_IDS, 1);
+		}
+		return reference;
+	}
+
+	private static void assertSameContents(RedBlackEventTree expected, ConcurrentEventTree actual) {
+
+		for (int evId = -HOT_IDS - 1; evId <= IDS; evId++) {
+			assertEquals(expected.count(evId), actual.count(evId), "count " + evId);
+			assertEquals(expected.next(evId).getEventId(), actual.next(evId).getEventId(), "next " + evId);
+			assertEquals(expected.next(evId).getCount(), actual.next(evId).getCount(), "next count " + evId);
+			assertEquals(expected.prev(evId).getEventId(), actual.prev(evId).getEventId(), "prev " + evId);
+		}
+		Random random = new Random(0);
+		for (int i = 0; i < 2000; i++) {
+			int id1 = random.nextInt(IDS + 2 * HOT_IDS) - 2 * HOT_IDS;
+			int id2 = id1 + random.nextInt(IDS / 4);
+			assertEquals(expected.inRange(id1, id2), actual.inRange(id1, id2), "inRange " + id1 + " " + id2);
+		}
+		assertEquals(expected.inRange(Integer.MIN_VALUE, Integer.MAX_VALUE),
+				actual.inRange(Integer.MIN_VALUE, Integer.MAX_VALUE));
+	}
+}
@@ -0,0 +1,150 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Recovery of DurableEventTree: whatever was logged must come back as the
+ * tree the same calls build in memory
+ *
+ * @author dhanusha
+ *
+ */
+public class DurableEventTreeTest {
+
+	private static final int IDS = 200;
+
+	@TempDir
+	Path dir;
+
+	@Test
+	public void replaysUnusualCountsLikeTheLiveTree() throws IOException {
+
+		DurableEventTree durable = DurableEventTree.open(dir);
+		RedBlackEventTree live = new RedBlackEventTree();
+		int[][] calls = { { 5, 4 }, { 7, 0 }, { 9, -3 }, { 11, Integer.MAX_VALUE } };
+		for (int[] call : calls) {
+			durable.increase(call[0], call[1]);
+			live.increase(call[0], call[1]);
+		}
+		durable.reduce(5, Integer.MIN_VALUE);
+		live.reduce(5, Integer.MIN_VALUE);
+		durable.reduce(11, -1);
+		live.reduce(11, -1);
+		durable.close();
+
+		assertRecovers(live, dir);
+	}
+
+	@Test
+	public void recoversAfterCloseAndCheckpoints() throws IOException {
+
+		Random random = new Random(1);
+		RedBlackEventTree live = new RedBlackEventTree();
+		for (int round = 0; round < 5; round++) {
+			// Small groups so the log spans many of them
+			DurableEventTree durable = DurableEventTree.open(dir, 10, 64);
+			assertSameContents(live, durable);
+			applyRandomCalls(random, durable, live, 2000);
+			if (round % 2 == 1) {
+				durable.checkpoint();
+				applyRandomCalls(random, durable, live, 500);
+			}
+			durable.close();
+		}
+		assertRecovers(live, dir);
+	}
+
+	@Test
+	public void recoversSyncedChangesAfterCrash() throws IOException {
+
+		Random random = new Random(2);
+		RedBlackEventTree live = new RedBlackEventTree();
+		DurableEventTree durable = DurableEventTree.open(dir, 0, 1 << 10);
+		applyRandomCalls(random, durable, live, 3000);
+		durable.checkpoint();
+		applyRandomCalls(random, durable, live, 3000);
+
+		// Without close: the files as a crash leaves them, plus a torn group
+		Path crashed = Files.createDirectory(dir.resolve("crashed"));
+		try (Stream<Path> files = Files.list(dir)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				if (Files.isRegularFile(file)) {
+					Files.copy(file, crashed.resolve(file.getFileName()));
+				}
+			}
+		}
+		Path log;
+		try (Stream<Path> files = Files.list(crashed)) {
+			log = files.filter(file -> file.getFileName().toString().startsWith("wal-")).findFirst().get();
+		}
+		Files.write(log, new byte[] { 0, 0, 0, 9, 1, 2, 3, 4, 1 }, StandardOpenOption.APPEND);
+
+		DurableEventTree recovered = DurableEventTree.open(crashed);
+		assertSameContents(live, recovered);
+		// The log continues after the last good group
+		recovered.increase(3, 3);
+		live.increase(3, 3);
+		recovered.close();
+		assertRecovers(live, crashed);
+		durable.close();
+	}
+
+	@Test
+	public void rejectsLogOfOtherFormat() throws IOException {
+
+		ByteBuffer oldLog = ByteBuffer.allocate(16);
+		oldLog.putInt(8).putInt(0).putInt(5).putInt(4);
+		Files.write(dir.resolve("wal-0"), oldLog.array());
+		assertThrows(IOException.class, () -> DurableEventTree.open(dir));
+	}
+
+	/**
+	 * Makes 'calls' random calls of increase and reduce on both trees,
+	 * counts included 0 and negative ones
+	 */
+	private static void applyRandomCalls(Random random, DurableEventTree durable, RedBlackEventTree live, int calls)
+			throws IOException {
+
+		for (int i = 0; i < calls; i++) {
+			int evId = random.nextInt(IDS) - IDS / 4;
+			int count = random.nextInt(20) - 3;
+			if (random.nextInt(3) == 0) {
+				assertEquals(live.reduce(evId, count), durable.reduce(evId, count));
+			} else {
+				assertEquals(live.increase(evId, count), durable.increase(evId, count));
+			}
+		}
+	}
+
+	private static void assertRecovers(RedBlackEventTree expected, Path dir) throws IOException {
+
+		DurableEventTree recovered = DurableEventTree.open(dir);
+		try {
+			assertSameContents(expected, recovered);
+		} finally {
+			recovered.close();
+		}
+	}
+
+	private static void assertSameContents(RedBlackEventTree expected, DurableEventTree actual) {
+
+		for (int evId = -IDS; evId <= IDS; evId++) {
+			assertEquals(expected.count(evId), actual.count(evId), "count " + evId);
+			assertEquals(expected.next(evId).getEventId(), actual.next(evId).getEventId(), "next " + evId);
+			assertEquals(expected.next(evId).getCount(), actual.next(evId).getCount(), "next count " + evId);
+			assertEquals(expected.prev(evId).getEventId(), actual.prev(evId).getEventId(), "prev " + evId);
+		}
+		assertEquals(expected.inRange(Integer.MIN_VALUE, Integer.MAX_VALUE),
+				actual.inRange(Integer.MIN_VALUE, Integer.MAX_VALUE));
+	}
+}
@@ -0,0 +1,285 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/**
+ * EventCounterServer and EventCounterClient over loopback, compared with a
+ * RedBlackEventTree that gets the same calls
+ *
+ * @author dhanusha
+ *
+ */
+@Timeout(60)
+public class EventCounterServerTest {
+
+	private EventCounterServer server;
+
+	private Thread serverThread;
+
+	private InetSocketAddress address;
+
+	private final RedBlackEventTree expected = new RedBlackEventTree();
+
+	@BeforeEach
+	public void start() throws IOException {
+
+		server = new EventCounterServer(new RedBlackEventTree(), new InetSocketAddress("127.0.0.1", 0));
+		address = new InetSocketAddress("127.0.0.1", server.getPort());
+		serverThread = new Thread(() -> {
+			try {
+				server.run();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		serverThread.start();
+	}
+
+	@AfterEach
+	public void stop() throws InterruptedException {
+		server.close();
+		serverThread.join(10000);
+		assertFalse(serverThread.isAlive());
+	}
+
+	@Test
+	public void singleOperationsMatchLocalTree() throws IOException {
+
+		Random random = new Random(1);
+		try (EventCounterClient client = new EventCounterClient(address)) {
+			for (int i = 0; i < 5000; i++) {
+				int evId = random.nextInt(300) - 100;
+				int count = 1 + random.nextInt(10);
+				switch (random.nextInt(6)) {
+				case 0:
+					assertEquals(expected.reduce(evId, count), client.reduce(evId, count));
+					break;
+				case 1:
+					assertEquals(expected.count(evId), client.count(evId));
+					break;
+				case 2:
+					assertEquals(expected.inRange(evId, evId + count * 10), client.inRange(evId, evId + count * 10));
+					break;
+				case 3:
+					assertSameEvent(expected.next(evId), client.next(evId));
+					break;
+				case 4:
+					assertSameEvent(expected.prev(evId), client.prev(evId));
+					break;
+				default:
+					assertEquals(expected.increase(evId, count), client.increase(evId, count));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void pipelinedBatchesComeBackInOrder() throws IOException {
+
+		Random random = new Random(2);
+		try (EventCounterClient client = new EventCounterClient(address)) {
+			List<EventCounterClient.Batch> batches = new ArrayList<>();
+			List<int[]> results = new ArrayList<>();
+			for (int i = 0; i < 200; i++) {
+				EventCounterClient.Batch batch = new EventCounterClient.Batch();
+				results.add(randomBatch(random, batch, 1 + random.nextInt(50)));
+				batches.add(batch);
+				client.send(batch);
+			}
+			for (int i = 0; i < batches.size(); i++) {
+				int[] actual = new int[batches.get(i).resultSize()];
+				client.receive(batches.get(i), actual);
+				assertArrayEquals(results.get(i), actual, "batch " + i);
+			}
+		}
+	}
+
+	@Test
+	public void largeFramesAndResponses() throws IOException {
+
+		// Requests and responses larger than the server and client buffers
+		Random random = new Random(3);
+		try (EventCounterClient client = new EventCounterClient(address)) {
+			for (int size : new int[] { 20000, 60000 }) {
+				EventCounterClient.Batch batch = new EventCounterClient.Batch();
+				int[] results = randomBatch(random, batch, size);
+				assertArrayEquals(results, client.execute(batch));
+			}
+		}
+	}
+
+	@Test
+	public void framesSplitAcrossReads() throws Exception {
+
+		Random random = new Random(4);
+		try (SocketChannel channel = SocketChannel.open(address)) {
+			channel.socket().setTcpNoDelay(true);
+			for (int chunk : new int[] { 1, 3, 7, 1000 }) {
+				// Two frames back to back, the second larger than the server buffer
+				int smallSize = (chunk < 1000) ? 5 : 50;
+				int largeSize = (chunk < 1000) ? 20 : 20000;
+				ByteBuffer small = ByteBuffer.allocate(9 * smallSize);
+				ByteBuffer large = ByteBuffer.allocate(9 * largeSize);
+				int[] smallResults = randomBatch(random, new EventCounterClient.Batch(), small, smallSize);
+				int[] largeResults = randomBatch(random, new EventCounterClient.Batch(), large, largeSize);
+				small.flip();
+				large.flip();
+				ByteBuffer request = ByteBuffer.allocate(8 + small.remaining() + large.remaining());
+				request.putInt(small.remaining()).put(small);
+				request.putInt(large.remaining()).put(large);
+				request.flip();
+
+				// Written 'chunk' bytes at a time, so the server sees partial lengths and frames
+				while (request.hasRemaining()) {
+					ByteBuffer piece = request.slice();
+					piece.limit(Math.min(chunk, piece.remaining()));
+					int written = channel.write(piece);
+					request.position(request.position() + written);
+					if (chunk < 1000) {
+						Thread.sleep(1);
+					}
+				}
+				assertArrayEquals(smallResults, readResponse(channel, smallResults.length));
+				assertArrayEquals(largeResults, readResponse(channel, largeResults.length));
+			}
+		}
+	}
+
+	@Test
+	public void malformedFrameClosesOnlyItsConnection() throws IOException {
+
+		try (EventCounterClient client = new EventCounterClient(address);
+				SocketChannel bad = SocketChannel.open(address)) {
+			assertEquals(5, client.increase(1, 5));
+
+			ByteBuffer frame = ByteBuffer.allocate(9);
+			frame.putInt(5).put((byte) 99).putInt(1).flip();
+			bad.write(frame);
+			assertEquals(-1, bad.read(ByteBuffer.allocate(16)));
+
+			assertEquals(7, client.increase(1, 2));
+		}
+		try (SocketChannel bad = SocketChannel.open(address)) {
+			ByteBuffer frame = ByteBuffer.allocate(4);
+			frame.putInt(EventCounterServer.MAX_FRAME + 1).flip();
+			bad.write(frame);
+			assertEquals(-1, bad.read(ByteBuffer.allocate(16)));
+		}
+		try (EventCounterClient client = new EventCounterClient(address)) {
+			assertEquals(7, client.count(1));
+		}
+	}
+
+	@Test
+	public void clientRejectsOversizedBatch() throws IOException {
+
+		try (EventCounterClient client = new EventCounterClient(address)) {
+			EventCounterClient.Batch batch = new EventCounterClient.Batch();
+			for (int i = 0; i <= EventCounterServer.MAX_FRAME / 5; i++) {
+				batch.count(i);
+			}
+			assertThrows(IllegalArgumentException.class, () -> client.send(batch));
+		}
+	}
+
+	/**
+	 * Adds 'operations' random operations to 'batch' and applies them to
+	 * the expected tree
+	 * @return the results the server must send back for the batch
+	 */
+	private int[] randomBatch(Random random, EventCounterClient.Batch batch, int operations) {
+		return randomBatch(random, batch, ByteBuffer.allocate(9 * operations), operations);
+	}
+
+	/**
+	 * Same, and also puts the operations in 'ops' as they go over the wire
+	 */
+	private int[] randomBatch(Random random, EventCounterClient.Batch batch, ByteBuffer ops, int operations) {
+
+		List<Integer> results = new ArrayList<>();
+		for (int i = 0; i < operations; i++) {
+			int evId = random.nextInt(1000) - 300;
+			int count = 1 + random.nextInt(10);
+			switch (random.nextInt(6)) {
+			case 0:
+				batch.reduce(evId, count);
+				ops.put(EventCounterServer.OP_REDUCE).putInt(evId).putInt(count);
+				results.add(expected.reduce(evId, count));
+				break;
+			case 1:
+				batch.count(evId);
+				ops.put(EventCounterServer.OP_COUNT).putInt(evId);
+				results.add(expected.count(evId));
+				break;
+			case 2:
+				batch.inRange(evId, evId + 100);
+				ops.put(EventCounterServer.OP_IN_RANGE).putInt(evId).putInt(evId + 100);
+				results.add(expected.inRange(evId, evId + 100));
+				break;
+			case 3:
+				batch.next(evId);
+				ops.put(EventCounterServer.OP_NEXT).putInt(evId);
+				Event next = expected.next(evId);
+				results.add(next.getEventId());
+				results.add(next.getCount());
+				break;
+			case 4:
+				batch.prev(evId);
+				ops.put(EventCounterServer.OP_PREV).putInt(evId);
+				Event prev = expected.prev(evId);
+				results.add(prev.getEventId());
+				results.add(prev.getCount());
+				break;
+			default:
+				batch.increase(evId, count);
+				ops.put(EventCounterServer.OP_INCREASE).putInt(evId).putInt(count);
+				results.add(expected.increase(evId, count));
+			}
+		}
+		assertEquals(results.size(), batch.resultSize());
+		return results.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	private static int[] readResponse(SocketChannel channel, int ints) throws IOException {
+
+		ByteBuffer length = readFully(channel, 4);
+		assertEquals(4 * ints, length.getInt());
+		ByteBuffer payload = readFully(channel, 4 * ints);
+		int[] results = new int[ints];
+		for (int i = 0; i < ints; i++) {
+			results[i] = payload.getInt();
+		}
+		return results;
+	}
+
+	private static ByteBuffer readFully(SocketChannel channel, int bytes) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.allocate(bytes);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new IOException("Server closed the connection");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static void assertSameEvent(Event expected, Event actual) {
+		assertEquals(expected.getEventId(), actual.getEventId());
+		assertEquals(expected.getCount(), actual.getCount());
+	}
+}
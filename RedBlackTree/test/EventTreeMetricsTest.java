@@ -0,0 +1,48 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Counters of EventTreeMetrics: every delete is counted once, under the
+ * operation that dropped the count to 0
+ *
+ * @author dhanusha
+ *
+ */
+public class EventTreeMetricsTest {
+
+	@Test
+	public void countsDeletesByOperation() {
+
+		RedBlackEventTree tree = new RedBlackEventTree();
+		EventTreeMetrics metrics = tree.enableMetrics();
+		for (int evId = 0; evId < 100; evId++) {
+			tree.increase(evId, 5);
+		}
+
+		// 3 by reduce, one reduce leaves a count
+		tree.reduce(0, 5);
+		tree.reduce(1, 9);
+		tree.reduce(2, 5);
+		tree.reduce(3, 4);
+		// 2 by merge, one merge leaves a count
+		tree.merge(10, 5, (count, value) -> count - value);
+		tree.merge(11, 1, (count, value) -> 0);
+		tree.merge(12, 1, (count, value) -> count - value);
+		// 4 by applyBatch, the last id only drops to 0 on its second delta
+		tree.applyBatch(new int[] { 20, 21, 22, 23, 23, 24 }, new int[] { -5, -6, -50, -3, -2, -1 });
+
+		assertEquals(3, metrics.getReduceDeletes());
+		assertEquals(2, metrics.getMergeDeletes());
+		assertEquals(4, metrics.getBatchDeletes());
+		assertEquals(9, metrics.getDeletes());
+		assertEquals(100, metrics.getInserts());
+		assertEquals(91, metrics.getNodeCount());
+		assertTrue(metrics.dump().contains("deletes 9 (by reduce 3 merge 2 applyBatch 4)"), metrics.dump());
+
+		metrics.reset();
+		assertEquals(0, metrics.getReduceDeletes() + metrics.getMergeDeletes() + metrics.getBatchDeletes());
+		assertEquals(0, metrics.getDeletes());
+	}
+}
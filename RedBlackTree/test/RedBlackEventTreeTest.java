@@ -0,0 +1,255 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Red-black invariants and subtree aggregates of RedBlackEventTree after
+ * split, join, union and deletes, with a TreeMap of the same counts as the
+ * reference
+ *
+ * @author dhanusha
+ *
+ */
+public class RedBlackEventTreeTest {
+
+	// The shared nil node is the root of an empty tree
+	private static final RedBlackNode nil = new RedBlackEventTree().getRoot();
+
+	@Test
+	public void splitKeepsBothHalvesValid() {
+
+		Random random = new Random(1);
+		for (int round = 0; round < 1000; round++) {
+			TreeMap<Integer, Integer> expected = new TreeMap<>();
+			RedBlackEventTree tree = randomTree(random, expected, random.nextInt(300), -200, 400);
+			if (random.nextBoolean()) {
+				tree.enableHotKeyCache(64);
+			}
+			// Split points below, inside and above the ids
+			int evId = random.nextInt(500) - 250;
+			RedBlackEventTree high = tree.split(evId);
+			TreeMap<Integer, Integer> expectedHigh = new TreeMap<>(expected.tailMap(evId, true));
+			expected.tailMap(evId, true).clear();
+			assertValid(expected, tree);
+			assertValid(expectedHigh, high);
+
+			// Both halves stay usable, the cache must not hold moved nodes
+			for (int i = 0; i < 30; i++) {
+				int id = random.nextInt(500) - 250;
+				increase(tree, expected, id, 2);
+				assertEquals(expected.get(id).intValue(), tree.count(id));
+				reduce(tree, expected, id, 2);
+			}
+			assertValid(expected, tree);
+		}
+	}
+
+	@Test
+	public void joinKeepsTreeValid() {
+
+		Random random = new Random(2);
+		for (int round = 0; round < 1000; round++) {
+			TreeMap<Integer, Integer> expected = new TreeMap<>();
+			RedBlackEventTree tree = randomTree(random, expected, random.nextInt(300), -200, 400);
+			int evId = random.nextInt(500) - 250;
+			RedBlackEventTree high = tree.split(evId);
+
+			RedBlackEventTree joined = RedBlackEventTree.join(tree, high);
+			assertValid(expected, joined);
+			assertValid(new TreeMap<>(), tree);
+			assertValid(new TreeMap<>(), high);
+		}
+	}
+
+	@Test
+	public void joinRejectsOverlappingIds() {
+
+		RedBlackEventTree left = new RedBlackEventTree();
+		RedBlackEventTree right = new RedBlackEventTree();
+		left.increase(5, 1);
+		right.increase(5, 1);
+		assertThrows(IllegalArgumentException.class, () -> RedBlackEventTree.join(left, right));
+	}
+
+	@Test
+	public void unionOfOverlappingTreesSumsCounts() {
+
+		Random random = new Random(3);
+		for (int round = 0; round < 1000; round++) {
+			TreeMap<Integer, Integer> expected = new TreeMap<>();
+			TreeMap<Integer, Integer> other = new TreeMap<>();
+			RedBlackEventTree a = randomTree(random, expected, random.nextInt(300), -200, 400);
+			RedBlackEventTree b = randomTree(random, other, random.nextInt(300), random.nextInt(400) - 400,
+					random.nextInt(600) + 1);
+
+			RedBlackEventTree union = RedBlackEventTree.union(a, b);
+			for (Map.Entry<Integer, Integer> entry : other.entrySet()) {
+				expected.merge(entry.getKey(), entry.getValue(), Integer::sum);
+			}
+			assertValid(expected, union);
+			assertValid(new TreeMap<>(), a);
+			assertValid(new TreeMap<>(), b);
+		}
+	}
+
+	@Test
+	public void parallelUnionKeepsTreeValid() {
+
+		// Large enough for the halves to be merged on the fork join pool
+		Random random = new Random(4);
+		TreeMap<Integer, Integer> expected = new TreeMap<>();
+		TreeMap<Integer, Integer> other = new TreeMap<>();
+		RedBlackEventTree a = randomTree(random, expected, 100000, 0, 500000);
+		RedBlackEventTree b = randomTree(random, other, 80000, 250000, 500000);
+
+		RedBlackEventTree union = RedBlackEventTree.union(a, b);
+		for (Map.Entry<Integer, Integer> entry : other.entrySet()) {
+			expected.merge(entry.getKey(), entry.getValue(), Integer::sum);
+		}
+		assertValid(expected, union);
+	}
+
+	@Test
+	public void deletesKeepTreeValid() {
+
+		Random random = new Random(5);
+		for (int round = 0; round < 200; round++) {
+			TreeMap<Integer, Integer> expected = new TreeMap<>();
+			RedBlackEventTree tree = randomTree(random, expected, 200 + random.nextInt(200), 0, 300);
+
+			// Deletes by reduce, merge and applyBatch until the tree is empty
+			while (!expected.isEmpty()) {
+				List<Integer> ids = new ArrayList<>(expected.keySet());
+				int evId = ids.get(random.nextInt(ids.size()));
+				int count = expected.get(evId);
+				switch (random.nextInt(3)) {
+				case 0:
+					reduce(tree, expected, evId, count - random.nextInt(2));
+					break;
+				case 1:
+					assertEquals(0, tree.merge(evId, count, (old, value) -> old - value));
+					expected.remove(evId);
+					break;
+				default:
+					int[] batch = new int[Math.min(ids.size(), 1 + random.nextInt(8))];
+					int[] deltas = new int[batch.length];
+					for (int i = 0; i < batch.length; i++) {
+						batch[i] = ids.get(random.nextInt(ids.size()));
+						deltas[i] = -1 - random.nextInt(10);
+					}
+					tree.applyBatch(batch, deltas);
+					for (int i = 0; i < batch.length; i++) {
+						int delta = deltas[i];
+						expected.computeIfPresent(batch[i], (id, old) -> old > -delta ? old + delta : null);
+					}
+				}
+				assertValid(expected, tree);
+			}
+		}
+	}
+
+	/**
+	 * Builds a tree of 'n' random increases of ids in [lo, lo + span), with
+	 * a reduce after about one in four, and the same counts in 'expected'
+	 */
+	private static RedBlackEventTree randomTree(Random random, TreeMap<Integer, Integer> expected, int n, int lo,
+			int span) {
+
+		RedBlackEventTree tree = new RedBlackEventTree();
+		for (int i = 0; i < n; i++) {
+			increase(tree, expected, lo + random.nextInt(span), 1 + random.nextInt(9));
+			if (random.nextInt(4) == 0) {
+				reduce(tree, expected, lo + random.nextInt(span), 1 + random.nextInt(5));
+			}
+		}
+		return tree;
+	}
+
+	private static void increase(RedBlackEventTree tree, TreeMap<Integer, Integer> expected, int evId, int count) {
+
+		tree.increase(evId, count);
+		expected.merge(evId, count, Integer::sum);
+	}
+
+	private static void reduce(RedBlackEventTree tree, TreeMap<Integer, Integer> expected, int evId, int count) {
+
+		tree.reduce(evId, count);
+		expected.computeIfPresent(evId, (id, old) -> old > count ? old - count : null);
+	}
+
+	/**
+	 * Checks the red-black invariants, parent links and aggregates of every
+	 * node, that nil is unchanged, and that the tree holds exactly 'expected'
+	 */
+	private static void assertValid(TreeMap<Integer, Integer> expected, RedBlackEventTree tree) {
+
+		RedBlackNode root = tree.getRoot();
+		if (root != nil) {
+			assertSame(RedBlackNode.Color.BLACK, root.color, "root color");
+			assertSame(nil, root.parent, "root parent");
+		}
+		int blackHeight = validate(root);
+		assertEquals(blackHeight, tree.blackHeight(), "black height");
+		assertEquals(expected.size(), tree.nodeCount(), "node count");
+
+		assertSame(RedBlackNode.Color.BLACK, nil.color, "nil color");
+		assertEquals(0, nil.subtreeSize, "nil size");
+		assertEquals(0, nil.subtreeCount, "nil count");
+		assertEquals(0, nil.subtreeMax, "nil max");
+
+		TreeMap<Integer, Integer> actual = new TreeMap<>();
+		RedBlackEventTree.Cursor cursor = tree.cursor(Integer.MIN_VALUE, Integer.MAX_VALUE);
+		while (cursor.next()) {
+			assertTrue(actual.isEmpty() || actual.lastKey() < cursor.eventId(), "cursor order");
+			actual.put(cursor.eventId(), cursor.count());
+		}
+		assertEquals(expected, actual);
+		assertEquals(expected.values().stream().mapToInt(Integer::intValue).sum(),
+				tree.inRange(Integer.MIN_VALUE, Integer.MAX_VALUE), "total");
+	}
+
+	/**
+	 * Checks the subtree of 'node'
+	 * @return black height of the subtree, nil not counted
+	 */
+	private static int validate(RedBlackNode node) {
+
+		if (node == nil) {
+			return 0;
+		}
+		RedBlackNode left = node.leftChild;
+		RedBlackNode right = node.rightChild;
+		if (left != nil) {
+			assertSame(node, left.parent, "left parent of " + node.eventId);
+			assertTrue(left.eventId < node.eventId, "left order of " + node.eventId);
+		}
+		if (right != nil) {
+			assertSame(node, right.parent, "right parent of " + node.eventId);
+			assertTrue(right.eventId > node.eventId, "right order of " + node.eventId);
+		}
+		if (node.color == RedBlackNode.Color.RED) {
+			assertSame(RedBlackNode.Color.BLACK, left.color, "red left child of " + node.eventId);
+			assertSame(RedBlackNode.Color.BLACK, right.color, "red right child of " + node.eventId);
+		}
+		assertTrue(node.count > 0, "count of " + node.eventId);
+
+		int leftHeight = validate(left);
+		int rightHeight = validate(right);
+		assertEquals(leftHeight, rightHeight, "black height of " + node.eventId);
+		assertEquals(left.subtreeSize + right.subtreeSize + 1, node.subtreeSize, "size of " + node.eventId);
+		assertEquals(left.subtreeCount + right.subtreeCount + node.count, node.subtreeCount,
+				"count sum of " + node.eventId);
+		assertEquals(Math.max(node.count, Math.max(left.subtreeMax, right.subtreeMax)), node.subtreeMax,
+				"max of " + node.eventId);
+		return leftHeight + (node.color == RedBlackNode.Color.BLACK ? 1 : 0);
+	}
+}